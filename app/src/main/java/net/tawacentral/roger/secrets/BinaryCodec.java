@@ -0,0 +1,284 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Helpers to write and read the binary format of secrets files.
+ *
+ * A record is a list of fields.  Each field starts with a varint key, which
+ * is the tag of the field shifted left by three bits, or'ed with the type of
+ * the value.  A value is either a varint, or a varint length followed by
+ * that many bytes: a UTF-8 string or a nested record.  Readers skip fields
+ * with tags they do not know, so fields can be added later.
+ *
+ * Varints hold seven bits per byte, least significant first, with the high
+ * bit set on all bytes but the last, so small numbers take a single byte.
+ * Signed numbers are zigzag encoded first, so that small negative numbers
+ * are small too.
+ *
+ * @author rogerta
+ */
+final class BinaryCodec {
+  /** Value types of fields. */
+  static final int TYPE_VARINT = 0;
+  static final int TYPE_BYTES = 2;
+
+  private static final int TYPE_BITS = 3;
+  private static final int TYPE_MASK = (1 << TYPE_BITS) - 1;
+
+  /**
+   * Data is only stored compressed if that makes it smaller by at least
+   * this fraction, one eighth, so that data that does not compress well is
+   * not made slower to read for little gain.
+   */
+  private static final int COMPRESSION_MIN_SAVING_SHIFT = 3;
+
+  private BinaryCodec() {
+  }
+
+  /** Is compressing data of the given size down to the given size worth it? */
+  static boolean isWorthCompressing(long size, long compressedSize) {
+    return compressedSize <= size - (size >> COMPRESSION_MIN_SAVING_SHIFT);
+  }
+
+  /**
+   * Returns the given prefix followed by the data compressed with raw
+   * deflate, or null if that is not worth it.
+   */
+  static byte[] deflate(byte[] prefix, byte[] data) {
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try {
+      deflater.setInput(data);
+      deflater.finish();
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+          data.length / 2);
+      compressed.write(prefix, 0, prefix.length);
+      byte[] buffer = new byte[8192];
+      while (!deflater.finished()) {
+        compressed.write(buffer, 0, deflater.deflate(buffer));
+        if (!isWorthCompressing(data.length, compressed.size()))
+          return null;
+      }
+      return compressed.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /** Uncompresses the output of deflate(), which starts at the offset. */
+  static byte[] inflate(byte[] data, int offset) throws IOException {
+    Inflater inflater = new Inflater(true);
+    try {
+      InputStream input = new InflaterInputStream(new ByteArrayInputStream(
+          data, offset, data.length - offset), inflater);
+      ByteArrayOutputStream output = new ByteArrayOutputStream(
+          (data.length - offset) * 4);
+      byte[] buffer = new byte[8192];
+      for (int n = input.read(buffer); n >= 0; n = input.read(buffer))
+        output.write(buffer, 0, n);
+      return output.toByteArray();
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /** Returns the tag of the given field key. */
+  static int getTag(int key) {
+    return key >>> TYPE_BITS;
+  }
+
+  /** Returns the value type of the given field key. */
+  static int getType(int key) {
+    return key & TYPE_MASK;
+  }
+
+  /** Builds a binary record in memory. */
+  static final class Output extends ByteArrayOutputStream {
+    Output() {
+    }
+
+    Output(int size) {
+      super(size);
+    }
+
+    /** Writes an unsigned varint. */
+    void writeVarint(long value) {
+      while (0 != (value & ~0x7FL)) {
+        write((int) (value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      write((int) value);
+    }
+
+    /** Writes a signed varint, zigzag encoded. */
+    void writeSignedVarint(long value) {
+      writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    /** Writes a field holding a varint. */
+    void writeField(int tag, long value) {
+      writeVarint((tag << TYPE_BITS) | TYPE_VARINT);
+      writeVarint(value);
+    }
+
+    /** Writes a field holding bytes, usually a nested record. */
+    void writeField(int tag, byte[] value, int offset, int length) {
+      writeVarint((tag << TYPE_BITS) | TYPE_BYTES);
+      writeVarint(length);
+      write(value, offset, length);
+    }
+
+    /** Writes a field holding a nested record. */
+    void writeField(int tag, Output value) {
+      writeField(tag, value.buf, 0, value.count);
+    }
+
+    /**
+     * Writes a field holding a string in UTF-8.  Like the json format,
+     * nothing is written if the value is null.
+     */
+    void writeField(int tag, String value) {
+      if (null == value)
+        return;
+
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeField(tag, bytes, 0, bytes.length);
+    }
+
+    /** Writes a varint length followed by the contents of the record. */
+    void writeRecord(Output record) {
+      writeVarint(record.count);
+      write(record.buf, 0, record.count);
+    }
+  }
+
+  /** Reads a binary record from memory. */
+  static final class Input {
+    private final byte[] data;
+    private int position;
+    private final int limit;
+
+    /**
+     * @param data The bytes to read.
+     * @param offset Where the record starts.
+     * @param limit Where the record ends.
+     */
+    Input(byte[] data, int offset, int limit) {
+      this.data = data;
+      this.position = offset;
+      this.limit = limit;
+    }
+
+    /** Is there anything left to read? */
+    boolean hasRemaining() {
+      return position < limit;
+    }
+
+    /** Reads an unsigned varint. */
+    long readVarint() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        if (position >= limit)
+          throw new IOException("Truncated varint");
+
+        int b = data[position++];
+        value |= (long) (b & 0x7F) << shift;
+        if (0 == (b & 0x80))
+          return value;
+      }
+      throw new IOException("Malformed varint");
+    }
+
+    /** Reads an unsigned varint that must fit in an int. */
+    int readInt() throws IOException {
+      long value = readVarint();
+      if (value < 0 || value > Integer.MAX_VALUE)
+        throw new IOException("Value out of range: " + value);
+      return (int) value;
+    }
+
+    /** Reads a signed varint, zigzag encoded. */
+    long readSignedVarint() throws IOException {
+      long value = readVarint();
+      return (value >>> 1) ^ -(value & 1);
+    }
+
+    /** Reads the key of the next field. */
+    int readKey() throws IOException {
+      return readInt();
+    }
+
+    /**
+     * Reads a length and returns the bytes that follow as a nested input,
+     * leaving this one just after them.
+     */
+    Input readRecord() throws IOException {
+      int length = readInt();
+      if (length > limit - position)
+        throw new IOException("Truncated record");
+
+      Input record = new Input(data, position, position + length);
+      position += length;
+      return record;
+    }
+
+    /** Reads a length and a copy of the bytes that follow. */
+    byte[] readBytes() throws IOException {
+      int length = readInt();
+      if (length > limit - position)
+        throw new IOException("Truncated bytes");
+
+      byte[] value = new byte[length];
+      System.arraycopy(data, position, value, 0, length);
+      position += length;
+      return value;
+    }
+
+    /** Reads a length and the UTF-8 string that follows. */
+    String readString() throws IOException {
+      int length = readInt();
+      if (length > limit - position)
+        throw new IOException("Truncated string");
+
+      String value = new String(data, position, length,
+                                StandardCharsets.UTF_8);
+      position += length;
+      return value;
+    }
+
+    /** Skips the value of a field with the given key. */
+    void skipField(int key) throws IOException {
+      switch (getType(key)) {
+        case TYPE_VARINT:
+          readVarint();
+          break;
+        case TYPE_BYTES:
+          readRecord();
+          break;
+        default:
+          throw new IOException("Unknown field type " + getType(key));
+      }
+    }
+  }
+}
@@ -0,0 +1,217 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+/**
+ * An input stream that reads from a byte buffer, usually a file mapped into
+ * memory, so that large files are read by the kernel's page cache rather
+ * than copied through buffered streams.  The stream supports mark() with no
+ * limit, and the rest of the buffer can be decrypted straight from the
+ * buffer with decrypt().
+ *
+ * Each stream reads from its own view of the buffer, so several streams can
+ * read the same mapping at once.
+ *
+ * @author rogerta
+ */
+final class ByteBufferInputStream extends InputStream {
+  /** How many bytes decrypt() passes to the cipher at a time. */
+  private static final int DECRYPT_STEP = 32 * 1024;
+
+  private final ByteBuffer buffer;
+  private int mark;
+
+  /**
+   * @param buffer The bytes to read, from its position to its limit.  The
+   *     buffer itself is not modified.
+   */
+  ByteBufferInputStream(ByteBuffer buffer) {
+    this.buffer = buffer.duplicate();
+    mark = this.buffer.position();
+  }
+
+  /**
+   * Maps the given file into memory, read only.  The mapping stays valid
+   * after the file is closed, and even after it is deleted or replaced by
+   * renaming another file over it.
+   *
+   * @param file The file to map.
+   * @return The contents of the file.
+   * @throws IOException
+   */
+  static ByteBuffer map(File file) throws IOException {
+    FileInputStream input = new FileInputStream(file);
+    try {
+      FileChannel channel = input.getChannel();
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      try {input.close();} catch (IOException ex) {}
+    }
+  }
+
+  @Override
+  public int read() {
+    return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+  }
+
+  @Override
+  public int read(byte[] bytes, int offset, int length) {
+    if (0 == length)
+      return 0;
+    if (!buffer.hasRemaining())
+      return -1;
+
+    length = Math.min(length, buffer.remaining());
+    buffer.get(bytes, offset, length);
+    return length;
+  }
+
+  @Override
+  public long skip(long count) {
+    int skipped = (int) Math.max(0, Math.min(count, buffer.remaining()));
+    buffer.position(buffer.position() + skipped);
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return buffer.remaining();
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  @Override
+  public void mark(int readLimit) {
+    mark = buffer.position();
+  }
+
+  @Override
+  public void reset() {
+    buffer.position(mark);
+  }
+
+  /**
+   * Returns a stream of the rest of this buffer decrypted with the given
+   * cipher, and moves this stream to the end of the buffer.  Unlike a
+   * CipherInputStream, the cipher reads straight from the buffer in large
+   * steps instead of from a copy made 512 bytes at a time.
+   *
+   * Like CipherInputStream, closing the returned stream finalizes the
+   * cipher, so that it can be reused even if not everything was read.
+   *
+   * @param cipher The cipher to decrypt with, initialized for decryption.
+   * @return A stream of the plaintext.
+   */
+  InputStream decrypt(Cipher cipher) {
+    ByteBuffer ciphertext = buffer.slice();
+    buffer.position(buffer.limit());
+    return new DecryptingInputStream(ciphertext, cipher);
+  }
+
+  /** The stream returned by decrypt(). */
+  private static final class DecryptingInputStream extends InputStream {
+    private final ByteBuffer ciphertext;
+    private final Cipher cipher;
+    private ByteBuffer plaintext;
+    private boolean isFinished;
+
+    DecryptingInputStream(ByteBuffer ciphertext, Cipher cipher) {
+      this.ciphertext = ciphertext;
+      this.cipher = cipher;
+      plaintext = ByteBuffer.allocate(0);
+    }
+
+    /**
+     * Decrypts the next step of the ciphertext, if the plaintext decrypted
+     * so far has all been read.
+     *
+     * @return False at the end of the plaintext.
+     * @throws IOException
+     */
+    private boolean fill() throws IOException {
+      while (!plaintext.hasRemaining()) {
+        if (isFinished)
+          return false;
+
+        int length = Math.min(DECRYPT_STEP, ciphertext.remaining());
+        ByteBuffer step = ciphertext.duplicate();
+        step.limit(step.position() + length);
+        ciphertext.position(step.limit());
+
+        int size = cipher.getOutputSize(length);
+        if (plaintext.capacity() < size)
+          plaintext = ByteBuffer.allocate(size);
+        plaintext.clear();
+        try {
+          if (ciphertext.hasRemaining()) {
+            cipher.update(step, plaintext);
+          } else {
+            isFinished = true;
+            cipher.doFinal(step, plaintext);
+          }
+        } catch (GeneralSecurityException ex) {
+          isFinished = true;
+          throw new IOException("Cannot decrypt: " + ex.getMessage());
+        } finally {
+          plaintext.flip();
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return fill() ? plaintext.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      if (0 == length)
+        return 0;
+      if (!fill())
+        return -1;
+
+      length = Math.min(length, plaintext.remaining());
+      plaintext.get(bytes, offset, length);
+      return length;
+    }
+
+    @Override
+    public int available() {
+      return plaintext.remaining();
+    }
+
+    @Override
+    public void close() {
+      if (!isFinished) {
+        isFinished = true;
+        try {cipher.doFinal();} catch (GeneralSecurityException ex) {}
+      }
+    }
+  }
+}
@@ -0,0 +1,188 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Indexes of the secrets by username, email, email domain and time of last
+ * change, for the predicates of SecretQuery.  Each index is a list of keys
+ * kept sorted, with the secret of each key at the same position, like the
+ * sort keys of SecretsListAdapter.  The secrets with keys in a range are
+ * then found, and counted, with two binary searches.
+ *
+ * Usernames and emails are folded like sort keys, so predicates ignore
+ * case.  The domain of an email is what follows its last '@', or empty if
+ * it has none.
+ *
+ * The indexes are not thread safe: SecretsListAdapter only uses them with
+ * the lock of its secrets held.
+ *
+ * @author rogerta
+ */
+final class FieldIndex {
+  /** The fields indexed. */
+  static final int USERNAME = 0;
+  static final int EMAIL = 1;
+  static final int DOMAIN = 2;
+  static final int CHANGED = 3;
+
+  /** One index: sorted keys, and the secret of each at the same position. */
+  private static final class Sorted<K extends Comparable<K>> {
+    final ArrayList<K> keys;
+    final ArrayList<Secret> secrets;
+
+    /** Creates an index of the keys of the secrets at the same position. */
+    Sorted(final List<K> keys, List<Secret> secrets) {
+      // Sorting once is O(n log n), where adding each in turn is O(n^2).
+      Integer[] order = new Integer[keys.size()];
+      for (int i = 0; i < order.length; ++i)
+        order[i] = i;
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          return keys.get(a).compareTo(keys.get(b));
+        }
+      });
+
+      this.keys = new ArrayList<K>(order.length);
+      this.secrets = new ArrayList<Secret>(order.length);
+      for (int i : order) {
+        this.keys.add(keys.get(i));
+        this.secrets.add(secrets.get(i));
+      }
+    }
+
+    void add(K key, Secret secret) {
+      int i = SecretsListAdapter.findSortKey(keys, key, true);
+      keys.add(i, key);
+      secrets.add(i, secret);
+    }
+
+    void remove(K key, Secret secret) {
+      for (int i = SecretsListAdapter.findSortKey(keys, key, false);
+           i < keys.size() && 0 == keys.get(i).compareTo(key); ++i) {
+        if (secrets.get(i) == secret) {
+          keys.remove(i);
+          secrets.remove(i);
+          return;
+        }
+      }
+
+      // The key of the secret changed since it was added, so look for it
+      // everywhere.
+      for (int i = 0; i < secrets.size(); ++i) {
+        if (secrets.get(i) == secret) {
+          keys.remove(i);
+          secrets.remove(i);
+          return;
+        }
+      }
+    }
+  }
+
+  private final Sorted<String> usernames;
+  private final Sorted<String> emails;
+  private final Sorted<String> domains;
+  private final Sorted<Long> times;
+
+  /** Creates the indexes of the given secrets. */
+  FieldIndex(List<Secret> secrets) {
+    ArrayList<String> usernameKeys = new ArrayList<String>(secrets.size());
+    ArrayList<String> emailKeys = new ArrayList<String>(secrets.size());
+    ArrayList<String> domainKeys = new ArrayList<String>(secrets.size());
+    ArrayList<Long> timeKeys = new ArrayList<Long>(secrets.size());
+    for (Secret secret : secrets) {
+      usernameKeys.add(getKey(USERNAME, secret));
+      emailKeys.add(getKey(EMAIL, secret));
+      domainKeys.add(getKey(DOMAIN, secret));
+      timeKeys.add(secret.getLastChangedTime());
+    }
+
+    usernames = new Sorted<String>(usernameKeys, secrets);
+    emails = new Sorted<String>(emailKeys, secrets);
+    domains = new Sorted<String>(domainKeys, secrets);
+    times = new Sorted<Long>(timeKeys, secrets);
+  }
+
+  /**
+   * Returns the key of a secret for the given text field: USERNAME, EMAIL
+   * or DOMAIN.
+   */
+  static String getKey(int field, Secret secret) {
+    switch (field) {
+      case USERNAME:
+        return SecretsListAdapter.getSortKey(secret.getUsername());
+      case EMAIL:
+        return SecretsListAdapter.getSortKey(secret.getEmail());
+      case DOMAIN:
+        String email = secret.getEmail();
+        return SecretsListAdapter.getSortKey(
+            email.substring(email.lastIndexOf('@') + 1));
+      default:
+        throw new IllegalArgumentException("Not a text field: " + field);
+    }
+  }
+
+  /** Adds a secret to the indexes. */
+  void add(Secret secret) {
+    usernames.add(getKey(USERNAME, secret), secret);
+    emails.add(getKey(EMAIL, secret), secret);
+    domains.add(getKey(DOMAIN, secret), secret);
+    times.add(secret.getLastChangedTime(), secret);
+  }
+
+  /** Removes a secret from the indexes, if it is there. */
+  void remove(Secret secret) {
+    usernames.remove(getKey(USERNAME, secret), secret);
+    emails.remove(getKey(EMAIL, secret), secret);
+    domains.remove(getKey(DOMAIN, secret), secret);
+    times.remove(secret.getLastChangedTime(), secret);
+  }
+
+  /**
+   * Returns the secrets whose key for a text field equals, or starts with,
+   * the given value.  This takes O(log n), and returns a view of the index
+   * valid until it changes.
+   *
+   * @param field USERNAME, EMAIL or DOMAIN.
+   * @param value The folded value to look for.
+   * @param isPrefix Whether keys starting with the value match.
+   */
+  List<Secret> find(int field, String value, boolean isPrefix) {
+    Sorted<String> index = USERNAME == field ? usernames
+        : (EMAIL == field ? emails : domains);
+    int start = SecretsListAdapter.findSortKey(index.keys, value, false);
+    int end = isPrefix
+        ? SecretsListAdapter.findPrefixEnd(index.keys, value, start)
+        : SecretsListAdapter.findSortKey(index.keys, value, true);
+    return index.secrets.subList(start, end);
+  }
+
+  /**
+   * Returns the secrets last changed at or after from, and before to.
+   * This takes O(log n), and returns a view of the index valid until it
+   * changes.
+   */
+  List<Secret> findChanged(long from, long to) {
+    int start = SecretsListAdapter.findSortKey(times.keys, from, false);
+    int end = Math.max(start,
+                       SecretsListAdapter.findSortKey(times.keys, to, false));
+    return times.secrets.subList(start, end);
+  }
+}
@@ -16,6 +16,7 @@ package net.tawacentral.roger.secrets;
 
 import android.app.backup.BackupAgentHelper;
 import android.app.backup.BackupDataInput;
+import android.app.backup.BackupDataInputStream;
 import android.app.backup.BackupDataOutput;
 import android.app.backup.FileBackupHelper;
 import android.app.backup.FullBackupDataOutput;
@@ -23,6 +24,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Environment;
 import android.os.ParcelFileDescriptor;
+import android.util.JsonReader;
 import android.util.Log;
 
 import net.tawacentral.roger.secrets.SecurityUtils.CipherInfo;
@@ -32,26 +34,50 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 import javax.crypto.CipherOutputStream;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
 
 import au.com.bytecode.opencsv.CSVReader;
 import au.com.bytecode.opencsv.CSVWriter;
@@ -78,6 +104,131 @@ public class FileUtils {
     }
     public byte[] salt;
     public int rounds;
+    /**
+     * Value used to check the password, or null if the file was written
+     * before key checks were added.  See SecurityUtils.createKeyCheck().
+     */
+    public byte[] keyCheck;
+    /**
+     * The wrapped data key, or null if the file was written before wrapped
+     * keys were added.  See SecurityUtils.CipherInfo.
+     */
+    public byte[] wrappedKey;
+    /**
+     * The initial vector of the payload, or null if the file was written
+     * before keys were derived from the data key.  See
+     * SecurityUtils.CipherInfo.
+     */
+    public byte[] payloadIv;
+    /**
+     * Names of the chunk files holding the secrets, in order, or null if the
+     * file is not chunked.
+     */
+    public ArrayList<String> chunkNames;
+    /** How the payload is compressed, one of the COMPRESSION_* constants. */
+    public int compression;
+  }
+
+  /** Return value for the loadSecretsAnyVersion() function. */
+  public static class LoadedSecrets {
+    public LoadedSecrets(ArrayList<Secret> secrets, int format,
+                         CipherInfo info) {
+      this.secrets = secrets;
+      this.format = format;
+      this.info = info;
+    }
+    public ArrayList<Secret> secrets;
+    /** One of the FORMAT_* constants. */
+    public int format;
+    /** The ciphers that decrypted the file. */
+    public CipherInfo info;
+  }
+
+  /**
+   * The secrets file or a restore point, as listed in the manifest of
+   * restore points.  See RestorePointManifest.
+   */
+  public static class RestorePoint {
+    /** Value of the count and format when they are not known. */
+    public static final int UNKNOWN = -1;
+
+    public RestorePoint(String name, long time, long size, int count,
+                        int format, String hash) {
+      this.name = name;
+      this.time = time;
+      this.size = size;
+      this.count = count;
+      this.format = format;
+      this.hash = hash;
+    }
+
+    /**
+     * Name of the file, either an absolute path or the name of a file in
+     * the application's data directory.
+     */
+    public final String name;
+    /** When the file was written, in millis since the epoch. */
+    public final long time;
+    /** Size of the file in bytes, not counting its chunks. */
+    public final long size;
+    /** Number of secrets in the file, not counting deleted ones. */
+    public final int count;
+    /** One of the FORMAT_* constants. */
+    public final int format;
+    /**
+     * Digest of the contents of the file, or null if not known.  For
+     * chunked files, this is the digest of the chunk ids, which are hashes
+     * of the contents of the chunks, followed for delta restore points by
+     * a '+' and the digest of the part of the journal they refer to.  For
+     * restore points written before the manifest, it is FILE_HASH_PREFIX
+     * followed by the digest of the whole file.
+     */
+    public final String hash;
+
+    /** Returns a copy of this point for a file with another name. */
+    RestorePoint withName(String name) {
+      return new RestorePoint(name, time, size, count, format, hash);
+    }
+
+    /**
+     * Returns a copy of this point describing the given file, which was
+     * just written with the contents this point describes.
+     */
+    RestorePoint describing(File file) {
+      return new RestorePoint(file.getName(), file.lastModified(),
+                              file.length(), count, format, hash);
+    }
+
+    /** Does this point still describe the given file? */
+    boolean isCurrent(File file) {
+      return size == file.length() && time == file.lastModified();
+    }
+  }
+
+  /**
+   * An in-memory copy of the secrets file, read ahead of time by
+   * prefetchSecrets(), or a mapping of it made by openInput().
+   * The copy is only used while the file on disk still has the same size
+   * and modification time as when it was read.
+   */
+  private static class PrefetchedFile {
+    PrefetchedFile(String fileName, File file, ByteBuffer data) {
+      this.fileName = fileName;
+      this.length = file.length();
+      this.lastModified = file.lastModified();
+      this.data = data;
+    }
+
+    /** Is this still an exact copy of the given file? */
+    boolean isCurrent(String fileName, File file) {
+      return this.fileName.equals(fileName) && length == file.length() &&
+          lastModified == file.lastModified();
+    }
+
+    final String fileName;
+    final long length;
+    final long lastModified;
+    final ByteBuffer data;
   }
 
   /** Name of the preferences file for backup. */
@@ -96,6 +247,13 @@ public class FileUtils {
    */
   public static final String PREF_LAST_NAG_DATE = "last_nag_date";
 
+  /**
+   * Name of the restore point retention policy preference.  String value
+   * as written by RetentionPolicy.toString().  RetentionPolicy.DEFAULT is
+   * used if not set.
+   */
+  public static final String PREF_RETENTION_POLICY = "retention_policy";
+
   /** Name of the secrets file. */
   public static final String SECRETS_FILE_NAME = "secrets";
 
@@ -135,11 +293,226 @@ public class FileUtils {
   /** Tag for logging purposes. */
   public static final String LOG_TAG = "FileUtils";
 
-  /** Lock for accessing main secrets file. */
-  private static final Object lock = new Object();
+  /**
+   * Locks for accessing the data files, which fall in two groups:
+   *
+   * - the main secrets file and its journal, which change on every save.
+   * - the restore points and chunks, which are never modified once written,
+   *   and are only deleted by cleanupDataFiles() and deleteSecrets().
+   *
+   * A save only takes the write lock of the first group, since it creates
+   * chunks and restore points but never deletes any, so restore points can
+   * be read while the secrets are being saved.  Loading the main secrets
+   * file reads chunks too, so it takes both read locks.  When both locks
+   * are taken, secretsLock is always taken first.
+   */
+  private static final ReentrantReadWriteLock secretsLock =
+      new ReentrantReadWriteLock();
+  private static final ReentrantReadWriteLock archiveLock =
+      new ReentrantReadWriteLock();
+
+  /**
+   * Incremented when the write lock of the secrets file is taken and again
+   * when it is released, so it is odd while the file may be changing.  This
+   * lets getSaltAndRounds() read the header of the secrets file without
+   * locking, and only take the lock if a write may have interfered.
+   */
+  private static volatile int secretsVersion;
 
   private static final byte[] SIGNATURE = {0x22, 0x34, 0x56, 0x79};
 
+  /**
+   * Signature of files whose header continues past the rounds with a list
+   * of fields.  Each field is a one byte tag, a one byte length, and the
+   * value.  The list ends with a zero tag.  Unknown fields are skipped when
+   * reading.
+   */
+  private static final byte[] SIGNATURE_EXTENDED = {0x22, 0x34, 0x56, 0x7A};
+
+  /**
+   * Tags of the extended header fields.  Files with a payload initial
+   * vector also derive the keys of each cipher mode from their data key,
+   * see SecurityUtils.CipherInfo.
+   */
+  private static final int HEADER_END = 0;
+  private static final int HEADER_KEY_CHECK = 1;
+  private static final int HEADER_WRAPPED_KEY = 2;
+  private static final int HEADER_CHUNK_ID = 3;
+  private static final int HEADER_COMPRESSION = 4;
+  private static final int HEADER_PAYLOAD_IV = 5;
+
+  /**
+   * How the payload of a file is compressed before being encrypted.  Only
+   * the secrets of V4 files, which are written to the SD card, are
+   * compressed as a whole; the payload of a chunked file is too small to
+   * gain anything, and each chunk is compressed on its own instead.
+   */
+  private static final int COMPRESSION_NONE = 0;
+  private static final int COMPRESSION_DEFLATE = 1;
+
+  /** Secrets file formats, as detected by loadSecretsAnyVersion(). */
+  public static final int FORMAT_V1 = 1;
+  public static final int FORMAT_V2 = 2;
+  public static final int FORMAT_V3 = 3;
+  public static final int FORMAT_V4 = 4;
+  public static final int FORMAT_CHUNKED = 5;
+  public static final int FORMAT_BINARY = 6;
+
+  /**
+   * How the first decrypted block of each format starts.  V4 is a JSON
+   * object whose first key is the secrets array, a chunked file is a JSON
+   * object whose first key is the digest of its chunk ids, a binary file is
+   * a chunked file whose payload and chunks are in the binary format, and V2
+   * and V3 are java object streams.
+   */
+  private static final byte[] JSON_MAGIC =
+      "{\"secrets\"".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] CHUNKS_MAGIC =
+      "{\"chunks\"".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] OBJECT_STREAM_MAGIC =
+      {(byte) 0xAC, (byte) 0xED, 0x00, 0x05};
+  private static final byte[] BINARY_MAGIC = {0x00, 0x53, 0x42, 0x01};
+
+  /**
+   * How the plaintext of a compressed chunk starts.  The rest is the
+   * plaintext of the chunk compressed with raw deflate.
+   */
+  private static final byte[] DEFLATE_MAGIC = {0x00, 0x53, 0x5A, 0x01};
+
+  /**
+   * In the binary format, the secrets follow BINARY_MAGIC, each as a varint
+   * length and a record written by Secret.writeBinary().  The payload of
+   * the main file is a record holding the digest of the chunk ids, and a
+   * journal record holds the journal id and the secret.  See BinaryCodec.
+   *
+   * The payload of a delta restore point holds the digest of the chunk ids
+   * as TAG_DELTA_BASE instead, so that older versions refuse it rather than
+   * restore only its snapshot, followed by the length and the digest of the
+   * part of the journal to replay over the snapshot.
+   */
+  private static final int TAG_CHUNKS = 1;
+  private static final int TAG_DELTA_BASE = 2;
+  private static final int TAG_JOURNAL_LENGTH = 3;
+  private static final int TAG_JOURNAL_DIGEST = 4;
+  private static final int TAG_JOURNAL_ID = 1;
+  private static final int TAG_JOURNAL_SECRET = 2;
+
+  /** Size of a cipher block, for both the V2 and current ciphers. */
+  private static final int CIPHER_BLOCK_SIZE = 16;
+
+  /**
+   * Enough bytes to re-read the start of a file after finding out it has no
+   * header.
+   */
+  private static final int SNIFF_LIMIT = 4096;
+
+  /**
+   * Files at least this large are mapped into memory to be read.  Mapping a
+   * file costs a system call and page faults that only pay off compared to
+   * a buffered read once the file spans many pages, so the small main files
+   * of the chunked formats, and their chunks, are still read with streams.
+   * Decrypting from a mapping is about as fast as from a stream at 256 KB,
+   * and about a third faster from 1 MB up.
+   */
+  private static final long MAP_THRESHOLD = 256 * 1024;
+
+  /**
+   * Chunked secrets files store the secrets in separate chunk files, next to
+   * the main file.  The main file only holds the header, which lists the ids
+   * of the chunks in order, and an encrypted digest of that list.  Each chunk
+   * holds a range of the sorted secrets, encrypted and authenticated on its
+   * own.  Chunks are named after a MAC of their contents, so a save only
+   * needs to write the chunks that changed.  Chunks are never modified once
+   * written; restore points refer to the chunks they need, and chunks that
+   * no file refers to any more are deleted by cleanupDataFiles().
+   */
+  private static final String CHUNK_PREFIX = "chunk-";
+  private static final String JSON_CHUNKS_ID = "chunks";
+
+  /**
+   * A chunk ends after a secret whose description has a MAC with this many
+   * leading zero bits, so chunks hold 32 secrets on average.  Since this
+   * depends only on the description and the key, adding or removing a secret
+   * only affects the chunk it is in.
+   */
+  private static final int CHUNK_BOUNDARY_BITS = 5;
+  private static final int MAX_CHUNK_SIZE = 128;
+
+  /**
+   * Between full saves, changes to the secrets are appended to a journal
+   * file next to the chunked secrets file, the snapshot.  The journal starts
+   * with the digest of the chunk list of its snapshot, so that a journal
+   * left over from an older snapshot is never replayed, followed by records.
+   * Each record is a four byte length and a binary record encrypted and
+   * authenticated like a chunk, holding either a secret and its id, or only
+   * the id of a secret that was removed.  Ids are positions in the snapshot,
+   * and new secrets get ids after the last one.  When the journal has too
+   * many records, the next save compacts it into a new snapshot.
+   *
+   * Each save appended to the journal keeps the secrets as they were before
+   * it as a delta restore point: a main file listing the chunks of the
+   * snapshot, which refers to the part of the journal written until then.
+   * When the snapshot is replaced, its journal is renamed to an archive
+   * named after its base rather than deleted, and archives that no restore
+   * point refers to any more are deleted by cleanupDataFiles().
+   */
+  private static final String JOURNAL_FILE_NAME = "journal";
+  private static final String JOURNAL_ARCHIVE_PREFIX = "journal-";
+
+  /** Length of the base a journal starts with, a SHA-256 digest in hex. */
+  private static final int JOURNAL_BASE_LENGTH = 64;
+  private static final String JSON_JOURNAL_ID = "id";
+  private static final String JSON_JOURNAL_SECRET = "secret";
+
+  /**
+   * The journal is compacted when it has more records than this, or than
+   * a quarter of the number of secrets if that is larger.
+   */
+  private static final int JOURNAL_MIN_RECORDS = 64;
+
+  /** State of the journal of the secrets file, as of the last save. */
+  private static class JournalState {
+    /** The ciphers of the file. */
+    CipherInfo info;
+    /** Digest of the chunk list of the snapshot. */
+    String base;
+    /** The chunk list of the snapshot. */
+    List<String> chunkNames;
+    /** Number of secrets saved that are not deleted. */
+    int count;
+    /** Journal ids of the secrets saved, by identity. */
+    IdentityHashMap<Secret, Integer> ids;
+    /** The id given to the next new secret. */
+    int nextId;
+    /** Number of valid records in the journal. */
+    int records;
+    /** Length of the valid part of the journal, or zero if there is none. */
+    long length;
+    /** Digest of the valid part of the journal. */
+    MessageDigest digest;
+  }
+
+  /**
+   * The journal state of the secrets loaded or saved last, or null if the
+   * next save must write a full snapshot.  Written with the secrets lock
+   * held, for reading when loading and for writing when saving.
+   */
+  private static volatile JournalState journal;
+
+  /**
+   * The secrets file read ahead by prefetchSecrets(), or mapped by
+   * openInput(), if any.  Other files are never kept here, so that reading
+   * a restore point or a backup does not evict the secrets file.
+   */
+  private static volatile PrefetchedFile prefetched;
+
+  /**
+   * The manifest of restore points of the directory last saved to or
+   * cleaned up, if read.  It is immutable, and only replaced with the
+   * secrets write lock held.
+   */
+  private static volatile RestorePointManifest manifest;
+
   /** Does the secrets file exist? */
   public static boolean secretsExist(Context context) {
     // Instead of just checking for the existence of the secrets file
@@ -225,28 +598,106 @@ public class FileUtils {
     return false;
   }
 
-  /** Is the restore point too old? */
-  private static boolean isRestorePointTooOld(File file) {
-    long lastModified = file.lastModified();
-    long now = System.currentTimeMillis();
-    long twoDays = 2 * 24 * 60 * 60 * 1000;  // 2 days.
+  /**
+   * Gets the restore point retention policy chosen by the user.
+   *
+   * @param ctx A context to get the preferences from.
+   * @return The retention policy.
+   */
+  public static RetentionPolicy getRetentionPolicy(Context ctx) {
+    return RetentionPolicy.parse(ctx.getSharedPreferences(PREFS_FILE_NAME, 0)
+        .getString(PREF_RETENTION_POLICY, null));
+  }
+
+  /**
+   * Sets the restore point retention policy.  It applies from the next save
+   * or cleanup of the data files.
+   *
+   * @param ctx A context to get the preferences from.
+   * @param policy The retention policy.
+   */
+  public static void setRetentionPolicy(Context ctx, RetentionPolicy policy) {
+    ctx.getSharedPreferences(PREFS_FILE_NAME, 0).edit()
+        .putString(PREF_RETENTION_POLICY, policy.toString()).apply();
+  }
+
+  /**
+   * Deletes the restore points that the given policy does not keep.  Before
+   * applying the policy, a restore point holding the same secrets as the
+   * next one is deleted too, since restoring either gives the same result:
+   * of a run of identical points, only the most recent is kept.  Identical
+   * points already share their chunks, so this only saves their main files,
+   * but keeps them from taking the places the policy keeps.
+   *
+   * Only the manifest is read, so this takes O(n) and does not scan the
+   * directory.  The chunks that only the deleted points referred to are
+   * left for cleanupDataFiles() to delete.
+   *
+   * Must be called with both write locks held.
+   *
+   * @param points The manifest of restore points.
+   * @param policy The retention policy.
+   * @return The manifest without the deleted points.
+   */
+  private static RestorePointManifest deleteExpiredRestorePoints(
+      RestorePointManifest points, RetentionPolicy policy) {
+    ArrayList<RestorePoint> restorePoints = new ArrayList<RestorePoint>(
+        points.getPoints().size());
+    ArrayList<RestorePoint> expired = new ArrayList<RestorePoint>();
+    for (RestorePoint point : points.getPoints()) {
+      if (!point.name.startsWith(RP_PREFIX))
+        continue;
+
+      int last = restorePoints.size() - 1;
+      if (last >= 0 && isSameSecrets(restorePoints.get(last), point))
+        expired.add(restorePoints.remove(last));
+      restorePoints.add(point);
+    }
+    expired.addAll(policy.getExpired(restorePoints,
+                                     System.currentTimeMillis()));
 
-    return (now - lastModified) > twoDays;
+    HashSet<String> deleted = new HashSet<String>();
+    for (RestorePoint point : expired) {
+      new File(points.getDir(), point.name).delete();
+      deleted.add(point.name);
+    }
+
+    return deleted.isEmpty() ? points : points.without(deleted);
+  }
+
+  /**
+   * Do the given points hold the same secrets?  This is only known for
+   * points whose hash is known; the hash of a delta restore point includes
+   * the part of the journal it refers to.
+   */
+  private static boolean isSameSecrets(RestorePoint a, RestorePoint b) {
+    return null != a.hash && a.hash.equals(b.hash) && a.format == b.format;
   }
 
   /**
    * Get all existing restore points, including the restore file on the SD card
-   * if it exists.
+   * if it exists.  The restore points of the application's data directory
+   * are listed from the manifest, most recent first, without reading them.
    *
    * @param context Activity context in which the save is called.
    * @return A list of all possible restore points.
    */
-  public static List<String> getRestorePoints(Context context) {
-    String[] filenames = context.fileList();
-    ArrayList<String> list = new ArrayList<String>(filenames.length + 2);
+  public static List<RestorePoint> getRestorePoints(Context context) {
+    RestorePointManifest points = getManifest(
+        context.getFileStreamPath(SECRETS_FILE_NAME).getParentFile());
+    if (null == points) {
+      points = reconcileManifest(RestorePointManifest.empty(
+          context.getFileStreamPath(SECRETS_FILE_NAME).getParentFile()),
+          context.fileList());
+    }
+
+    List<RestorePoint> all = points.getPoints();
+    ArrayList<RestorePoint> list = new ArrayList<RestorePoint>(
+        all.size() + 2);
 
     if (restoreFileExist())
-      list.add(SECRETS_FILE_NAME_SDCARD);
+      list.add(describeFile(new File(SECRETS_FILE_NAME_SDCARD),
+                            SECRETS_FILE_NAME_SDCARD));
 
     // To ease restoring from Google Drive, look for a secrets file in the
     // downloads folder and add that option.
@@ -254,257 +705,1369 @@ public class FileUtils {
         Environment.DIRECTORY_DOWNLOADS);
     File rpDownload = new File(downloads, SECRETS_FILE_NAME);
     if (rpDownload.exists())
-      list.add(rpDownload.getAbsolutePath());
+      list.add(describeFile(rpDownload, rpDownload.getAbsolutePath()));
 
-    for (String filename : filenames) {
-      if (filename.startsWith(RP_PREFIX))
-        list.add(filename);
+    for (int i = all.size() - 1; i >= 0; --i) {
+      if (all.get(i).name.startsWith(RP_PREFIX))
+        list.add(all.get(i));
     }
 
     return list;
   }
 
+  /**
+   * Prefix of the hash of a restore point computed from the bytes of its
+   * file.  Two such points hold the same secrets if their files are the
+   * same.
+   */
+  private static final String FILE_HASH_PREFIX = "file:";
+
+  /**
+   * Describes a file that the manifest does not know about, from what the
+   * file system says.
+   */
+  private static RestorePoint describeFile(File file, String name) {
+    return new RestorePoint(name, file.lastModified(), file.length(),
+                            RestorePoint.UNKNOWN, RestorePoint.UNKNOWN, null);
+  }
+
+  /**
+   * Fills in the hashes of the restore points that the manifest does not
+   * know, written before it, from the bytes of their files.  Since the
+   * hashes are then kept in the manifest, each file is only read once.
+   * Points whose file cannot be read are left as they are.
+   *
+   * @param points The manifest of restore points.
+   * @return The manifest with the hashes filled in.
+   */
+  private static RestorePointManifest hashRestorePoints(
+      RestorePointManifest points) {
+    ArrayList<RestorePoint> list = new ArrayList<RestorePoint>(
+        points.getPoints().size());
+    boolean isChanged = false;
+    for (RestorePoint point : points.getPoints()) {
+      if (null == point.hash && point.name.startsWith(RP_PREFIX)) {
+        try {
+          MessageDigest digest = MessageDigest.getInstance("SHA-256");
+          digest.update(readFile(new File(points.getDir(), point.name)));
+          point = new RestorePoint(point.name, point.time, point.size,
+              point.count, point.format,
+              FILE_HASH_PREFIX + toHex(digest.digest()));
+          isChanged = true;
+        } catch (Exception ex) {
+          Log.e(LOG_TAG, "hashRestorePoints: cannot read " + point.name, ex);
+        }
+      }
+      list.add(point);
+    }
+    return isChanged ? RestorePointManifest.of(points.getDir(), list)
+                     : points;
+  }
+
+  /**
+   * Returns the manifest of restore points of the given directory.
+   *
+   * @param dir The directory holding the secrets file.
+   * @return The manifest, or null if it does not exist or cannot be read.
+   */
+  private static RestorePointManifest getManifest(File dir) {
+    RestorePointManifest current = manifest;
+    if (null == current || !current.getDir().equals(dir)) {
+      current = RestorePointManifest.read(dir);
+      if (null != current)
+        manifest = current;
+    }
+    return current;
+  }
+
+  /**
+   * Writes the given manifest, and makes it the current one.  The manifest
+   * only caches what the files say, so failing to write it is not an error.
+   *
+   * Must be called with the secrets write lock held.
+   */
+  private static void setManifest(RestorePointManifest points) {
+    try {
+      points.write();
+    } catch (IOException ex) {
+      Log.e(LOG_TAG, "setManifest", ex);
+    }
+    manifest = points;
+  }
+
+  /**
+   * Brings the given manifest up to date with the files of its directory.
+   * Points whose file no longer exists are dropped, as is the point of the
+   * secrets file if it was replaced, for example by a restore from an
+   * online backup.  Files that the manifest does not know about, written
+   * by an older version of Secrets or replaced, are described from what
+   * the file system says.  This takes O(n), and only asks the file system
+   * about the secrets file and the files the manifest does not know.
+   *
+   * @param points The manifest to update.
+   * @param filenames The names of the files in the directory.
+   * @return The updated manifest, or the given one if it was up to date.
+   */
+  private static RestorePointManifest reconcileManifest(
+      RestorePointManifest points, String[] filenames) {
+    File dir = points.getDir();
+    HashSet<String> names = new HashSet<String>();
+    for (String filename : filenames) {
+      if (SECRETS_FILE_NAME.equals(filename) ||
+          filename.startsWith(RP_PREFIX)) {
+        names.add(filename);
+      }
+    }
+
+    ArrayList<RestorePoint> list = new ArrayList<RestorePoint>(names.size());
+    for (RestorePoint point : points.getPoints()) {
+      if (!names.remove(point.name))
+        continue;
+      if (SECRETS_FILE_NAME.equals(point.name) &&
+          !point.isCurrent(new File(dir, point.name))) {
+        names.add(point.name);
+        continue;
+      }
+      list.add(point);
+    }
+
+    if (names.isEmpty() && list.size() == points.getPoints().size())
+      return points;
+
+    for (String name : names)
+      list.add(describeFile(new File(dir, name), name));
+    return RestorePointManifest.of(dir, list);
+  }
+
   /**
    * Cleanup any residual data files from a previous bad run, if any.  The
    * algorithm is as follows:
    *
    * - delete any file with "new" in the name.  These are possibly partial
    *   writes, so their contents is undefined.
+   * - bring the manifest of restore points up to date with the files, and
+   *   hash the restore points it did not know about.
    * - if no secrets file exists, rename the most recent auto restore point
    *   file to secrets.
-   * - if too many auto restore point files exist, delete the extra ones.
-   *   However, don't delete any auto-backups younger than 48 hours.
+   * - delete the auto restore point files that hold the same secrets as
+   *   the next one, or that the retention policy does not keep.  See
+   *   RetentionPolicy.
+   * - archive the journal if it belongs to another version of the secrets
+   *   file.
+   * - delete the chunk files and journal archives that no remaining file
+   *   refers to.
+   *
+   * The directory is listed once, and the times of the restore points come
+   * from the manifest, which is kept from oldest to most recent, so this
+   * takes O(n).  It still reads the headers of the restore points, and the
+   * first time, the restore points written before the manifest, so it is
+   * meant to be called from a background thread.  A missing secrets file is
+   * recovered by recoverSecretsFile() before the secrets are unlocked.
    *
    * @param context Activity context in which the save is called.
    */
   public static void cleanupDataFiles(Context context) {
     Log.d(LOG_TAG, "FileUtils.cleanupDataFiles");
-    synchronized (lock) {
+    lockSecretsForWriting();
+    archiveLock.writeLock().lock();
+    try {
       String[] filenames = context.fileList();
-      int oldCount = filenames.length;
-      boolean secretsFileExists = context.getFileStreamPath(SECRETS_FILE_NAME)
-          .exists();
-
-      // Cleanup any partial saves and find the most recent auto-backup file.
-      {
-        File mostRecent = null;
-        int mostRecentIndex = -1;
-        for (int i = 0; i < filenames.length; ++i) {
-          String filename = filenames[i];
-          if (0 == filename.indexOf("new")) {
-            // This is a partial write file, probably corrupted.  Delete it.
-            context.deleteFile(filename);
-            --oldCount;
-            filenames[i] = null;
-          } else if (filename.startsWith(RP_PREFIX)) {
-            // This is an auto-backup file.  Remember most recent.
-            if (!secretsFileExists) {
-              File f = context.getFileStreamPath(filename);
-              if (null == mostRecent ||
-                  f.lastModified() > mostRecent.lastModified()) {
-                mostRecent = f;
-                mostRecentIndex = i;
-              }
-            }
-          } else {
-            --oldCount;
-            filenames[i] = null;
-          }
-        }
+      File dir = context.getFileStreamPath(SECRETS_FILE_NAME).getParentFile();
 
-        // If we don't have a secrets file but found an auto-backup file,
-        // rename the more recent auto-backup to secrets.
-        if (null != mostRecent) {
-          mostRecent.renameTo(context.getFileStreamPath(SECRETS_FILE_NAME));
-          --oldCount;
-          filenames[mostRecentIndex] = null;
-        }
+      // Cleanup any partial saves.  These are probably corrupted.
+      for (String filename : filenames) {
+        if (0 == filename.indexOf("new"))
+          context.deleteFile(filename);
       }
 
-      // If there are too many old files, delete the oldest extra ones.
-      while (oldCount > 10) {
-        File oldest = null;
-        int oldestIndex = -1;
+      RestorePointManifest current = getManifest(dir);
+      RestorePointManifest points = hashRestorePoints(reconcileManifest(
+          null == current ? RestorePointManifest.empty(dir) : current,
+          filenames));
 
-        for (int i = 0; i < filenames.length; ++i) {
-          String filename = filenames[i];
-          if (null == filename)
-            continue;
+      points = renameMostRecentRestorePoint(context, points);
+      points = deleteExpiredRestorePoints(points, getRetentionPolicy(context));
+      if (points != current)
+        setManifest(points);
 
-          File f = context.getFileStreamPath(filename);
-          if (null == oldest || f.lastModified() < oldest.lastModified()) {
-            oldest = f;
-            oldestIndex = i;
-          }
-        }
+      archiveStaleJournal(context);
+      deleteUnusedChunks(context);
+    } finally {
+      archiveLock.writeLock().unlock();
+      unlockSecretsForWriting();
+    }
+  }
 
-        if (null != oldest) {
-          // If the oldest file is not too old, then just break out of the
-          // loop.  We don't want to delete any "old" files that are too
-          // recent.
-          if (!FileUtils.isRestorePointTooOld(oldest))
-            break;
+  /**
+   * Renames the most recent auto restore point to the secrets file if there
+   * is no secrets file, for example because a save was interrupted.  This
+   * only does any I/O when the secrets file is missing, so it is called from
+   * the UI thread before deciding whether this is a first run, and before
+   * the secrets are unlocked.  The rest of the cleanup is done by
+   * cleanupDataFiles().
+   *
+   * @param context Activity context in which the cleanup is called.
+   */
+  public static void recoverSecretsFile(Context context) {
+    if (context.getFileStreamPath(SECRETS_FILE_NAME).exists())
+      return;
 
-          oldest.delete();
-          --oldCount;
-          filenames[oldestIndex] = null;
-        }
+    Log.d(LOG_TAG, "FileUtils.recoverSecretsFile");
+    lockSecretsForWriting();
+    try {
+      File dir = context.getFileStreamPath(SECRETS_FILE_NAME).getParentFile();
+      RestorePointManifest current = getManifest(dir);
+      RestorePointManifest points = renameMostRecentRestorePoint(context,
+          reconcileManifest(null == current ? RestorePointManifest.empty(dir)
+                                            : current, context.fileList()));
+      if (points != current)
+        setManifest(points);
+    } finally {
+      unlockSecretsForWriting();
+    }
+  }
+
+  /**
+   * If the manifest has no secrets file but has auto restore points, renames
+   * the most recent one to the secrets file.
+   *
+   * Must be called with the secrets write lock held.
+   *
+   * @return The manifest with the restore point renamed, or the given one.
+   */
+  private static RestorePointManifest renameMostRecentRestorePoint(
+      Context context, RestorePointManifest points) {
+    List<RestorePoint> list = points.getPoints();
+    if (null == points.get(SECRETS_FILE_NAME) && !list.isEmpty()) {
+      String mostRecent = list.get(list.size() - 1).name;
+      if (context.getFileStreamPath(mostRecent).renameTo(
+          context.getFileStreamPath(SECRETS_FILE_NAME))) {
+        points = points.renamed(mostRecent, SECRETS_FILE_NAME);
       }
     }
+    return points;
   }
 
   /**
-   * Gets the salt and rounds already in use on this device, or null if none
-   * exists.
+   * Archives the journal if it was not written for the current secrets file,
+   * for example because a save was interrupted just after writing a new
+   * snapshot, or the secrets file was replaced by a restore point.  Delta
+   * restore points may still refer to it.
    *
-   * @param context Activity context in which the save is called.
-   * @param path The file to read the salt and rounds from.  Can either be the
-   *     string SECRETS_FILE_NAME_SDCARD, SECRETS_FILE_NAME, or the  name of a
-   *     restore point.
-   * @return the salt and rounds
+   * Must be called with the secrets write lock held.
+   *
+   * @param context Activity context in which the cleanup is called.
    */
-  public static SaltAndRounds getSaltAndRounds(Context context, String path) {
-    // The salt is stored as a byte array at the start of the secrets file.
-    FileInputStream input = null;
+  private static void archiveStaleJournal(Context context) {
+    File journalFile = context.getFileStreamPath(JOURNAL_FILE_NAME);
+    if (!journalFile.exists())
+      return;
+
+    InputStream input = null;
+    boolean stale = true;
     try {
-      input = path.startsWith("/")
-          ? new FileInputStream(path)
-          : context.openFileInput(path);
-      return getSaltAndRounds(input);
+      input = context.openFileInput(SECRETS_FILE_NAME);
+      SaltAndRounds pair = getSaltAndRounds(input);
+      String base = digestChunkNames(null == pair.chunkNames
+          ? new ArrayList<String>() : pair.chunkNames);
+      stale = !base.equals(readJournalBase(journalFile));
     } catch (Exception ex) {
-      Log.e(LOG_TAG, "getSaltAndRounds", ex);
+      Log.e(LOG_TAG, "archiveStaleJournal", ex);
     } finally {
       try {if (null != input) input.close();} catch (IOException ex) {}
     }
-    return new SaltAndRounds(null, 0);
+
+    if (stale) {
+      Log.d(LOG_TAG, "FileUtils.archiveStaleJournal: archiving");
+      archiveJournal(journalFile);
+      journal = null;
+    }
   }
 
   /**
-   * Gets the salt and rounds already in use on this device, or null if none
-   * exists.
-   *
-   * @param input The stream to read the salt and rounds from.
-   * @return the salt and rounds
+   * Returns the base a journal starts with, or null if it is too short to
+   * have one.
    *
    * @throws IOException
    */
-  public static SaltAndRounds getSaltAndRounds(InputStream input)
-      throws IOException {
-    // The salt is stored as a byte array at the start of the secrets file.
-    byte[] signature = new byte[SIGNATURE.length];
-    byte[] salt = null;
-    int rounds = 0;
-    input.read(signature);
-    if (Arrays.equals(signature, SIGNATURE)) {
-      int length = input.read();
-      salt = new byte[length];
-      input.read(salt);
-      rounds = input.read();
-      if (rounds < 4 || rounds > 31) {
-        salt = null;
-        rounds = 0;
-      }
+  private static String readJournalBase(File journalFile) throws IOException {
+    byte[] header = new byte[JOURNAL_BASE_LENGTH];
+    DataInputStream input = new DataInputStream(
+        new FileInputStream(journalFile));
+    try {
+      input.readFully(header);
+      return new String(header, StandardCharsets.US_ASCII);
+    } catch (EOFException ex) {
+      return null;
+    } finally {
+      try {input.close();} catch (IOException ex) {}
     }
+  }
 
-    return new SaltAndRounds(salt, rounds);
+  /**
+   * Returns the name of an archived journal of the given base.  Since a
+   * snapshot can be written again with the same chunks, a base can have
+   * several archives, numbered from zero.
+   */
+  private static String getJournalArchiveName(String base, int index) {
+    return JOURNAL_ARCHIVE_PREFIX + base + (0 == index ? "" : "-" + index);
   }
 
   /**
-   * Saves the secrets to file using the password retrieved from the user.
-   *
-   * @param context Activity context in which the save is called.
-   * @param existing The file to save into.
-   * @param cipher The encryption cipher to use with the file.
-   * @param salt The salt used to create the cipher.
-   * @param rounds The number of rounds for bcrypt.
-   * @param secrets The collection of secrets to save.
-   * @return True if saved successfully.
+   * Renames a journal that no longer belongs to the secrets file to a new
+   * archive, so that the delta restore points of its snapshot can still be
+   * restored.  A journal without a base holds nothing, and is deleted.
+   * Must be called with the secrets write lock held.
    */
-  public static int saveSecrets(Context context,
-                                File existing,
-                                Cipher cipher,
-                                byte[] salt,
-                                int rounds,
-                                ArrayList<Secret> secrets) {
-    Log.d(LOG_TAG, "FileUtils.saveSecrets");
-    synchronized (lock) {
-      Log.d(LOG_TAG, "FileUtils.saveSecrets: got lock");
+  private static void archiveJournal(File journalFile) {
+    try {
+      String base = readJournalBase(journalFile);
+      if (null != base) {
+        File dir = journalFile.getParentFile();
+        File archive = new File(dir, getJournalArchiveName(base, 0));
+        for (int i = 1; archive.exists(); ++i)
+          archive = new File(dir, getJournalArchiveName(base, i));
+        if (journalFile.renameTo(archive))
+          return;
+      }
+    } catch (FileNotFoundException ex) {
+      return;
+    } catch (IOException ex) {
+      Log.e(LOG_TAG, "archiveJournal", ex);
+    }
+    journalFile.delete();
+  }
 
-      // To be as safe as possible, for example to handle low space conditions,
-      // we will save the secrets to a file using the following steps:
-      //
-      //  1- write the secrets to a new temporary file (tempn)
-      //     on error: delete tempn
-      //  2- rename the existing secrets file, if any (to tempo)
-      //     on error: delete tempn
-      //  3- rename the new temporary file to the official file name
-      //     on error: rename tempo back to existing, delete tempn
-      //
-      // Old files will hang around for a while.  The cleanupDataFiles()
-      // method, which is called whenever Secrets is re-launched, will make
-      // sure that the old files don't accumulate indefinitely.
-      String prefix = MessageFormat.format(RP_PREFIX +
-          "{0,date,yy.MM.dd}-{0,time,HH:mm}", new Date(),
-          null);
-      File parent = existing.getParentFile();
-      File tempn = new File(parent, "new");
-      File tempo = new File(parent, prefix);
-      for (int i = 0; tempn.exists() || tempo.exists(); ++i) {
-        tempn = new File(parent, "new" + i);
-        tempo = new File(parent, prefix + i);
+  /**
+   * Deletes the chunk files that neither the secrets file nor any restore
+   * point refers to.  The chunk names are stored in clear in the headers, so
+   * this does not need the password.  If any header cannot be read, nothing
+   * is deleted, since the chunks it refers to are not known.  Journal
+   * archives are deleted in the same way, once no file has the snapshot
+   * they were written for.
+   *
+   * Must be called with both write locks held, so that no save is writing
+   * chunks that are not referred to yet.
+   *
+   * @param context Activity context in which the cleanup is called.
+   */
+  private static void deleteUnusedChunks(Context context) {
+    String[] filenames = context.fileList();
+    HashSet<String> used = new HashSet<String>();
+    HashSet<String> bases = new HashSet<String>();
+    for (String filename : filenames) {
+      if (!SECRETS_FILE_NAME.equals(filename) &&
+          !filename.startsWith(RP_PREFIX)) {
+        continue;
       }
-      // Step 1
-      FileOutputStream fos = null;
+
+      InputStream input = null;
       try {
-        fos = new FileOutputStream(tempn);
-        writeSecrets(fos, cipher, salt, rounds, secrets);
+        input = context.openFileInput(filename);
+        SaltAndRounds pair = getSaltAndRounds(input);
+        if (null != pair.chunkNames) {
+          used.addAll(pair.chunkNames);
+          bases.add(digestChunkNames(pair.chunkNames));
+        }
       } catch (Exception ex) {
-        Log.d(LOG_TAG, "FileUtils.saveSecrets: could not write secrets file");
-        // NOTE: this delete() works, even though the file is still open.
-        tempn.delete();
-        return R.string.error_save_secrets;
+        Log.e(LOG_TAG, "deleteUnusedChunks: cannot read " + filename, ex);
+        return;
       } finally {
-        try {if (null != fos) fos.close();} catch (IOException ex) {}
+        try {if (null != input) input.close();} catch (IOException ex) {}
       }
+    }
 
-      // Step 2
-      if (existing.exists() && !existing.renameTo(tempo)) {
-        Log.d(LOG_TAG, "FileUtils.saveSecrets: could not move existing file");
-        tempn.delete();
-        return R.string.error_cannot_move_existing;
+    for (String filename : filenames) {
+      if (filename.startsWith(CHUNK_PREFIX) && !used.contains(filename)) {
+        context.deleteFile(filename);
+      } else if (filename.startsWith(JOURNAL_ARCHIVE_PREFIX)) {
+        int start = JOURNAL_ARCHIVE_PREFIX.length();
+        int end = Math.min(filename.length(), start + JOURNAL_BASE_LENGTH);
+        if (!bases.contains(filename.substring(start, end)))
+          context.deleteFile(filename);
       }
+    }
+  }
+
+  /**
+   * Reads the secrets file into memory so that a following load, as well as
+   * reading its salt and rounds, does not need to wait for the disk.  This is
+   * meant to be called from a background thread while the user is still
+   * typing his password.  Subsequent loads use the in-memory copy
+   * automatically for as long as the file is not modified.
+   *
+   * @param context Activity context in which the prefetch is called.
+   */
+  public static void prefetchSecrets(Context context) {
+    Log.d(LOG_TAG, "FileUtils.prefetchSecrets");
+    File file = context.getFileStreamPath(SECRETS_FILE_NAME);
+    secretsLock.readLock().lock();
+    try {
+      PrefetchedFile current = prefetched;
+      if (null != current && current.isCurrent(SECRETS_FILE_NAME, file))
+        return;
+
+      try {
+        prefetched = new PrefetchedFile(SECRETS_FILE_NAME, file,
+                                        readFile(file));
+      } catch (Exception ex) {
+        Log.e(LOG_TAG, "prefetchSecrets", ex);
+      }
+    } finally {
+      secretsLock.readLock().unlock();
+    }
+    Log.d(LOG_TAG, "FileUtils.prefetchSecrets: done");
+  }
+
+  /** Releases the memory held by any prefetched or mapped secrets file. */
+  public static void discardPrefetchedSecrets() {
+    prefetched = null;
+  }
+
+  /**
+   * Opens a secrets file for reading.  The in-memory copy made by
+   * prefetchSecrets() is used if it is still up to date.
+   *
+   * Files of at least MAP_THRESHOLD bytes are mapped into memory instead of
+   * being read through a buffered stream.  The mapping of the secrets file
+   * is kept like a prefetched copy, so that reading its salt and rounds and
+   * then loading it opens and maps the file only once.  The mappings of
+   * other files, such as restore points, are not kept.
+   *
+   * @param context Activity context in which the load is called.
+   * @param fileName Either an absolute path, or the name of a file in the
+   *     application's data directory.
+   * @return A stream positioned at the start of the file.  It supports
+   *     mark().
+   */
+  private static InputStream openInput(Context context, String fileName)
+      throws IOException {
+    File file = fileName.startsWith("/") ? new File(fileName)
+                                         : context.getFileStreamPath(fileName);
+    PrefetchedFile current = prefetched;
+    if (null != current && current.isCurrent(fileName, file)) {
+      Log.d(LOG_TAG, "FileUtils.openInput: using prefetched " + fileName);
+      return new ByteBufferInputStream(current.data);
+    }
+
+    if (file.length() >= MAP_THRESHOLD) {
+      // The mapping is only kept when the secrets lock is held.  An
+      // optimistic read without it could map the file just before a save
+      // replaces it, and keep the old bytes with the size and time of the
+      // new file.
+      ByteBuffer data = ByteBufferInputStream.map(file);
+      if (SECRETS_FILE_NAME.equals(fileName) &&
+          (secretsLock.getReadHoldCount() > 0 ||
+           secretsLock.isWriteLockedByCurrentThread())) {
+        prefetched = new PrefetchedFile(fileName, file, data);
+      }
+      return new ByteBufferInputStream(data);
+    }
+
+    return new BufferedInputStream(new FileInputStream(file));
+  }
+
+  /**
+   * Reads a whole file, mapping it into memory if it has at least
+   * MAP_THRESHOLD bytes.
+   *
+   * @param file The file to read.
+   * @return The contents of the file.
+   * @throws IOException
+   */
+  private static ByteBuffer readFile(File file) throws IOException {
+    if (file.length() >= MAP_THRESHOLD)
+      return ByteBufferInputStream.map(file);
+
+    DataInputStream input = new DataInputStream(new FileInputStream(file));
+    try {
+      byte[] data = new byte[(int) file.length()];
+      input.readFully(data);
+      return ByteBuffer.wrap(data);
+    } finally {
+      try {input.close();} catch (IOException ex) {}
+    }
+  }
+
+  /**
+   * Gets the salt and rounds already in use on this device, or null if none
+   * exists.
+   *
+   * @param context Activity context in which the save is called.
+   * @param path The file to read the salt and rounds from.  Can either be the
+   *     string SECRETS_FILE_NAME_SDCARD, SECRETS_FILE_NAME, or the  name of a
+   *     restore point.
+   * @return the salt and rounds
+   */
+  public static SaltAndRounds getSaltAndRounds(Context context, String path) {
+    // Restore points are never modified, so they can always be read without
+    // locking.  The secrets file is read optimistically: if no write started
+    // or ended while reading, the header read is the one of a complete file.
+    // Otherwise read it again with the lock held.
+    if (!SECRETS_FILE_NAME.equals(path))
+      return readSaltAndRounds(context, path, true);
+
+    int version = secretsVersion;
+    if (0 == (version & 1)) {
+      SaltAndRounds pair = readSaltAndRounds(context, path, false);
+      if (null != pair && version == secretsVersion)
+        return pair;
+    }
+
+    secretsLock.readLock().lock();
+    try {
+      return readSaltAndRounds(context, path, true);
+    } finally {
+      secretsLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Reads the salt and rounds of the given file.
+   *
+   * @param context Activity context in which the read is called.
+   * @param path The file to read the salt and rounds from.
+   * @param isFinal True if errors should be logged and reported as a missing
+   *     salt, false if null should be returned so that the read can be
+   *     tried again.
+   * @return the salt and rounds
+   */
+  private static SaltAndRounds readSaltAndRounds(Context context, String path,
+                                                 boolean isFinal) {
+    // The salt is stored as a byte array at the start of the secrets file.
+    InputStream input = null;
+    try {
+      input = openInput(context, path);
+      return getSaltAndRounds(input);
+    } catch (Exception ex) {
+      if (!isFinal)
+        return null;
+      Log.e(LOG_TAG, "getSaltAndRounds", ex);
+    } finally {
+      try {if (null != input) input.close();} catch (IOException ex) {}
+    }
+    return new SaltAndRounds(null, 0);
+  }
+
+  /**
+   * Takes the write lock of the secrets file, marking it as changing for
+   * optimistic readers.
+   */
+  private static void lockSecretsForWriting() {
+    secretsLock.writeLock().lock();
+    ++secretsVersion;
+  }
+
+  /** Releases the lock taken by lockSecretsForWriting(). */
+  private static void unlockSecretsForWriting() {
+    ++secretsVersion;
+    secretsLock.writeLock().unlock();
+  }
+
+  /**
+   * Gets the salt and rounds already in use on this device, or null if none
+   * exists.
+   *
+   * @param input The stream to read the salt and rounds from.
+   * @return the salt and rounds
+   *
+   * @throws IOException
+   */
+  public static SaltAndRounds getSaltAndRounds(InputStream input)
+      throws IOException {
+    // The salt is stored as a byte array at the start of the secrets file.
+    byte[] signature = new byte[SIGNATURE.length];
+    byte[] salt = null;
+    byte[] keyCheck = null;
+    byte[] wrappedKey = null;
+    byte[] payloadIv = null;
+    ArrayList<String> chunkNames = null;
+    int compression = COMPRESSION_NONE;
+    int rounds = 0;
+    input.read(signature);
+    boolean isExtended = Arrays.equals(signature, SIGNATURE_EXTENDED);
+    if (isExtended || Arrays.equals(signature, SIGNATURE)) {
+      int length = input.read();
+      salt = new byte[length];
+      input.read(salt);
+      rounds = input.read();
+      if (rounds < 4 || rounds > 31) {
+        salt = null;
+        rounds = 0;
+      }
+    }
+
+    if (isExtended) {
+      DataInputStream data = new DataInputStream(input);
+      for (int tag = data.readUnsignedByte(); HEADER_END != tag;
+           tag = data.readUnsignedByte()) {
+        byte[] value = new byte[data.readUnsignedByte()];
+        data.readFully(value);
+        if (HEADER_KEY_CHECK == tag)
+          keyCheck = value;
+        else if (HEADER_WRAPPED_KEY == tag)
+          wrappedKey = value;
+        else if (HEADER_CHUNK_ID == tag) {
+          if (null == chunkNames)
+            chunkNames = new ArrayList<String>();
+          chunkNames.add(CHUNK_PREFIX +
+              new String(value, StandardCharsets.US_ASCII));
+        } else if (HEADER_COMPRESSION == tag && value.length > 0) {
+          compression = value[0] & 0xFF;
+        } else if (HEADER_PAYLOAD_IV == tag) {
+          payloadIv = value;
+        }
+      }
+    }
+
+    SaltAndRounds pair = new SaltAndRounds(salt, rounds);
+    pair.keyCheck = keyCheck;
+    pair.wrappedKey = wrappedKey;
+    pair.payloadIv = payloadIv;
+    pair.chunkNames = chunkNames;
+    pair.compression = compression;
+    return pair;
+  }
+
+  /** Writes the contents of a file being saved by saveFile(). */
+  private interface FileContents {
+    void write(OutputStream output) throws IOException;
+  }
+
+  /**
+   * Saves the secrets to file using the password retrieved from the user.
+   * The file is saved in the chunked format, so only the chunks holding
+   * secrets that changed since the last save are written, along with the
+   * main file that lists them.
+   *
+   * @param context Activity context in which the save is called.
+   * @param existing The file to save into.
+   * @param info The ciphers to encrypt the file with.
+   * @param secrets The collection of secrets to save.
+   * @return True if saved successfully.
+   */
+  public static int saveSecrets(Context context,
+                                File existing,
+                                final CipherInfo info,
+                                List<Secret> secrets) {
+    Log.d(LOG_TAG, "FileUtils.saveSecrets");
+    lockSecretsForWriting();
+    try {
+      Log.d(LOG_TAG, "FileUtils.saveSecrets: got lock");
+      File journalFile = new File(existing.getParentFile(),
+                                  JOURNAL_FILE_NAME);
+      RetentionPolicy policy = getRetentionPolicy(context);
+      JournalState state = journal;
+      if (existing.exists() &&
+          appendJournal(existing, journalFile, info, secrets, policy)) {
+        return 0;
+      }
+
+      // Take a full snapshot.  Whatever happens, the journal no longer
+      // matches the secrets file.
+      journal = null;
+      for (Secret secret : secrets)
+        secret.setChanged(false);
+
+      // The chunks are written first.  If the save fails after this, the
+      // new chunks are simply not referred to by any file, and will be
+      // deleted by cleanupDataFiles().
+      final ArrayList<String> chunkNames;
+      String base;
+      try {
+        chunkNames = writeChunks(existing.getParentFile(), info, secrets);
+        base = digestChunkNames(chunkNames);
+
+        // If nothing changed, neither the file nor a restore point of it
+        // needs to be written.
+        if (isSaved(existing, journalFile, info, base)) {
+          Log.d(LOG_TAG, "FileUtils.saveSecrets: unchanged");
+          journal = createJournalState(info, base, chunkNames, secrets);
+          return 0;
+        }
+      } catch (IOException ex) {
+        Log.e(LOG_TAG, "saveSecrets", ex);
+        return R.string.error_save_secrets;
+      }
+
+      // If the journal has records, the old file alone does not hold the
+      // secrets as last saved.  They are kept as a delta restore point
+      // instead, which makes the old file redundant.  The restore point is
+      // encrypted like the old file, which may differ from the new one if
+      // the password changed.
+      boolean keepExisting = true;
+      if (existing.exists() && null != state && state.length > 0) {
+        keepExisting = !saveJournalRestorePoint(existing, journalFile,
+            state.info, state, journalFile.lastModified(), policy);
+      }
+
+      int r = saveFile(existing, new FileContents() {
+        @Override
+        public void write(OutputStream output) throws IOException {
+          writeChunkedSecrets(output, info, chunkNames);
+        }
+      }, new RestorePoint(null, 0, 0, countSecrets(secrets), FORMAT_BINARY,
+                          base), policy, keepExisting);
+
+      if (0 == r) {
+        if (journalFile.exists())
+          archiveJournal(journalFile);
+        try {
+          journal = createJournalState(info, base, chunkNames, secrets);
+        } catch (IOException ex) {
+          Log.e(LOG_TAG, "saveSecrets", ex);
+        }
+      }
+      return r;
+    } finally {
+      unlockSecretsForWriting();
+    }
+  }
+
+  /**
+   * Drops the journal state kept since the last load or save, so that the
+   * next save writes a full snapshot.  Called when the secrets are cleared
+   * from memory.
+   */
+  public static void discardJournal() {
+    lockSecretsForWriting();
+    try {
+      journal = null;
+    } finally {
+      unlockSecretsForWriting();
+    }
+  }
+
+  /**
+   * Does the secrets file already hold what a full save would write?  That
+   * is the case if it has no journal, lists the same chunks in the binary
+   * format, and has the same header.  The chunk ids are keyed hashes of the
+   * plaintext of the chunks, so the digest of their list recorded in the
+   * manifest compares the secrets without reading the file.
+   *
+   * @param existing The secrets file.
+   * @param journalFile The journal of the secrets file.
+   * @param info The ciphers the secrets are being saved with.
+   * @param base Digest of the chunk list being saved.
+   */
+  private static boolean isSaved(File existing, File journalFile,
+                                 CipherInfo info, String base) {
+    RestorePointManifest points = getManifest(existing.getParentFile());
+    RestorePoint point = null == points
+        ? null : points.get(existing.getName());
+    if (null == point || FORMAT_BINARY != point.format ||
+        !base.equals(point.hash) || !point.isCurrent(existing) ||
+        journalFile.exists()) {
+      return false;
+    }
+
+    InputStream input = null;
+    try {
+      input = new BufferedInputStream(new FileInputStream(existing));
+      SaltAndRounds pair = getSaltAndRounds(input);
+      return Arrays.equals(info.salt, pair.salt) &&
+          info.rounds == pair.rounds &&
+          Arrays.equals(info.wrappedKey, pair.wrappedKey);
+    } catch (IOException ex) {
+      Log.e(LOG_TAG, "isSaved", ex);
+      return false;
+    } finally {
+      try {if (null != input) input.close();} catch (IOException ex) {}
+    }
+  }
+
+  /** Returns the number of the given secrets that are not deleted. */
+  private static int countSecrets(List<Secret> secrets) {
+    int count = 0;
+    for (Secret secret : secrets) {
+      if (!secret.isDeleted())
+        ++count;
+    }
+    return count;
+  }
+
+  /**
+   * Creates the journal state for secrets just saved or loaded, with an
+   * empty journal.  The ids of the secrets are their positions in the list.
+   *
+   * @throws IOException
+   */
+  private static JournalState createJournalState(CipherInfo info,
+                                                 String base,
+                                                 List<String> chunkNames,
+                                                 List<Secret> secrets)
+      throws IOException {
+    JournalState state = new JournalState();
+    state.info = info;
+    state.base = base;
+    state.chunkNames = chunkNames;
+    state.count = countSecrets(secrets);
+    state.ids = new IdentityHashMap<Secret, Integer>(secrets.size());
+    for (int i = 0; i < secrets.size(); ++i)
+      state.ids.put(secrets.get(i), i);
+    state.nextId = secrets.size();
+    try {
+      state.digest = MessageDigest.getInstance("SHA-256");
+    } catch (GeneralSecurityException ex) {
+      throw new IOException("Cannot digest journal: " + ex.getMessage());
+    }
+    return state;
+  }
+
+  /**
+   * Appends the secrets that changed since the last save to the journal,
+   * so that only the changes are encrypted and written.  New and modified
+   * secrets are written whole, and secrets no longer in the list are
+   * written as removed.  The secrets as they were before are kept as a
+   * delta restore point.  Must be called with the secrets write lock held.
+   *
+   * @param existing The secrets file, the snapshot of the journal.
+   * @param journalFile The journal of the secrets file.
+   * @param info The ciphers to encrypt the records with.
+   * @param secrets The collection of secrets to save.
+   * @param policy The retention policy applied to the restore points once
+   *     saved.
+   * @return True if the changes were appended.  False if a full snapshot
+   *     must be written instead, because there is no journal for these
+   *     secrets, the journal is due for compaction, or the append failed.
+   */
+  private static boolean appendJournal(File existing, File journalFile,
+                                       CipherInfo info,
+                                       List<Secret> secrets,
+                                       RetentionPolicy policy) {
+    JournalState state = journal;
+    if (null == state || !state.info.chunkKey.equals(info.chunkKey))
+      return false;
+
+    // Find what changed, without writing anything yet.
+    IdentityHashMap<Secret, Integer> ids =
+        new IdentityHashMap<Secret, Integer>(secrets.size());
+    ArrayList<Secret> changed = new ArrayList<Secret>();
+    ArrayList<Integer> changedIds = new ArrayList<Integer>();
+    int nextId = state.nextId;
+    int known = 0;
+    for (Secret secret : secrets) {
+      Integer id = state.ids.get(secret);
+      if (null != id)
+        ++known;
+      if (null == id || secret.isChanged()) {
+        if (null == id)
+          id = nextId++;
+        changed.add(secret);
+        changedIds.add(id);
+      }
+      ids.put(secret, id);
+    }
+
+    // Secrets that were saved before but are no longer in the list are
+    // recorded as removed, with a null secret.
+    if (known < state.ids.size()) {
+      for (Map.Entry<Secret, Integer> entry : state.ids.entrySet()) {
+        if (!ids.containsKey(entry.getKey())) {
+          changed.add(null);
+          changedIds.add(entry.getValue());
+        }
+      }
+    }
+
+    if (changed.isEmpty())
+      return true;
+
+    int records = state.records + changed.size();
+    if (records > Math.max(JOURNAL_MIN_RECORDS, secrets.size() / 4)) {
+      Log.d(LOG_TAG, "FileUtils.appendJournal: compacting");
+      return false;
+    }
+
+    // The time the secrets were last saved, for their restore point.
+    long time = 0 == state.length ? existing.lastModified()
+                                  : journalFile.lastModified();
+
+    RandomAccessFile file = null;
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream output = new DataOutputStream(bytes);
+      if (0 == state.length)
+        output.write(state.base.getBytes(StandardCharsets.US_ASCII));
+      for (int i = 0; i < changed.size(); ++i) {
+        Secret secret = changed.get(i);
+        if (null != secret)
+          secret.setChanged(false);
+        byte[] record = SecurityUtils.encryptChunk(info.chunkKey,
+            getJournalRecordId(state.base, state.records + i),
+            createJournalRecord(changedIds.get(i), secret, info.fieldKey));
+        if (null == record)
+          throw new IOException("Cannot encrypt journal record");
+        output.writeInt(record.length);
+        output.write(record);
+      }
+      output.flush();
+
+      // Anything after the valid part of the journal is a partial record
+      // from an interrupted save, and is overwritten.
+      byte[] appended = bytes.toByteArray();
+      file = new RandomAccessFile(journalFile, "rw");
+      file.setLength(state.length);
+      file.seek(state.length);
+      file.write(appended);
+
+      // The restore point refers to the journal as it was before the
+      // append, which is still what the state describes.
+      saveJournalRestorePoint(existing, journalFile, info, state, time,
+                              policy);
+
+      state.length = file.getFilePointer();
+      state.digest.update(appended);
+      state.records = records;
+      state.ids = ids;
+      state.nextId = nextId;
+      state.count = countSecrets(secrets);
+      return true;
+    } catch (IOException ex) {
+      Log.e(LOG_TAG, "appendJournal", ex);
+      return false;
+    } finally {
+      try {if (null != file) file.close();} catch (IOException ex) {}
+    }
+  }
+
+  /**
+   * Keeps the secrets as of the last save as a delta restore point: the
+   * main file of their snapshot, referring to the valid part of the journal
+   * described by the given state.  Failing to keep it is logged, but does
+   * not fail the save.  Must be called with the secrets write lock held.
+   *
+   * @param existing The secrets file, the snapshot of the journal.
+   * @param journalFile The journal of the secrets file.
+   * @param info The ciphers of the secrets file.
+   * @param state The state of the journal as of the last save.
+   * @param time The time of the last save.
+   * @param policy The retention policy applied to the restore points once
+   *     saved.
+   * @return True if the restore point was saved.
+   */
+  private static boolean saveJournalRestorePoint(File existing,
+                                                 File journalFile,
+                                                 final CipherInfo info,
+                                                 final JournalState state,
+                                                 long time,
+                                                 RetentionPolicy policy) {
+    final String digest;
+    try {
+      digest = toHex(((MessageDigest) state.digest.clone()).digest());
+    } catch (CloneNotSupportedException ex) {
+      Log.e(LOG_TAG, "saveJournalRestorePoint", ex);
+      return false;
+    }
+
+    String prefix = getRestorePointPrefix();
+    File parent = existing.getParentFile();
+    File tempn = new File(parent, "new");
+    File file = new File(parent, prefix);
+    for (int i = 0; tempn.exists() || file.exists(); ++i) {
+      tempn = new File(parent, "new" + i);
+      file = new File(parent, prefix + i);
+    }
+
+    FileOutputStream fos = null;
+    try {
+      fos = new FileOutputStream(tempn);
+      writeChunkedSecrets(fos, info, state.chunkNames, state.length, digest);
+    } catch (IOException ex) {
+      Log.e(LOG_TAG, "saveJournalRestorePoint", ex);
+      tempn.delete();
+      return false;
+    } finally {
+      try {if (null != fos) fos.close();} catch (IOException ex) {}
+    }
+
+    if (!tempn.setLastModified(time) || !tempn.renameTo(file)) {
+      Log.d(LOG_TAG, "FileUtils.saveJournalRestorePoint: cannot rename");
+      tempn.delete();
+      return false;
+    }
+
+    String hash = 0 == state.length ? state.base : state.base + "+" + digest;
+    RestorePointManifest points = getManifest(parent);
+    if (null == points)
+      points = RestorePointManifest.empty(parent);
+    points = points.with(new RestorePoint(null, 0, 0, state.count,
+        FORMAT_BINARY, hash).describing(file));
+    setManifest(applyRetentionPolicy(points, policy));
+    return true;
+  }
+
+  /**
+   * Returns the plaintext of a journal record.
+   *
+   * @param id The journal id of the secret.
+   * @param secret The secret, or null if it was removed.
+   */
+  private static byte[] createJournalRecord(int id, Secret secret,
+                                            SecretKey key)
+      throws IOException {
+    BinaryCodec.Output record = new BinaryCodec.Output();
+    record.writeField(TAG_JOURNAL_ID, id);
+    if (null != secret) {
+      BinaryCodec.Output binarySecret = new BinaryCodec.Output();
+      secret.writeBinary(binarySecret, key);
+      record.writeField(TAG_JOURNAL_SECRET, binarySecret);
+    }
+    return record.toByteArray();
+  }
+
+  /**
+   * Returns the bytes a journal record is authenticated with, so that
+   * records cannot be moved to another position or another journal.
+   */
+  private static byte[] getJournalRecordId(String base, int index) {
+    return (base + ":" + index).getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Replays the journal of the secrets file over its snapshot, and makes
+   * the result the journal state for the next save.  Replay stops at the
+   * first record that is incomplete or cannot be decrypted, which can
+   * only be the result of an interrupted save; the next save overwrites
+   * it.
+   *
+   * @param context Activity context in which the load is called.
+   * @param base Digest of the chunk list of the snapshot.
+   * @param chunkNames The chunk list of the snapshot.
+   * @param snapshot The secrets of the snapshot, in order.
+   * @param info The ciphers of the file.
+   * @return The secrets with the journal applied.
+   * @throws IOException
+   */
+  private static ArrayList<Secret> replayJournal(Context context,
+                                                 String base,
+                                                 List<String> chunkNames,
+                                                 ArrayList<Secret> snapshot,
+                                                 CipherInfo info)
+      throws IOException {
+    ArrayList<Secret> byId = new ArrayList<Secret>(snapshot);
+    JournalState state = createJournalState(info, base, chunkNames, byId);
+    InputStream input = null;
+    try {
+      input = new BufferedInputStream(
+          context.openFileInput(JOURNAL_FILE_NAME));
+      applyJournal(input, state, byId, Long.MAX_VALUE);
+    } catch (FileNotFoundException ex) {
+      // No changes since the snapshot.
+    } finally {
+      try {if (null != input) input.close();} catch (IOException ex) {}
+    }
+
+    ArrayList<Secret> secrets = collectSecrets(byId, state);
+    journal = state;
+    return secrets;
+  }
+
+  /**
+   * Replays the part of a journal that a delta restore point refers to over
+   * the snapshot of the restore point.  The part is looked for in the
+   * journal of the secrets file, then in the archives of the snapshot, and
+   * must have the length and digest given by the restore point.
+   *
+   * @param dir The directory holding the restore point.
+   * @param base Digest of the chunk list of the snapshot.
+   * @param chunkNames The chunk list of the snapshot.
+   * @param snapshot The secrets of the snapshot, in order.
+   * @param info The ciphers of the restore point.
+   * @param length The length of the part of the journal to replay.
+   * @param digest The digest of the part of the journal to replay.
+   * @return The secrets with the journal applied.
+   * @throws IOException if the journal cannot be found.
+   */
+  private static ArrayList<Secret> replayJournalPart(File dir,
+                                                     String base,
+                                                     List<String> chunkNames,
+                                                     ArrayList<Secret> snapshot,
+                                                     CipherInfo info,
+                                                     long length,
+                                                     String digest)
+      throws IOException {
+    File file = new File(dir, JOURNAL_FILE_NAME);
+    for (int i = 0; ; ++i) {
+      if (file.length() >= length) {
+        ArrayList<Secret> byId = new ArrayList<Secret>(snapshot);
+        JournalState state = createJournalState(info, base, chunkNames, byId);
+        InputStream input = null;
+        try {
+          input = new BufferedInputStream(new FileInputStream(file));
+          applyJournal(input, state, byId, length);
+        } catch (FileNotFoundException ex) {
+          // Archived since it was checked.
+        } finally {
+          try {if (null != input) input.close();} catch (IOException ex) {}
+        }
+
+        if (length == state.length &&
+            digest.equals(toHex(state.digest.digest()))) {
+          return collectSecrets(byId, state);
+        }
+      }
+
+      file = new File(dir, getJournalArchiveName(base, i));
+      if (!file.exists())
+        throw new IOException("Journal of restore point not found");
+    }
+  }
+
+  /**
+   * Applies the records of a journal to the secrets of its snapshot, up to
+   * the first record that is incomplete or cannot be decrypted, or up to the
+   * given length.  Nothing is applied if the journal was written for
+   * another snapshot.
+   *
+   * @param input The journal, from its start.
+   * @param state The state of the journal, created for the snapshot.  Its
+   *     records, length and digest are advanced past the records applied.
+   * @param byId The secrets, indexed by journal id.
+   * @param limit The length of the journal to apply at most.
+   */
+  private static void applyJournal(InputStream input, JournalState state,
+                                   ArrayList<Secret> byId, long limit) {
+    DataInputStream data = new DataInputStream(input);
+    try {
+      byte[] header = new byte[state.base.length()];
+      data.readFully(header);
+      if (!state.base.equals(new String(header, StandardCharsets.US_ASCII)))
+        return;
+
+      state.length = header.length;
+      state.digest.update(header);
+      while (state.length < limit) {
+        int size = data.readInt();
+        if (size < 0 || state.length + 4 + size > limit)
+          break;
+        byte[] record = new byte[size];
+        data.readFully(record);
+        byte[] plaintext = SecurityUtils.decryptChunk(state.info.chunkKey,
+            getJournalRecordId(state.base, state.records), record);
+        applyJournalRecord(byId, plaintext, state.info.fieldKey);
+        ++state.records;
+        state.length += 4 + size;
+        state.digest.update(ByteBuffer.allocate(4).putInt(size).array());
+        state.digest.update(record);
+      }
+    } catch (Exception ex) {
+      // The end of the journal, or the start of an interrupted record.
+    }
+    Log.d(LOG_TAG, "applyJournal: " + state.records + " records");
+  }
+
+  /**
+   * Returns the secrets remaining after replaying a journal, in order, and
+   * records their ids in the state of the journal.
+   *
+   * @param byId The secrets, indexed by journal id.
+   * @param state The state of the journal after replaying it.
+   */
+  private static ArrayList<Secret> collectSecrets(ArrayList<Secret> byId,
+                                                  JournalState state) {
+    ArrayList<Secret> secrets = new ArrayList<Secret>(byId.size());
+    state.ids.clear();
+    for (int i = 0; i < byId.size(); ++i) {
+      Secret secret = byId.get(i);
+      if (null != secret) {
+        secret.setChanged(false);
+        secrets.add(secret);
+        state.ids.put(secret, i);
+      }
+    }
+    state.nextId = byId.size();
+    state.count = countSecrets(secrets);
+    return secrets;
+  }
+
+  /**
+   * Applies one journal record to the secrets, indexed by journal id.  A
+   * null entry is a secret that was removed.  Records are in the binary
+   * format, or in JSON if written by an older version.
+   */
+  private static void applyJournalRecord(ArrayList<Secret> byId,
+                                         byte[] plaintext,
+                                         SecretKey key) throws IOException {
+    int id = -1;
+    Secret secret = null;
+    if (plaintext.length > 0 && '{' == plaintext[0]) {
+      JsonReader reader = new JsonReader(new InputStreamReader(
+          new ByteArrayInputStream(plaintext), StandardCharsets.UTF_8));
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if (JSON_JOURNAL_ID.equals(name))
+          id = reader.nextInt();
+        else if (JSON_JOURNAL_SECRET.equals(name))
+          secret = Secret.fromJSON(reader);
+        else
+          reader.skipValue();
+      }
+      reader.endObject();
+    } else {
+      BinaryCodec.Input record = new BinaryCodec.Input(plaintext, 0,
+                                                       plaintext.length);
+      while (record.hasRemaining()) {
+        int field = record.readKey();
+        switch (BinaryCodec.getTag(field)) {
+          case TAG_JOURNAL_ID:
+            id = record.readInt();
+            break;
+          case TAG_JOURNAL_SECRET:
+            secret = Secret.fromBinary(record.readRecord(), key);
+            break;
+          default:
+            record.skipField(field);
+            break;
+        }
+      }
+    }
+
+    if (id >= 0 && id < byId.size())
+      byId.set(id, secret);
+    else if (id == byId.size())
+      byId.add(secret);
+    else
+      throw new IOException("Bad journal id " + id);
+  }
+
+  /**
+   * Replaces a secrets file with new contents, keeping the old file as a
+   * restore point.  The caller must hold the secrets write lock.
+   *
+   * The manifest of restore points is updated: the point of the old file
+   * is renamed along with it, and the new file is described by the given
+   * point.
+   *
+   * @param existing The file to save into.
+   * @param contents Writes the new contents of the file.
+   * @param point The count, format and hash of the new contents.  Its name,
+   *     time and size are ignored.
+   * @param policy The retention policy applied to the restore points once
+   *     saved.
+   * @param keepExisting Whether to keep the old file as a restore point.  It
+   *     is deleted instead if a restore point already holds its secrets.
+   * @return Zero if saved successfully, otherwise the resource id of an
+   *     error message.
+   */
+  private static int saveFile(File existing, FileContents contents,
+                              RestorePoint point, RetentionPolicy policy,
+                              boolean keepExisting) {
+    // To be as safe as possible, for example to handle low space conditions,
+    // we will save the secrets to a file using the following steps:
+    //
+    //  1- write the secrets to a new temporary file (tempn)
+    //     on error: delete tempn
+    //  2- rename the existing secrets file, if any (to tempo)
+    //     on error: delete tempn
+    //  3- rename the new temporary file to the official file name
+    //     on error: rename tempo back to existing, delete tempn
+    //
+    // Old files are kept as restore points.  Once saved, the ones that the
+    // retention policy does not keep are deleted, so that they don't
+    // accumulate indefinitely.
+    String prefix = getRestorePointPrefix();
+    File parent = existing.getParentFile();
+    File tempn = new File(parent, "new");
+    File tempo = new File(parent, prefix);
+    for (int i = 0; tempn.exists() || tempo.exists(); ++i) {
+      tempn = new File(parent, "new" + i);
+      tempo = new File(parent, prefix + i);
+    }
+    // Step 1
+    FileOutputStream fos = null;
+    try {
+      fos = new FileOutputStream(tempn);
+      contents.write(fos);
+    } catch (Exception ex) {
+      Log.d(LOG_TAG, "FileUtils.saveFile: could not write secrets file");
+      // NOTE: this delete() works, even though the file is still open.
+      tempn.delete();
+      return R.string.error_save_secrets;
+    } finally {
+      try {if (null != fos) fos.close();} catch (IOException ex) {}
+    }
 
-      // Step 3
-      if (!tempn.renameTo(existing)) {
-        Log.d(LOG_TAG, "FileUtils.saveSecrets: could not move new file");
-        tempo.renameTo(existing);
-        tempn.delete();
-        return R.string.error_cannot_move_new;
-      }
+    // Step 2
+    boolean existed = existing.exists();
+    if (existed && !existing.renameTo(tempo)) {
+      Log.d(LOG_TAG, "FileUtils.saveFile: could not move existing file");
+      tempn.delete();
+      return R.string.error_cannot_move_existing;
+    }
+
+    // Step 3
+    if (!tempn.renameTo(existing)) {
+      Log.d(LOG_TAG, "FileUtils.saveFile: could not move new file");
+      tempo.renameTo(existing);
+      tempn.delete();
+      return R.string.error_cannot_move_new;
+    }
+
+    File dir = existing.getParentFile();
+    RestorePointManifest points = getManifest(dir);
+    if (null == points)
+      points = RestorePointManifest.empty(dir);
+    if (existed && !keepExisting) {
+      tempo.delete();
+      points = points.without(existing.getName());
+    } else if (existed) {
+      points = points.renamed(existing.getName(), tempo.getName());
+    }
+    points = points.with(point.describing(existing));
+    setManifest(applyRetentionPolicy(points, policy));
+
+    Log.d(LOG_TAG, "FileUtils.saveFile: done");
+    return 0;
+  }
+
+  /**
+   * Returns the name of a restore point made now, to which a number is
+   * appended if several are made in the same minute.
+   */
+  private static String getRestorePointPrefix() {
+    return MessageFormat.format(RP_PREFIX +
+        "{0,date,yy.MM.dd}-{0,time,HH:mm}", new Date(),
+        null);
+  }
 
-      Log.d(LOG_TAG, "FileUtils.saveSecrets: done");
-      return 0;
+  /**
+   * Deletes the restore points that the retention policy does not keep,
+   * unless a restore point is being read.  Rather than waiting for a restore
+   * to finish, they are left for the next save.  Must be called with the
+   * secrets write lock held.
+   *
+   * @param points The manifest of the restore points.
+   * @param policy The retention policy.
+   * @return The manifest without the restore points deleted.
+   */
+  private static RestorePointManifest applyRetentionPolicy(
+      RestorePointManifest points, RetentionPolicy policy) {
+    if (archiveLock.writeLock().tryLock()) {
+      try {
+        points = deleteExpiredRestorePoints(points, policy);
+      } finally {
+        archiveLock.writeLock().unlock();
+      }
     }
+    return points;
   }
 
   /**
    * Backup the secrets to SD card using the password retrieved from the user.
    *
    * @param context Activity context in which the backup is called.
-   * @param cipher The encryption cipher to use with the file.
-   * @param salt The salt used to create the cipher.
-   * @param rounds The number of rounds for bcrypt.
+   * @param info The ciphers to encrypt the file with.
    * @param secrets The list of secrets to save.
    * @return True if saved successfully
    */
   public static boolean backupSecrets(Context context,
-                                      Cipher cipher,
-                                      byte[] salt,
-                                      int rounds,
-                                      ArrayList<Secret> secrets) {
+                                      CipherInfo info,
+                                      List<Secret> secrets) {
     Log.d(LOG_TAG, "FileUtils.backupSecrets");
 
-    if (null == cipher)
+    if (null == info)
       return false;
 
     FileOutputStream output = null;
@@ -512,7 +2075,7 @@ public class FileUtils {
 
     try {
     	output = new FileOutputStream(SECRETS_FILE_NAME_SDCARD);
-      writeSecrets(output, cipher, salt, rounds, secrets);
+      writeSecrets(output, info, secrets);
       success = true;
     } catch (Exception ex) {
     } finally {
@@ -558,11 +2121,179 @@ public class FileUtils {
    * @return A list of loaded secrets.
    */
   public static ArrayList<Secret> loadSecrets(Context context) {
-    synchronized (lock) {
+    secretsLock.readLock().lock();
+    try {
       Log.d(LOG_TAG, "FileUtils.loadSecrets: got lock");
       return loadSecrets(context, SECRETS_FILE_NAME,
           SecurityUtils.getCipherInfo());
+    } finally {
+      secretsLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Opens the main secrets file with the given ciphers, whatever format it
+   * was saved in.  Unlike loadSecrets(Context), this does not depend on the
+   * global ciphers, so it may be called from a background thread before they
+   * are saved.
+   *
+   * @param context Activity context in which the load is called.
+   * @param info Ciphers created from the user's password.
+   * @param password The user's password, needed to create the older ciphers.
+   * @return The loaded secrets, the format of the file and the ciphers that
+   *     decrypted it, or null if the file could not be read.
+   */
+  public static LoadedSecrets loadSecretsAnyVersion(Context context,
+      CipherInfo info, String password) {
+    secretsLock.readLock().lock();
+    try {
+      Log.d(LOG_TAG, "FileUtils.loadSecretsAnyVersion: got lock");
+      return loadSecretsAnyVersion(context, SECRETS_FILE_NAME, info, password);
+    } finally {
+      secretsLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Opens a secrets file with the given ciphers, whatever format it was
+   * saved in.
+   *
+   * Rather than trying to load the file with each format in turn, the header
+   * and the first cipher block are read once to work out which format and
+   * cipher generation apply, and then only that decoder is run.  A file
+   * without a header can only be V1.  Otherwise the data key is unwrapped if
+   * the file has one, and checked against the key check if the file has
+   * one.  A file whose header says it is compressed can only be V4.
+   * Otherwise the first block is decrypted: V4 and chunked files start
+   * with a JSON object, binary files with BINARY_MAGIC and V3 files with a
+   * java object stream.  If neither matches, the
+   * V2 key is derived and the check repeated; if that fails too the password
+   * is wrong, and nothing more is decrypted.
+   *
+   * @param context Activity context in which the load is called.
+   * @param fileName Name of file to be loaded.
+   * @param info Ciphers created from the user's password and the salt and
+   *     rounds of the file.
+   * @param password The user's password, needed to create the older ciphers.
+   * @return The loaded secrets, the format of the file and the ciphers that
+   *     decrypted it, or null if the file could not be read.
+   */
+  public static LoadedSecrets loadSecretsAnyVersion(Context context,
+      String fileName, CipherInfo info, String password) {
+    Log.d(LOG_TAG, "FileUtils.loadSecretsAnyVersion");
+    if (null == info)
+      return null;
+
+    LoadedSecrets loaded = null;
+    InputStream input = null;
+
+    // Chunks must not be deleted while being read.
+    archiveLock.readLock().lock();
+    try {
+      input = openInput(context, fileName);
+      input.mark(SNIFF_LIMIT);
+      SaltAndRounds pair = getSaltAndRounds(input);
+
+      if (null == pair.salt) {
+        input.reset();
+        Cipher cipher1 = SecurityUtils.createDecryptionCipherV1(password);
+        if (null != cipher1) {
+          loaded = new LoadedSecrets(readSecretsV1(input, cipher1), FORMAT_V1,
+              info);
+        }
+      } else if (Arrays.equals(pair.salt, info.salt) &&
+                 pair.rounds == info.rounds) {
+        CipherInfo fileInfo = SecurityUtils.getFileCiphers(info,
+            pair.wrappedKey, pair.payloadIv);
+        if (null == fileInfo || (null != pair.keyCheck &&
+            !SecurityUtils.checkKey(fileInfo, pair.keyCheck))) {
+          Log.d(LOG_TAG, "loadSecretsAnyVersion: wrong password");
+          return null;
+        }
+
+        // Only V4 files are compressed.
+        if (COMPRESSION_NONE != pair.compression) {
+          return new LoadedSecrets(readEncryptedJSONSecrets(input,
+              fileInfo.decryptCipher, pair.compression), FORMAT_V4, fileInfo);
+        }
+
+        // The header of a chunked file can be long, so peek at the first
+        // block of the payload rather than going back to the start of the
+        // file.
+        byte[] block = peekFirstBlock(input);
+        byte[] plain = SecurityUtils.decryptFirstBlock(fileInfo.payloadKey,
+            fileInfo.payloadIv, block);
+        if (startsWith(plain, JSON_MAGIC)) {
+          loaded = new LoadedSecrets(readEncryptedJSONSecrets(input,
+              fileInfo.decryptCipher), FORMAT_V4, fileInfo);
+        } else if (startsWith(plain, CHUNKS_MAGIC)) {
+          loaded = new LoadedSecrets(readChunkedSecrets(context, fileName,
+              input, pair.chunkNames, fileInfo), FORMAT_CHUNKED, fileInfo);
+        } else if (startsWith(plain, BINARY_MAGIC)) {
+          loaded = new LoadedSecrets(readChunkedSecrets(context, fileName,
+              input, pair.chunkNames, fileInfo), FORMAT_BINARY, fileInfo);
+        } else if (startsWith(plain, OBJECT_STREAM_MAGIC)) {
+          loaded = new LoadedSecrets(readSecretsV1(input,
+              fileInfo.decryptCipher), FORMAT_V3, fileInfo);
+        } else if (null == pair.keyCheck) {
+          // Files with a key check are never V2, so only derive the V2 key
+          // for files without one.
+          SecretKey key2 = SecurityUtils.createKeyV2(password, info.salt,
+              info.rounds);
+          plain = SecurityUtils.decryptFirstBlock(key2, null, block);
+          if (startsWith(plain, OBJECT_STREAM_MAGIC)) {
+            Cipher cipher2 = SecurityUtils.createDecryptionCipherV2(password,
+                info.salt, info.rounds);
+            loaded = new LoadedSecrets(readSecretsV1(input, cipher2),
+                FORMAT_V2, fileInfo);
+          } else {
+            Log.d(LOG_TAG, "loadSecretsAnyVersion: wrong password");
+          }
+        }
+      }
+    } catch (Exception ex) {
+      Log.e(LOG_TAG, "loadSecretsAnyVersion", ex);
+      loaded = null;
+    } finally {
+      try {if (null != input) input.close();} catch (IOException ex) {}
+      archiveLock.readLock().unlock();
+    }
+
+    if (null != loaded && null == loaded.secrets)
+      loaded = null;
+
+    Log.d(LOG_TAG, "FileUtils.loadSecretsAnyVersion: done");
+    return loaded;
+  }
+
+  /**
+   * Returns the first cipher block of the payload, leaving the stream where
+   * it was.
+   *
+   * @param input A stream positioned at the start of the payload.  It must
+   *     support mark().
+   * @return The first block of the payload.
+   * @throws IOException
+   */
+  private static byte[] peekFirstBlock(InputStream input) throws IOException {
+    byte[] block = new byte[CIPHER_BLOCK_SIZE];
+    input.mark(CIPHER_BLOCK_SIZE);
+    new DataInputStream(input).readFully(block);
+    input.reset();
+    return block;
+  }
+
+  /** Does the given array start with the given prefix? */
+  private static boolean startsWith(byte[] array, byte[] prefix) {
+    if (null == array || array.length < prefix.length)
+      return false;
+
+    for (int i = 0; i < prefix.length; ++i) {
+      if (array[i] != prefix[i])
+        return false;
     }
+
+    return true;
   }
 
   /**
@@ -583,11 +2314,11 @@ public class FileUtils {
     ArrayList<Secret> secrets = null;
     InputStream input = null;
 
+    // Chunks must not be deleted while being read.
+    archiveLock.readLock().lock();
     try {
-      input = fileName.startsWith("/")
-          ? new FileInputStream(fileName)
-          : context.openFileInput(fileName);
-      secrets = readSecrets(input, info.decryptCipher, info.salt, info.rounds);
+      input = openInput(context, fileName);
+      secrets = readSecrets(context, fileName, input, info);
     } catch (Exception ex) {
       Log.e(LOG_TAG, "loadSecrets", ex);
     } finally {
@@ -596,6 +2327,7 @@ public class FileUtils {
           input.close();
       } catch (IOException ex) {
       }
+      archiveLock.readLock().unlock();
     }
     Log.d(LOG_TAG, "FileUtils.loadSecrets: done");
     return secrets;
@@ -614,9 +2346,12 @@ public class FileUtils {
    * @return A list of loaded secrets.
    */
   public static ArrayList<Secret> loadSecretsV1(Context context, Cipher cipher) {
-    synchronized (lock) {
+    secretsLock.readLock().lock();
+    try {
       Log.d(LOG_TAG, "FileUtils.loadSecretsV1: got lock");
       return loadSecretsV1(context, cipher, SECRETS_FILE_NAME);
+    } finally {
+      secretsLock.readLock().unlock();
     }
   }
 
@@ -628,7 +2363,6 @@ public class FileUtils {
    * @param fileName Name of file to be loaded
    * @return A list of loaded secrets.
    */
-  @SuppressWarnings("unchecked")
   public static ArrayList<Secret> loadSecretsV1(Context context, Cipher cipher,
       String fileName) {
     Log.d(LOG_TAG, "FileUtils.loadSecretsV1");
@@ -636,14 +2370,11 @@ public class FileUtils {
       return null;
 
     ArrayList<Secret> secrets = null;
-    ObjectInputStream input = null;
+    InputStream input = null;
 
     try {
-      InputStream fis = fileName.startsWith("/")
-          ? new FileInputStream(fileName)
-      : context.openFileInput(fileName);
-          input = new ObjectInputStream(new CipherInputStream(fis, cipher));
-          secrets = (ArrayList<Secret>)input.readObject();
+      input = openInput(context, fileName);
+      secrets = readSecretsV1(input, cipher);
     } catch (Exception ex) {
       Log.e(LOG_TAG, "loadSecretsV1", ex);
     } finally {
@@ -669,169 +2400,599 @@ public class FileUtils {
    */
   public static ArrayList<Secret> loadSecretsV2(Context context, Cipher cipher,
       byte[] salt, int rounds) {
-    synchronized (lock) {
+    secretsLock.readLock().lock();
+    try {
       return loadSecretsV2(context, SECRETS_FILE_NAME, cipher, salt, rounds);
+    } finally {
+      secretsLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * See previous method for description.
+   *
+   * @param context Activity context in which the load is called.
+   * @param fileName Name of file to be loaded
+   * @param cipher Decryption cipher for old encryption.
+   * @param salt The salt to use when creating the encryption key.
+   * @param rounds The number of rounds for bcrypt.
+   * @return A list of loaded secrets.
+   */
+  public static ArrayList<Secret> loadSecretsV2(Context context,
+      String fileName, Cipher cipher, byte[] salt, int rounds) {
+    Log.d(LOG_TAG, "FileUtils.loadSecretsV2");
+    if (null == cipher)
+      return null;
+    ArrayList<Secret> secrets = null;
+    InputStream input = null;
+
+    try {
+      input = openInput(context, fileName);
+      secrets = readSecretsV2(input, cipher, salt, rounds);
+    } catch (Exception ex) {
+      Log.e(LOG_TAG, "loadSecretsV2", ex);
+    } finally {
+      try {
+        if (null != input)
+          input.close();
+      } catch (IOException ex) {
+      }
+    }
+
+    return secrets;
+  }
+
+  /**
+   * Opens the secrets file using the password retrieved from the user. This
+   * function is called only for backward compatibility purposes, when Secrets
+   * encounters an error trying to load the secrets using the current encryption
+   * method.
+   *
+   * V3 used the current cipher mechanism and the old object file format.
+   *
+   * @param context
+   *          Activity context in which the load is called.
+   * @return A list of loaded secrets.
+   */
+  public static ArrayList<Secret> loadSecretsV3(Context context) {
+    secretsLock.readLock().lock();
+    try {
+      Log.d(LOG_TAG, "FileUtils.loadSecretsV21: got lock");
+      return loadSecretsV3(context, SecurityUtils.getCipherInfo(),
+          SECRETS_FILE_NAME);
+    } finally {
+      secretsLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * See previous method for description.
+   *
+   * @param context
+   *          Activity context in which the load is called.
+   * @param fileName Name of file to be loaded
+   * @param info CipherInfo
+   * @return A list of loaded secrets.
+   */
+  public static ArrayList<Secret> loadSecretsV3(Context context,
+      CipherInfo info, String fileName) {
+    Log.d(LOG_TAG, "FileUtils.loadSecretsV3");
+
+    if (null == info)
+      return null;
+
+    ArrayList<Secret> secrets = null;
+    InputStream input = null;
+
+    try {
+      input = openInput(context, fileName);
+      secrets = readSecretsV2(input, info.decryptCipher, info.salt, info.rounds);
+    } catch (Exception ex) {
+      Log.e(LOG_TAG, "loadSecretsV3", ex);
+    } finally {
+      try {
+        if (null != input)
+          input.close();
+      } catch (IOException ex) {
+      }
+    }
+    Log.d(LOG_TAG, "FileUtils.loadSecretsv3: done");
+    return secrets;
+  }
+
+  /* end new load/restore methods */
+
+  /**
+   * Writes the secrets to the given output stream encrypted with the given
+   * ciphers.  The JSON is compressed first, unless that gains too little,
+   * in which case it is written as is.
+   *
+   * The output stream is closed by the caller.
+   *
+   * @param output The output stream to write the secrets to.
+   * @param info The ciphers to encrypt the secrets with.
+   * @param secrets The secrets to write.
+   * @throws IOException
+   */
+  private static void writeSecrets(OutputStream output,
+                                   CipherInfo info,
+                                   List<Secret> secrets) throws IOException {
+    // Only the compressed JSON is kept in memory, which is a fraction of
+    // the size of the JSON itself.
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    Deflater deflater = new Deflater();
+    long size;
+    try {
+      Writer writer = new BufferedWriter(new OutputStreamWriter(
+          new DeflaterOutputStream(compressed, deflater),
+          StandardCharsets.UTF_8));
+      writeJSONSecrets(writer, secrets);
+      writer.close();
+      size = deflater.getBytesRead();
+    } finally {
+      deflater.end();
+    }
+
+    if (BinaryCodec.isWorthCompressing(size, compressed.size())) {
+      Cipher cipher = writeHeader(output, info, null, COMPRESSION_DEFLATE);
+      try {
+        output.write(cipher.doFinal(compressed.toByteArray()));
+      } catch (GeneralSecurityException ex) {
+        throw new IOException("writeSecrets failed: " + ex.getMessage());
+      }
+    } else {
+      Cipher cipher = writeHeader(output, info, null, COMPRESSION_NONE);
+      FileUtils.writeEncryptedJSONSecrets(output, cipher, secrets);
+    }
+    output.flush();
+  }
+
+  /**
+   * Returns the plaintext of a chunk, which is the given data compressed
+   * and preceded by DEFLATE_MAGIC if that is worth it, or the data itself
+   * otherwise.
+   */
+  private static byte[] compressChunk(byte[] data) {
+    byte[] compressed = BinaryCodec.deflate(DEFLATE_MAGIC, data);
+    return null != compressed ? compressed : data;
+  }
+
+  /**
+   * Returns the data of a chunk given its plaintext, uncompressing it if
+   * it starts with DEFLATE_MAGIC.
+   */
+  private static byte[] uncompressChunk(byte[] plaintext) throws IOException {
+    if (!startsWith(plaintext, DEFLATE_MAGIC))
+      return plaintext;
+
+    return BinaryCodec.inflate(plaintext, DEFLATE_MAGIC.length);
+  }
+
+  /**
+   * Writes the header of a secrets file for the given ciphers.  Files with
+   * derived keys get a random initial vector for their payload, in the
+   * header.  Only delta restore points of files without derived keys are
+   * still written without.
+   *
+   * @param output The output stream to write the header to.
+   * @param info The ciphers the secrets are encrypted with.
+   * @param chunkNames The names of the chunk files of a chunked file, or null
+   *     if the file is not chunked.
+   * @param compression How the payload is compressed, one of the
+   *     COMPRESSION_* constants.
+   * @return The cipher to encrypt the payload with.
+   * @throws IOException
+   */
+  private static Cipher writeHeader(OutputStream output, CipherInfo info,
+                                    List<String> chunkNames, int compression)
+      throws IOException {
+    byte[] payloadIv = info.hasDerivedKeys
+        ? SecurityUtils.createPayloadIv() : null;
+    Cipher cipher;
+    try {
+      cipher = SecurityUtils.createPayloadCipher(info, Cipher.ENCRYPT_MODE,
+                                                 payloadIv);
+    } catch (GeneralSecurityException ex) {
+      throw new IOException("writeHeader failed: " + ex.getMessage());
+    }
+
+    output.write(SIGNATURE_EXTENDED);
+    output.write(info.salt.length);
+    output.write(info.salt);
+    output.write(info.rounds);
+    byte[] keyCheck = SecurityUtils.createKeyCheck(info);
+    if (null != keyCheck)
+      writeHeaderField(output, HEADER_KEY_CHECK, keyCheck);
+    if (null != info.wrappedKey)
+      writeHeaderField(output, HEADER_WRAPPED_KEY, info.wrappedKey);
+    if (null != chunkNames) {
+      for (String name : chunkNames) {
+        writeHeaderField(output, HEADER_CHUNK_ID,
+            name.substring(CHUNK_PREFIX.length())
+                .getBytes(StandardCharsets.US_ASCII));
+      }
+    }
+    if (COMPRESSION_NONE != compression)
+      writeHeaderField(output, HEADER_COMPRESSION, new byte[] {
+          (byte) compression});
+    if (null != payloadIv)
+      writeHeaderField(output, HEADER_PAYLOAD_IV, payloadIv);
+    output.write(HEADER_END);
+    return cipher;
+  }
+
+  /**
+   * Writes the main file of a chunked secrets file, in the binary format.
+   * The header lists the chunks, and the encrypted payload holds a digest of
+   * that list so that it cannot be changed without the key.
+   *
+   * @param output The output stream to write the file to.
+   * @param info The ciphers the secrets are encrypted with.
+   * @param chunkNames The names of the chunk files, in order.
+   * @throws IOException
+   */
+  private static void writeChunkedSecrets(OutputStream output,
+                                          CipherInfo info,
+                                          List<String> chunkNames)
+      throws IOException {
+    writeChunkedSecrets(output, info, chunkNames, 0, null);
+  }
+
+  /**
+   * Writes the main file of a chunked secrets file, which may be a delta
+   * restore point.
+   *
+   * @param output The output stream to write the file to.
+   * @param info The ciphers the secrets are encrypted with.
+   * @param chunkNames The names of the chunk files, in order.
+   * @param journalLength The length of the part of the journal to replay
+   *     over the chunks, or zero if the file is a snapshot.
+   * @param journalDigest The digest of the part of the journal to replay.
+   * @throws IOException
+   */
+  private static void writeChunkedSecrets(OutputStream output,
+                                          CipherInfo info,
+                                          List<String> chunkNames,
+                                          long journalLength,
+                                          String journalDigest)
+      throws IOException {
+    Cipher cipher = writeHeader(output, info, chunkNames, COMPRESSION_NONE);
+    try {
+      BinaryCodec.Output payload = new BinaryCodec.Output();
+      payload.write(BINARY_MAGIC);
+      if (0 == journalLength) {
+        payload.writeField(TAG_CHUNKS, digestChunkNames(chunkNames));
+      } else {
+        payload.writeField(TAG_DELTA_BASE, digestChunkNames(chunkNames));
+        payload.writeField(TAG_JOURNAL_LENGTH, journalLength);
+        payload.writeField(TAG_JOURNAL_DIGEST, journalDigest);
+      }
+      output.write(cipher.doFinal(payload.toByteArray()));
+    } catch (Exception ex) {
+      throw new IOException("writeChunkedSecrets failed: " + ex.getMessage());
+    }
+    output.flush();
+  }
+
+  /**
+   * Splits the sorted secrets into chunks and writes each chunk that does not
+   * already exist to the given directory.
+   *
+   * @param dir The directory holding the secrets file.
+   * @param info The ciphers the secrets are encrypted with.
+   * @param secrets The secrets to write, sorted.
+   * @return The names of the chunk files, in order.
+   * @throws IOException
+   */
+  private static ArrayList<String> writeChunks(File dir, CipherInfo info,
+                                               List<Secret> secrets)
+      throws IOException {
+    Mac boundaryMac = SecurityUtils.createChunkBoundaryMac(info.chunkKey);
+    if (null == boundaryMac)
+      throw new IOException("Cannot create chunk boundary MAC");
+
+    ArrayList<String> chunkNames = new ArrayList<String>();
+    int start = 0;
+    for (int i = 0; i < secrets.size(); ++i) {
+      if (i + 1 == secrets.size() || i + 1 - start >= MAX_CHUNK_SIZE ||
+          isChunkBoundary(boundaryMac, secrets.get(i))) {
+        chunkNames.add(writeChunk(dir, info, secrets.subList(start, i + 1)));
+        start = i + 1;
+      }
+    }
+
+    return chunkNames;
+  }
+
+  /**
+   * Does a chunk end after the given secret?  The MAC is keyed, so the chunk
+   * layout cannot be used to confirm a guess of the descriptions.
+   */
+  private static boolean isChunkBoundary(Mac mac, Secret secret) {
+    String description = secret.getDescription();
+    int hash = SecurityUtils.getChunkBoundaryHash(mac,
+        null == description ? "" : description);
+    return 0 == hash >>> (32 - CHUNK_BOUNDARY_BITS);
+  }
+
+  /**
+   * Writes one chunk of secrets to the given directory, unless a chunk with
+   * the same contents already exists there.
+   *
+   * @param dir The directory holding the secrets file.
+   * @param info The ciphers the secrets are encrypted with.
+   * @param secrets The secrets in the chunk.
+   * @return The name of the chunk file.
+   * @throws IOException
+   */
+  private static String writeChunk(File dir, CipherInfo info,
+                                   List<Secret> secrets) throws IOException {
+    byte[] plaintext = toBinarySecrets(secrets, info.fieldKey);
+    byte[] id = SecurityUtils.createChunkId(info.chunkKey, plaintext);
+    if (null == id)
+      throw new IOException("Cannot create chunk id");
+
+    String hex = toHex(id);
+    String name = CHUNK_PREFIX + hex;
+    File chunk = new File(dir, name);
+    if (chunk.exists())
+      return name;
+
+    // The id depends only on the secrets, not on whether they were worth
+    // compressing, so only chunks that are written need compressing.
+    byte[] data = SecurityUtils.encryptChunk(info.chunkKey,
+        hex.getBytes(StandardCharsets.US_ASCII), compressChunk(plaintext));
+    if (null == data)
+      throw new IOException("Cannot encrypt chunk");
+
+    // Like the main file, write to a temporary file first, so that a chunk
+    // that exists is always complete.
+    File temp = new File(dir, "new" + name);
+    FileOutputStream output = null;
+    try {
+      output = new FileOutputStream(temp);
+      output.write(data);
+    } finally {
+      try {if (null != output) output.close();} catch (IOException ex) {}
+    }
+
+    if (!temp.renameTo(chunk)) {
+      temp.delete();
+      throw new IOException("Cannot rename chunk " + name);
     }
+
+    return name;
   }
 
   /**
-   * See previous method for description.
+   * Reads the secrets of a chunked secrets file, positioned just after the
+   * header.  For the main secrets file, the journal is replayed over them.
    *
    * @param context Activity context in which the load is called.
-   * @param fileName Name of file to be loaded
-   * @param cipher Decryption cipher for old encryption.
-   * @param salt The salt to use when creating the encryption key.
-   * @param rounds The number of rounds for bcrypt.
-   * @return A list of loaded secrets.
+   * @param fileName Name of the main file; the chunks are next to it.
+   * @param input The stream holding the encrypted payload of the main file.
+   * @param chunkNames The chunk names from the header of the main file.
+   * @param info The ciphers of the file.
+   * @return The secrets, in order.
+   * @throws IOException
    */
-  public static ArrayList<Secret> loadSecretsV2(Context context,
-      String fileName, Cipher cipher, byte[] salt, int rounds) {
-    Log.d(LOG_TAG, "FileUtils.loadSecretsV2");
-    if (null == cipher)
-      return null;
-    ArrayList<Secret> secrets = null;
-    InputStream input = null;
+  private static ArrayList<Secret> readChunkedSecrets(Context context,
+                                                      String fileName,
+                                                      InputStream input,
+                                                      List<String> chunkNames,
+                                                      CipherInfo info)
+      throws IOException {
+    if (null == chunkNames)
+      chunkNames = new ArrayList<String>();
 
+    String base = digestChunkNames(chunkNames);
+    boolean isBinary;
+    long journalLength = 0;
+    String journalDigest = null;
     try {
-      input = fileName.startsWith("/")
-          ? new FileInputStream(fileName)
-          : context.openFileInput(fileName);
-      secrets = readSecretsV2(input, cipher, salt, rounds);
-    } catch (Exception ex) {
-      Log.e(LOG_TAG, "loadSecretsV2", ex);
-    } finally {
+      byte[] payload = info.decryptCipher.doFinal(readFully(input));
+      isBinary = startsWith(payload, BINARY_MAGIC);
+      String digest = null;
+      if (isBinary) {
+        BinaryCodec.Input record = new BinaryCodec.Input(payload,
+            BINARY_MAGIC.length, payload.length);
+        while (record.hasRemaining()) {
+          int field = record.readKey();
+          switch (BinaryCodec.getTag(field)) {
+            case TAG_CHUNKS:
+            case TAG_DELTA_BASE:
+              digest = record.readString();
+              break;
+            case TAG_JOURNAL_LENGTH:
+              journalLength = record.readVarint();
+              break;
+            case TAG_JOURNAL_DIGEST:
+              journalDigest = record.readString();
+              break;
+            default:
+              record.skipField(field);
+              break;
+          }
+        }
+      } else {
+        JSONObject json = new JSONObject(new String(payload,
+            StandardCharsets.UTF_8));
+        digest = json.getString(JSON_CHUNKS_ID);
+      }
+      if (!base.equals(digest)) {
+        throw new IOException("Chunk list does not match");
+      }
+    } catch (GeneralSecurityException ex) {
+      throw new IOException("Cannot decrypt chunk list: " + ex.getMessage());
+    } catch (JSONException ex) {
+      throw new IOException("Cannot parse chunk list: " + ex.getMessage());
+    }
+
+    File dir = fileName.startsWith("/")
+        ? new File(fileName).getParentFile()
+        : context.getFileStreamPath(fileName).getParentFile();
+    ArrayList<Secret> secrets = new ArrayList<Secret>();
+    for (String name : chunkNames) {
       try {
-        if (null != input)
-          input.close();
-      } catch (IOException ex) {
+        File chunk = new File(dir, name);
+        byte[] id = name.substring(CHUNK_PREFIX.length())
+            .getBytes(StandardCharsets.US_ASCII);
+        byte[] plaintext = uncompressChunk(SecurityUtils.decryptChunk(
+            info.chunkKey, id, getBytes(readFile(chunk))));
+        if (startsWith(plaintext, BINARY_MAGIC)) {
+          secrets.addAll(fromBinarySecrets(plaintext, info.fieldKey));
+        } else {
+          JsonReader reader = new JsonReader(new InputStreamReader(
+              new ByteArrayInputStream(plaintext), StandardCharsets.UTF_8));
+          secrets.addAll(readJSONSecrets(reader));
+        }
+      } catch (GeneralSecurityException ex) {
+        throw new IOException("Cannot decrypt chunk " + name + ": " +
+                              ex.getMessage());
       }
     }
 
+    // Only the main secrets file has a journal.  Delta restore points refer
+    // to part of a journal instead; if one became the secrets file, the
+    // next save writes a new snapshot.
+    if (journalLength > 0) {
+      if (null == journalDigest)
+        throw new IOException("Journal of restore point not found");
+      secrets = replayJournalPart(dir, base, chunkNames, secrets, info,
+                                  journalLength, journalDigest);
+      if (SECRETS_FILE_NAME.equals(fileName))
+        journal = null;
+    } else if (SECRETS_FILE_NAME.equals(fileName)) {
+      secrets = replayJournal(context, base, chunkNames, secrets, info);
+
+      // A file in the older chunked format is not appended to, so that the
+      // next save rewrites it in the binary format.
+      if (!isBinary)
+        journal = null;
+    }
+
     return secrets;
   }
 
   /**
-   * Opens the secrets file using the password retrieved from the user. This
-   * function is called only for backward compatibility purposes, when Secrets
-   * encounters an error trying to load the secrets using the current encryption
-   * method.
-   *
-   * V3 used the current cipher mechanism and the old object file format.
-   *
-   * @param context
-   *          Activity context in which the load is called.
-   * @return A list of loaded secrets.
+   * Returns a digest of the given list of chunk names, stored encrypted in
+   * the main file so that the list in the header cannot be modified.
    */
-  public static ArrayList<Secret> loadSecretsV3(Context context) {
-    synchronized (lock) {
-      Log.d(LOG_TAG, "FileUtils.loadSecretsV21: got lock");
-      return loadSecretsV3(context, SecurityUtils.getCipherInfo(),
-          SECRETS_FILE_NAME);
+  private static String digestChunkNames(List<String> chunkNames)
+      throws IOException {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      for (String name : chunkNames)
+        digest.update(name.getBytes(StandardCharsets.US_ASCII));
+      return toHex(digest.digest());
+    } catch (GeneralSecurityException ex) {
+      throw new IOException("Cannot digest chunk list: " + ex.getMessage());
     }
   }
 
+  /** Returns the lowercase hexadecimal representation of the bytes. */
+  private static String toHex(byte[] bytes) {
+    StringBuilder builder = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes)
+      builder.append(Character.forDigit((b >> 4) & 0xf, 16))
+             .append(Character.forDigit(b & 0xf, 16));
+    return builder.toString();
+  }
+
   /**
-   * See previous method for description.
-   *
-   * @param context
-   *          Activity context in which the load is called.
-   * @param fileName Name of file to be loaded
-   * @param info CipherInfo
-   * @return A list of loaded secrets.
+   * Returns a stream of the rest of the given stream decrypted with the
+   * given cipher.  A file mapped into memory is decrypted straight from the
+   * mapping.
    */
-  public static ArrayList<Secret> loadSecretsV3(Context context,
-      CipherInfo info, String fileName) {
-    Log.d(LOG_TAG, "FileUtils.loadSecretsV3");
-
-    if (null == info)
-      return null;
-
-    ArrayList<Secret> secrets = null;
-    InputStream input = null;
+  private static InputStream decrypt(InputStream input, Cipher cipher) {
+    if (input instanceof ByteBufferInputStream)
+      return ((ByteBufferInputStream) input).decrypt(cipher);
+    return new CipherInputStream(input, cipher);
+  }
 
-    try {
-      input = fileName.startsWith("/")
-          ? new FileInputStream(fileName)
-          : context.openFileInput(fileName);
-      secrets = readSecretsV2(input, info.decryptCipher, info.salt, info.rounds);
-    } catch (Exception ex) {
-      Log.e(LOG_TAG, "loadSecretsV3", ex);
-    } finally {
-      try {
-        if (null != input)
-          input.close();
-      } catch (IOException ex) {
-      }
+  /**
+   * Returns the contents of the given buffer as an array, without copying
+   * them if the buffer wraps exactly the whole of an array.
+   */
+  private static byte[] getBytes(ByteBuffer buffer) {
+    if (buffer.hasArray() && 0 == buffer.arrayOffset() &&
+        0 == buffer.position() && buffer.array().length == buffer.limit()) {
+      return buffer.array();
     }
-    Log.d(LOG_TAG, "FileUtils.loadSecretsv3: done");
-    return secrets;
+
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
   }
 
-  /* end new load/restore methods */
+  /** Reads the rest of the given stream into memory. */
+  private static byte[] readFully(InputStream input) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for (int n = input.read(buffer); n >= 0; n = input.read(buffer))
+      bytes.write(buffer, 0, n);
+    return bytes.toByteArray();
+  }
 
   /**
-   * Writes the secrets to the given output stream encrypted with the given
-   * cipher.
+   * Writes one field of the extended header.
    *
-   * The output stream is closed by the caller.
-   *
-   * @param output The output stream to write the secrets to.
-   * @param cipher The cipher to encrypt the secrets with.
-   * @param secrets The secrets to write.
-   * @param rounds The number of rounds for bcrypt.
+   * @param output The output stream to write the field to.
+   * @param tag The tag of the field.
+   * @param value The value of the field, at most 255 bytes long.
    * @throws IOException
    */
-  private static void writeSecrets(OutputStream output,
-                                   Cipher cipher,
-                                   byte[] salt,
-                                   int rounds,
-                                   ArrayList<Secret> secrets) throws IOException {
-    output.write(SIGNATURE);
-    output.write(salt.length);
-    output.write(salt);
-    output.write(rounds);
-    output.write(FileUtils.toEncryptedJSONSecretsStream(cipher, secrets));
-  	output.flush();
+  private static void writeHeaderField(OutputStream output, int tag,
+                                       byte[] value) throws IOException {
+    output.write(tag);
+    output.write(value.length);
+    output.write(value);
   }
 
   /**
    * Read the secrets from the given input stream, decrypting with the given
-   * cipher.
+   * ciphers.  The stream may hold a V4, chunked or binary secrets file.
    *
+   * @param context
+   *          Activity context in which the load is called.
+   * @param fileName
+   *          Name of the file being read, used to find its chunks.
    * @param input
    *          The input stream to read the secrets from.
-   * @param cipher
-   *          The cipher to decrypt the secrets with.
+   * @param info
+   *          The ciphers created from the user's password, or the current
+   *          ciphers.
    * @return The secrets read from the stream.
    * @throws IOException
-   * @throws ClassNotFoundException
    */
-  private static ArrayList<Secret> readSecrets(InputStream input,
-                                               Cipher cipher, byte[] salt,
-                                               int rounds) throws IOException,
-      ClassNotFoundException {
+  private static ArrayList<Secret> readSecrets(Context context,
+                                               String fileName,
+                                               InputStream input,
+                                               CipherInfo info)
+      throws IOException {
+    if (!input.markSupported())
+      input = new BufferedInputStream(input);
     SaltAndRounds pair = getSaltAndRounds(input);
-    if (!Arrays.equals(pair.salt, salt) || pair.rounds != rounds) {
+    if (!Arrays.equals(pair.salt, info.salt) || pair.rounds != info.rounds) {
       return null;
     }
-    BufferedInputStream bis = new BufferedInputStream(input);
-    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-    try {
-      // read the whole stream into the buffer
-      int nRead;
-      byte[] data = new byte[4096];
-      while ((nRead = bis.read(data, 0, data.length)) != -1) {
-        buffer.write(data, 0, nRead);
-      }
-      buffer.flush();
-      return FileUtils.fromEncryptedJSONSecretsStream(cipher,
-              buffer.toByteArray());
-    } finally {
-      try {
-        bis.close();
-      } catch (IOException ex) {
-      }
+    CipherInfo fileInfo = SecurityUtils.getFileCiphers(info, pair.wrappedKey,
+                                                       pair.payloadIv);
+    if (null == fileInfo || (null != pair.keyCheck &&
+        !SecurityUtils.checkKey(fileInfo, pair.keyCheck))) {
+      return null;
+    }
+    if (COMPRESSION_NONE != pair.compression) {
+      return readEncryptedJSONSecrets(input, fileInfo.decryptCipher,
+                                      pair.compression);
     }
+    byte[] plain = SecurityUtils.decryptFirstBlock(fileInfo.payloadKey,
+        fileInfo.payloadIv, peekFirstBlock(input));
+    if (startsWith(plain, CHUNKS_MAGIC) || startsWith(plain, BINARY_MAGIC)) {
+      return readChunkedSecrets(context, fileName, input, pair.chunkNames,
+                                fileInfo);
+    }
+    return FileUtils.readEncryptedJSONSecrets(input, fileInfo.decryptCipher);
   }
 
   /**
@@ -854,8 +3015,29 @@ public class FileUtils {
     if (!Arrays.equals(pair.salt, salt) || pair.rounds != rounds) {
       return null;
     }
-    ObjectInputStream oin = new ObjectInputStream(
-        new CipherInputStream(input, cipher));
+    ObjectInputStream oin = new ObjectInputStream(decrypt(input, cipher));
+    try {
+      return (ArrayList<Secret>)oin.readObject();
+    } finally {
+      try {oin.close();} catch (IOException ex) {}
+    }
+  }
+
+  /**
+   * Read the secrets from the given input stream, decrypting with the given
+   * cipher.  V1 files have no header, and use the old object format.
+   *
+   * @param input The input stream to read the secrets from.
+   * @param cipher The cipher to decrypt the secrets with.
+   * @return The secrets read from the stream.
+   * @throws IOException
+   * @throws ClassNotFoundException
+   */
+  @SuppressWarnings("unchecked")
+  private static ArrayList<Secret> readSecretsV1(InputStream input,
+                                                 Cipher cipher)
+      throws IOException, ClassNotFoundException {
+    ObjectInputStream oin = new ObjectInputStream(decrypt(input, cipher));
     try {
       return (ArrayList<Secret>)oin.readObject();
     } finally {
@@ -863,6 +3045,61 @@ public class FileUtils {
     }
   }
 
+  /**
+   * Returns the secrets in the binary format.  Compared to JSON, field names
+   * are replaced by one byte tags, and the access log by varints holding the
+   * difference between consecutive times, which is about a third of the
+   * size.
+   *
+   * @param secrets
+   *          The list of secrets.
+   * @param key
+   *          The field key to seal passwords and notes with.
+   * @return The secrets, starting with BINARY_MAGIC.
+   * @throws IOException
+   *           if a field cannot be sealed
+   */
+  public static byte[] toBinarySecrets(List<Secret> secrets, SecretKey key)
+      throws IOException {
+    BinaryCodec.Output output = new BinaryCodec.Output(secrets.size() * 256);
+    output.write(BINARY_MAGIC, 0, BINARY_MAGIC.length);
+    BinaryCodec.Output record = new BinaryCodec.Output();
+    for (Secret secret : secrets) {
+      record.reset();
+      secret.writeBinary(record, key);
+      output.writeRecord(record);
+    }
+
+    return output.toByteArray();
+  }
+
+  /**
+   * Constructs a secrets collection from the output of toBinarySecrets().
+   *
+   * @param data
+   *          The secrets in the binary format.
+   * @param key
+   *          The field key the passwords and notes were sealed with.  They
+   *          stay sealed until first needed.
+   * @return list of secrets
+   * @throws IOException
+   *           if the data is malformed
+   */
+  public static ArrayList<Secret> fromBinarySecrets(byte[] data,
+                                                    SecretKey key)
+      throws IOException {
+    if (!startsWith(data, BINARY_MAGIC))
+      throw new IOException("Not in the binary format");
+
+    BinaryCodec.Input input = new BinaryCodec.Input(data, BINARY_MAGIC.length,
+                                                    data.length);
+    ArrayList<Secret> secretList = new ArrayList<Secret>();
+    while (input.hasRemaining())
+      secretList.add(Secret.fromBinary(input.readRecord(), key));
+
+    return secretList;
+  }
+
   /**
    * Returns an json object representing the contained secrets.
    *
@@ -871,7 +3108,8 @@ public class FileUtils {
    * @return String of secrets
    * @throws JSONException
    */
-  public static JSONObject toJSONSecrets(ArrayList<Secret> secrets) throws JSONException {
+  public static JSONObject toJSONSecrets(List<Secret> secrets)
+      throws JSONException {
     JSONObject jsonValues = new JSONObject();
     JSONArray jsonSecrets = new JSONArray();
     for (Secret secret : secrets) {
@@ -915,21 +3153,82 @@ public class FileUtils {
    */
   public static byte[] toEncryptedJSONSecretsStream(Cipher cipher,
       ArrayList<Secret> secrets) throws IOException {
-    CipherOutputStream output = null;
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    writeEncryptedJSONSecrets(baos, cipher, secrets);
+    return baos.toByteArray();
+  }
+
+  /**
+   * Writes the user's secrets to the given stream as encrypted json.  The
+   * output is identical to that of toEncryptedJSONSecretsStream(), but each
+   * secret is serialized straight into the cipher as it is written, so the
+   * memory used does not depend on the number of secrets.
+   *
+   * The output stream is not closed by this method.
+   *
+   * @param output
+   *          The stream to write the encrypted secrets to.
+   * @param cipher
+   *          The encryption cipher to use with the file.
+   * @param secrets
+   *          The list of secrets.
+   * @throws IOException
+   *           if any error occurs
+   */
+  public static void writeEncryptedJSONSecrets(OutputStream output,
+      Cipher cipher, List<Secret> secrets) throws IOException {
+    // Closing the cipher stream is what writes the final padded block, but
+    // the underlying stream belongs to the caller, so don't let the close
+    // go any further than a flush.
+    OutputStream unclosable = new FilterOutputStream(output) {
+      @Override
+      public void write(byte[] buffer, int offset, int length)
+          throws IOException {
+        out.write(buffer, offset, length);
+      }
+
+      @Override
+      public void close() throws IOException {
+        flush();
+      }
+    };
+    Writer writer = null;
 
     try {
-      output = new CipherOutputStream(baos, cipher);
-      output.write(FileUtils.toJSONSecrets(secrets).toString().getBytes(
-          StandardCharsets.UTF_8));
+      writer = new BufferedWriter(new OutputStreamWriter(
+          new CipherOutputStream(unclosable, cipher), StandardCharsets.UTF_8));
+      writeJSONSecrets(writer, secrets);
     } catch (Exception e) {
-      Log.e(LOG_TAG, "toEncryptedJSONSecretsStream", e);
-      throw new IOException("toEncryptedJSONSecretsStream failed: " + e.getMessage());
+      Log.e(LOG_TAG, "writeEncryptedJSONSecrets", e);
+      throw new IOException("writeEncryptedJSONSecrets failed: " + e.getMessage());
     } finally {
-      try { if (null != output) output.close(); } catch (IOException ex) {}
+      try { if (null != writer) writer.close(); } catch (IOException ex) {}
     }
+  }
 
-    return baos.toByteArray();
+  /**
+   * Writes a json representation of the secrets to the given writer.  The
+   * text written is exactly what toJSONSecrets(secrets).toString() would
+   * return, without building the json objects in memory first.
+   *
+   * @param writer
+   *          The writer to send the json text to.
+   * @param secrets
+   *          The list of secrets.
+   * @throws IOException
+   *           if any error occurs
+   */
+  public static void writeJSONSecrets(Writer writer, List<Secret> secrets)
+      throws IOException {
+    writer.write('{');
+    writer.write(JSONObject.quote(JSON_SECRETS_ID));
+    writer.write(":[");
+    for (int i = 0; i < secrets.size(); ++i) {
+      if (i > 0)
+        writer.write(',');
+      secrets.get(i).writeJSON(writer);
+    }
+    writer.write("]}");
   }
 
   /**
@@ -957,17 +3256,127 @@ public class FileUtils {
     }
   }
 
+  /**
+   * Constructs secrets from the supplied encrypted stream.  This is the
+   * streaming equivalent of fromEncryptedJSONSecretsStream(): the stream is
+   * decrypted and parsed incrementally, and each secret is built as soon as
+   * its json text has been read, so neither the plain text nor a json object
+   * tree of the whole file is ever held in memory.
+   *
+   * The input stream is closed by this method.
+   *
+   * @param input
+   *          stream positioned at the start of the encrypted data
+   * @param cipher
+   *          cipher to use
+   * @return list of secrets
+   * @throws IOException
+   *           if any error occurs
+   */
+  public static ArrayList<Secret> readEncryptedJSONSecrets(InputStream input,
+      Cipher cipher) throws IOException {
+    return readEncryptedJSONSecrets(input, cipher, COMPRESSION_NONE);
+  }
+
+  /**
+   * Constructs secrets from the supplied encrypted stream, uncompressing the
+   * JSON after decrypting it if needed.
+   *
+   * The input stream is closed by this method.
+   *
+   * @param input
+   *          stream positioned at the start of the encrypted data
+   * @param cipher
+   *          cipher to use
+   * @param compression
+   *          how the JSON was compressed, from the header of the file
+   * @return list of secrets
+   * @throws IOException
+   *           if any error occurs
+   */
+  private static ArrayList<Secret> readEncryptedJSONSecrets(InputStream input,
+      Cipher cipher, int compression) throws IOException {
+    Inflater inflater = null;
+    InputStream plain = decrypt(input, cipher);
+    if (COMPRESSION_DEFLATE == compression) {
+      inflater = new Inflater();
+      plain = new InflaterInputStream(plain, inflater);
+    } else if (COMPRESSION_NONE != compression) {
+      try {plain.close();} catch (IOException ex) {}
+      throw new IOException("Unknown compression " + compression);
+    }
+
+    // Closing the reader also closes the cipher stream, which finalizes the
+    // cipher so that it can be reused, even if parsing stopped part way.
+    JsonReader reader = new JsonReader(new InputStreamReader(plain,
+        StandardCharsets.UTF_8));
+    try {
+      return readJSONSecrets(reader);
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      // JsonReader reports some malformed input, like a value of the
+      // wrong type, with runtime exceptions.
+      throw new IOException("readEncryptedJSONSecrets failed: " + e.getMessage());
+    } finally {
+      try {reader.close();} catch (IOException ex) {}
+      if (null != inflater)
+        inflater.end();
+    }
+  }
+
+  /**
+   * Constructs a secrets collection from the supplied JSON reader.  The
+   * format expected is the one written by writeJSONSecrets().
+   *
+   * @param reader
+   *          reader positioned at the start of the JSON object
+   * @return list of secrets
+   * @throws IOException
+   *           if error with JSON data
+   */
+  public static ArrayList<Secret> readJSONSecrets(JsonReader reader)
+      throws IOException {
+    ArrayList<Secret> secretList = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (JSON_SECRETS_ID.equals(reader.nextName())) {
+        secretList = new ArrayList<Secret>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+          secretList.add(Secret.fromJSON(reader));
+        }
+        reader.endArray();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    if (null == secretList)
+      throw new IOException("No value for " + JSON_SECRETS_ID);
+
+    return secretList;
+  }
+
   /** Deletes all secrets from the phone.
    * @param context the current context
    * @return always true
    */
   public static boolean deleteSecrets(Context context) {
     Log.d(LOG_TAG, "FileUtils.deleteSecrets");
-    synchronized (lock) {
+    lockSecretsForWriting();
+    archiveLock.writeLock().lock();
+    try {
+      discardPrefetchedSecrets();
+      manifest = null;
       String filenames[] = context.fileList();
       for (String filename : filenames) {
         context.deleteFile(filename);
       }
+    } finally {
+      archiveLock.writeLock().unlock();
+      unlockSecretsForWriting();
     }
 
     return true;
@@ -1177,12 +3586,82 @@ public class FileUtils {
     /** Key in backup set for file data. */
     private static final String KEY ="file";
 
+    /**
+     * Backs up the given files, and restores them along with any chunk.
+     * FileBackupHelper only restores the files it was created with, but
+     * the chunks of the restored secrets file are not known when the agent
+     * is created, and on a new device none exist yet.
+     */
+    private static class ChunkBackupHelper extends FileBackupHelper {
+      private final File dir;
+
+      ChunkBackupHelper(Context context, String... files) {
+        super(context, files);
+        dir = context.getFilesDir();
+      }
+
+      @Override
+      public void restoreEntity(BackupDataInputStream data) {
+        String name = data.getKey();
+        if (!isChunkName(name)) {
+          super.restoreEntity(data);
+          return;
+        }
+
+        // Like writeChunk(), write to a temporary file first, so that a
+        // chunk that exists is always complete.
+        File temp = new File(dir, "new" + name);
+        FileOutputStream output = null;
+        boolean success = false;
+        try {
+          output = new FileOutputStream(temp);
+          byte[] buffer = new byte[8 * 1024];
+          for (int n; (n = data.read(buffer)) > 0;)
+            output.write(buffer, 0, n);
+          success = true;
+        } catch (IOException ex) {
+          Log.e(LOG_TAG_AGENT, "restoreEntity: cannot write " + name, ex);
+        } finally {
+          try {if (null != output) output.close();} catch (IOException ex) {}
+        }
+
+        if (!success || !temp.renameTo(new File(dir, name))) {
+          Log.e(LOG_TAG_AGENT, "restoreEntity: cannot restore " + name);
+          temp.delete();
+        }
+      }
+
+      /** Is the key of an entity the name of a chunk file? */
+      private static boolean isChunkName(String name) {
+        if (!name.startsWith(CHUNK_PREFIX) ||
+            name.length() == CHUNK_PREFIX.length())
+          return false;
+
+        // The name comes from the restore set, so make sure it cannot
+        // point outside the directory.
+        for (int i = CHUNK_PREFIX.length(); i < name.length(); ++i) {
+          if (Character.digit(name.charAt(i), 16) < 0)
+            return false;
+        }
+        return true;
+      }
+    }
+
     @Override
     public void onCreate() {
       Log.d(LOG_TAG_AGENT, "onCreate");
 
-      FileBackupHelper helper = new FileBackupHelper(this,
-          FileUtils.SECRETS_FILE_NAME);
+      // The secrets file is backed up along with its chunks.  Chunks are
+      // never modified once written, so only new ones are sent.
+      ArrayList<String> files = new ArrayList<String>();
+      files.add(FileUtils.SECRETS_FILE_NAME);
+      files.add(JOURNAL_FILE_NAME);
+      for (String filename : fileList()) {
+        if (filename.startsWith(CHUNK_PREFIX))
+          files.add(filename);
+      }
+      FileBackupHelper helper = new ChunkBackupHelper(this,
+          files.toArray(new String[files.size()]));
       addHelper(KEY, helper);
     }
 
@@ -1191,8 +3670,13 @@ public class FileUtils {
                          BackupDataOutput data,
                          ParcelFileDescriptor newState) throws IOException {
       Log.d(LOG_TAG_AGENT, "onBackup");
-      synchronized (lock) {
+      secretsLock.readLock().lock();
+      archiveLock.readLock().lock();
+      try {
         super.onBackup(oldState, data, newState);
+      } finally {
+        archiveLock.readLock().unlock();
+        secretsLock.readLock().unlock();
       }
       getSharedPreferences(PREFS_FILE_NAME, 0).edit()
           .putLong(PREF_LAST_BACKUP_DATE, System.currentTimeMillis()).apply();
@@ -1203,8 +3687,13 @@ public class FileUtils {
                           int appVersionCode,
                           ParcelFileDescriptor newState)  throws IOException {
       Log.d(LOG_TAG_AGENT, "onRestore");
-      synchronized (lock) {
+      lockSecretsForWriting();
+      archiveLock.writeLock().lock();
+      try {
         super.onRestore(data, appVersionCode, newState);
+      } finally {
+        archiveLock.writeLock().unlock();
+        unlockSecretsForWriting();
       }
     }
 
@@ -0,0 +1,330 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A search that forgives typos and the order of words.  The query is split
+ * into words, and a secret matches if each word is found, in any order, in
+ * its description, username or email.  A word is found if it starts a word
+ * of a field, appears anywhere in one, starts a word with a typo or two, or
+ * if its letters appear in order in a field, and each of these scores less
+ * than the one before.  So "mail goog" and "gogle mail" both find "Google
+ * Mail", ahead of secrets that only match loosely.
+ *
+ * Only the best MAX_RESULTS secrets are kept, in a heap, so the vault is
+ * never sorted.  The search also stops once it has run for TIME_BUDGET,
+ * returning the best secrets among those it looked at, so that it stays
+ * interactive however large the vault is.
+ *
+ * @author rogerta
+ */
+final class FuzzySearch {
+  /** Most secrets returned by a search. */
+  static final int MAX_RESULTS = 100;
+
+  /** Longest time a search runs for, in nanoseconds. */
+  static final long TIME_BUDGET = 100 * 1000 * 1000;
+
+  /** Most typos forgiven in a word of the query. */
+  private static final int MAX_TYPOS = 2;
+
+  /** How many secrets are scored between looks at the clock. */
+  private static final int CHECK_STEP = 64;
+
+  private static final int PREFIX_SCORE = 100;
+  private static final int CONTAINS_SCORE = 80;
+  private static final int TYPO_SCORE = 60;
+  private static final int TYPO_PENALTY = 15;
+  private static final int SUBSEQUENCE_SCORE = 20;
+  private static final int DESCRIPTION_BONUS = 10;
+
+  /** A secret with its score and position in the list searched. */
+  private static final class Scored {
+    final Secret secret;
+    final int score;
+    final int position;
+
+    Scored(Secret secret, int score, int position) {
+      this.secret = secret;
+      this.score = score;
+      this.position = position;
+    }
+  }
+
+  /** Orders the worst match first, that is earlier in the heap. */
+  private static final Comparator<Scored> WORST_FIRST =
+      new Comparator<Scored>() {
+    @Override
+    public int compare(Scored a, Scored b) {
+      if (a.score != b.score)
+        return a.score < b.score ? -1 : 1;
+      // With the same score, the secret later in the list is worse.
+      return a.position > b.position ? -1
+          : (a.position == b.position ? 0 : 1);
+    }
+  };
+
+  private final String[] words;
+
+  // The bits of the characters of each word, see getBit().
+  private final long[] wordMasks;
+
+  // The most typos forgiven in each word.  Short words would match nearly
+  // anything with a typo.
+  private final int[] maxTypos;
+
+  // The description, username and email of the secret being scored, their
+  // folded text or null if not needed yet, and the bits of their
+  // characters.
+  private final String[] fields = new String[3];
+  private final String[] foldedFields = new String[3];
+  private final long[] fieldMasks = new long[3];
+
+  // The rows of the table used by countTypos(), allocated once.
+  private final int[][] rows;
+
+  /**
+   * @param query The words to look for, separated by spaces.
+   */
+  FuzzySearch(String query) {
+    ArrayList<String> list = new ArrayList<String>();
+    for (String word : SecretsListAdapter.getSortKey(query).split("\\s+")) {
+      if (word.length() > 0)
+        list.add(word);
+    }
+    words = list.toArray(new String[list.size()]);
+    wordMasks = new long[words.length];
+    for (int i = 0; i < words.length; ++i) {
+      for (int j = 0; j < words[i].length(); ++j)
+        wordMasks[i] |= getBit(words[i].charAt(j));
+    }
+    maxTypos = new int[words.length];
+    for (int i = 0; i < words.length; ++i) {
+      int length = words[i].length();
+      maxTypos[i] = length <= 3 ? 0 : (length <= 6 ? 1 : MAX_TYPOS);
+    }
+
+    int longest = 0;
+    for (String word : words)
+      longest = Math.max(longest, word.length());
+    rows = new int[3][longest + 3];
+  }
+
+  /**
+   * Returns the best matches among the given secrets, best first, and in
+   * the order of the list for matches that score the same.  This takes
+   * O(n log MAX_RESULTS), and at most about TIME_BUDGET.
+   *
+   * @param secrets The secrets to search.
+   * @param signal Signal checked while searching.
+   * @return The secrets found.
+   * @throws OperationCanceledException If the signal is cancelled.
+   */
+  ArrayList<Secret> search(List<Secret> secrets, CancellationSignal signal) {
+    PriorityQueue<Scored> best = new PriorityQueue<Scored>(MAX_RESULTS + 1,
+                                                           WORST_FIRST);
+    if (0 != words.length) {
+      long deadline = System.nanoTime() + TIME_BUDGET;
+      for (int i = 0; i < secrets.size(); ++i) {
+        if (0 == i % CHECK_STEP) {
+          signal.throwIfCanceled();
+          if (i > 0 && System.nanoTime() - deadline > 0)
+            break;
+        }
+
+        Secret secret = secrets.get(i);
+        int score = score(secret);
+        if (score > 0 && (best.size() < MAX_RESULTS ||
+            score > best.peek().score)) {
+          best.add(new Scored(secret, score, i));
+          if (best.size() > MAX_RESULTS)
+            best.poll();
+        }
+      }
+    }
+
+    // The heap gives the worst match first, so fill the list from the end.
+    Secret[] found = new Secret[best.size()];
+    for (int i = found.length - 1; i >= 0; --i)
+      found[i] = best.poll().secret;
+
+    ArrayList<Secret> list = new ArrayList<Secret>(found.length);
+    for (Secret secret : found)
+      list.add(secret);
+    return list;
+  }
+
+  /**
+   * Returns how well the given secret matches, or 0 if some word of the
+   * query is not found in it.
+   */
+  int score(Secret secret) {
+    fields[0] = secret.getDescription();
+    fields[1] = secret.getUsername();
+    fields[2] = secret.getEmail();
+    for (int f = 0; f < fields.length; ++f) {
+      foldedFields[f] = null;
+      fieldMasks[f] = 0;
+      for (int i = 0; i < fields[f].length(); ++i)
+        fieldMasks[f] |= getBit(fields[f].charAt(i));
+    }
+
+    int total = 0;
+    for (int i = 0; i < words.length; ++i) {
+      String word = words[i];
+      int best = 0;
+      for (int f = 0; f < fields.length; ++f) {
+        // Most fields do not have all the characters of a word, and each
+        // one missing takes a typo to match, so count them first.  The
+        // field is only folded if the word could match it.
+        int missing = 0;
+        if (0 != (wordMasks[i] & ~fieldMasks[f])) {
+          for (int j = 0; j < word.length(); ++j) {
+            if (0 == (fieldMasks[f] & getBit(word.charAt(j))))
+              ++missing;
+          }
+          if (missing > maxTypos[i])
+            continue;
+        }
+
+        if (null == foldedFields[f])
+          foldedFields[f] = SecretsListAdapter.getSortKey(fields[f]);
+        int score = scoreWord(word, foldedFields[f], missing, maxTypos[i]);
+        if (score > 0 && 0 == f)
+          score += DESCRIPTION_BONUS;
+        best = Math.max(best, score);
+      }
+
+      if (0 == best)
+        return 0;
+      total += best;
+    }
+    return total;
+  }
+
+  /**
+   * Returns the bit of a character in a mask of the characters of some
+   * text, once folded.  Different characters may have the same bit, so if
+   * the bit of a character is not in the mask, the text does not have it,
+   * but not the other way around.
+   */
+  private static long getBit(char c) {
+    return 1L << Character.toLowerCase(Character.toUpperCase(c));
+  }
+
+  /**
+   * Returns how well a word of the query matches a field, or 0 if it is not
+   * found.  Both are folded, and the given number of characters of the word
+   * are known not to be in the field.
+   */
+  private int scoreWord(String word, String field, int missing,
+                        int maxTypos) {
+    int index = 0 == missing ? field.indexOf(word) : -1;
+    if (index >= 0) {
+      do {
+        if (0 == index || !Character.isLetterOrDigit(field.charAt(index - 1)))
+          return PREFIX_SCORE;
+        index = field.indexOf(word, index + 1);
+      } while (index >= 0);
+      return CONTAINS_SCORE;
+    }
+
+    int typos = maxTypos + 1;
+    for (int start = 0; start < field.length() && 0 != maxTypos &&
+         typos > 0; ++start) {
+      if (Character.isLetterOrDigit(field.charAt(start)) &&
+          (0 == start || !Character.isLetterOrDigit(field.charAt(start - 1))))
+        typos = Math.min(typos, countTypos(word, field, start, maxTypos));
+    }
+    if (typos <= maxTypos)
+      return TYPO_SCORE - typos * TYPO_PENALTY;
+
+    return 0 == missing && isSubsequence(word, field) ? SUBSEQUENCE_SCORE
+                                                      : 0;
+  }
+
+  /**
+   * Returns the fewest typos that turn the word into a prefix of the word
+   * of the field starting at the given position, or more than the given
+   * maximum.  A typo is a character added, missing, replaced, or swapped
+   * with the next one.  Only a band of the usual dynamic programming table
+   * is filled, since anything outside it costs more than the maximum.
+   */
+  private int countTypos(String word, String field, int start,
+                         int maxTypos) {
+    int end = start;
+    while (end < field.length() && end - start < word.length() + maxTypos &&
+           Character.isLetterOrDigit(field.charAt(end))) {
+      ++end;
+    }
+
+    // rows[i % 3][j] is the cost of turning the first i characters of the
+    // word into the first j characters of the word of the field.
+    int length = end - start;
+    int over = maxTypos + 1;
+    for (int j = 0; j <= length; ++j)
+      rows[0][j] = Math.min(j, over);
+
+    for (int i = 1; i <= word.length(); ++i) {
+      int[] row = rows[i % 3];
+      int[] up = rows[(i - 1) % 3];
+      int[] upUp = rows[(i + 1) % 3];
+      char c = word.charAt(i - 1);
+      int min = row[0] = Math.min(i, over);
+      for (int j = 1; j <= length; ++j) {
+        if (Math.abs(i - j) > maxTypos) {
+          row[j] = over;
+          continue;
+        }
+
+        char d = field.charAt(start + j - 1);
+        int cost = Math.min(up[j - 1] + (c == d ? 0 : 1),
+                            Math.min(up[j], row[j - 1]) + 1);
+        if (i > 1 && j > 1 && c == field.charAt(start + j - 2) &&
+            word.charAt(i - 2) == d) {
+          cost = Math.min(cost, upUp[j - 2] + 1);
+        }
+        row[j] = Math.min(cost, over);
+        min = Math.min(min, row[j]);
+      }
+      if (min > maxTypos)
+        return over;
+    }
+
+    // The word only needs to match the start of the word of the field.
+    int typos = over;
+    for (int j = 0; j <= length; ++j)
+      typos = Math.min(typos, rows[word.length() % 3][j]);
+    return typos;
+  }
+
+  /** Returns whether the characters of the word appear in order in text. */
+  private static boolean isSubsequence(String word, String text) {
+    int j = 0;
+    for (int i = 0; i < text.length() && j < word.length(); ++i) {
+      if (text.charAt(i) == word.charAt(j))
+        ++j;
+    }
+    return j == word.length();
+  }
+}
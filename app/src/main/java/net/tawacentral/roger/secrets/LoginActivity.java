@@ -18,8 +18,10 @@ import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.text.Editable;
 import android.text.TextWatcher;
@@ -31,6 +33,7 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.EditText;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -39,8 +42,6 @@ import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 
-import javax.crypto.Cipher;
-
 /**
  * This activity handles logging into the application.  It prompts the user for
  * his password, or guides him through the process of creating one.  This
@@ -50,6 +51,161 @@ import javax.crypto.Cipher;
  * @author rogerta
  */
 public class LoginActivity extends Activity implements TextWatcher {
+  /**
+   * Creates the ciphers from the user's password and loads the secrets in a
+   * background thread.  Both steps can take several seconds on slower
+   * devices, so they must not run on the UI thread.  The task is retained
+   * across configuration changes, and its result is delivered to whichever
+   * activity is attached when it completes.
+   */
+  private static class UnlockTask
+      extends AsyncTask<Void, Integer, ArrayList<Secret>> {
+    private final Context context;
+    private final boolean isFirstRun;
+    private String password;
+    private LoginActivity activity;
+    private int stage = R.string.login_progress_key;
+    private int error;
+    private SecurityUtils.CipherInfo info;
+    private boolean isUpgradeNeeded;
+    private boolean finished;
+    private boolean isSaving;
+    private ArrayList<Secret> result;
+
+    UnlockTask(LoginActivity activity, String password, boolean isFirstRun) {
+      this.context = activity.getApplicationContext();
+      this.activity = activity;
+      this.password = password;
+      this.isFirstRun = isFirstRun;
+    }
+
+    /** The resource id of the text describing the current step. */
+    int getStage() {
+      return stage;
+    }
+
+    /**
+     * Attach the task to a new instance of the activity, delivering the
+     * result right away if the task completed while detached.
+     */
+    void attach(LoginActivity activity) {
+      this.activity = activity;
+      if (finished)
+        activity.onUnlockFinished(result, info, error, isUpgradeNeeded);
+      else if (isCancelled())
+        activity.onUnlockCancelled();
+    }
+
+    /** Detach the task from an activity that is being destroyed. */
+    void detach() {
+      activity = null;
+    }
+
+    /**
+     * Cancel the unlock, and detach the task so that it does not call back
+     * the activity once its background work returns.  A first run that has
+     * started saving the new secrets file is not cancelled, since the file
+     * would be written while the activity asks for the password again.
+     *
+     * @return True if the task was cancelled.
+     */
+    synchronized boolean cancelUnlock() {
+      if (isSaving)
+        return false;
+
+      detach();
+      cancel(false);
+      return true;
+    }
+
+    @Override
+    protected ArrayList<Secret> doInBackground(Void... params) {
+      // Lets not save the password in memory anywhere.  Create all the
+      // ciphers we will need based on the password and save those.  First get
+      // the salt that is unique for this device.  If we can't find one, new
+      // salt and rounds are created.
+      FileUtils.SaltAndRounds pair = FileUtils.getSaltAndRounds(context,
+          FileUtils.SECRETS_FILE_NAME);
+      info = SecurityUtils.createCiphers(password, pair.salt, pair.rounds);
+      if (null == info || isCancelled())
+        return null;
+
+      ArrayList<Secret> loadedSecrets = null;
+
+      if (isFirstRun) {
+        loadedSecrets = new ArrayList<Secret>();
+
+        // Immediately save an empty file to hold the secrets, encrypted with
+        // a new data key.
+        info = SecurityUtils.createWrappedCiphers(info);
+        if (null == info)
+          return null;
+
+        synchronized (this) {
+          if (isCancelled())
+            return null;
+          isSaving = true;
+        }
+
+        File file = context.getFileStreamPath(FileUtils.SECRETS_FILE_NAME);
+        error = FileUtils.saveSecrets(context, file, info, loadedSecrets);
+        if (0 != error)
+          loadedSecrets = null;
+      } else {
+        publishProgress(R.string.login_progress_decrypt);
+        FileUtils.LoadedSecrets loaded = FileUtils.loadSecretsAnyVersion(
+            context, info, password);
+
+        if (null != loaded) {
+          loadedSecrets = loaded.secrets;
+          info = loaded.info;
+
+          // Files in an older format, or whose keys are not derived, are
+          // saved again in the current format even if the secrets do not
+          // change.
+          isUpgradeNeeded = FileUtils.FORMAT_BINARY != loaded.format ||
+              !info.hasDerivedKeys;
+
+          // Files from older versions are encrypted with the password key
+          // directly.  They will be saved with a new data key from now on,
+          // and all files with keys derived from the data key.
+          info = SecurityUtils.getSaveCiphers(info);
+
+          // previous versions were case-sensitive and may need to be sorted
+          Collections.sort(loadedSecrets);
+        }
+
+        if (null == info)
+          loadedSecrets = null;
+      }
+
+      password = null;
+      return loadedSecrets;
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... values) {
+      stage = values[0];
+      if (null != activity)
+        activity.showUnlockProgress(stage);
+    }
+
+    @Override
+    protected void onPostExecute(ArrayList<Secret> result) {
+      this.result = result;
+      finished = true;
+      if (null != activity)
+        activity.onUnlockFinished(result, info, error, isUpgradeNeeded);
+    }
+
+    @Override
+    protected void onCancelled() {
+      password = null;
+      if (null != activity)
+        activity.onUnlockCancelled();
+    }
+  }
+
   /** Dialog Id for resetting password. */
   private static final int DIALOG_RESET_PASSWORD = 1;
   /** Tag for logging purposes. */
@@ -71,6 +227,8 @@ public class LoginActivity extends Activity implements TextWatcher {
   private boolean isValidatingPassword;
   private String passwordString;
   private Toast toast;
+  private UnlockTask unlockTask;
+  private boolean isPrefetchStarted;
 
   /** Called when the activity is first created. */
   @Override
@@ -111,7 +269,24 @@ public class LoginActivity extends Activity implements TextWatcher {
     // by onKey, so the above code is fine and probably needs to stay.
     password.addTextChangedListener(this);
 
-    FileUtils.cleanupDataFiles(this);
+    // If the activity was re-created while the secrets were being unlocked,
+    // for example by an orientation change, pick up the running task again.
+    unlockTask = (UnlockTask) getLastNonConfigurationInstance();
+    if (null != unlockTask)
+      unlockTask.attach(this);
+
+    // Only a missing secrets file needs to be dealt with before deciding
+    // whether this is a first run.  The rest of the cleanup reads restore
+    // points and chunks, and can wait behind a save, so it is done in the
+    // background.  Loading the secrets waits for it on the secrets lock.
+    FileUtils.recoverSecretsFile(this);
+    final Context context = getApplicationContext();
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        FileUtils.cleanupDataFiles(context);
+      }
+    }, "cleanupDataFiles").start();
     Log.d(LOG_TAG, "LoginActivity.onCreate done");
   }
 
@@ -161,9 +336,50 @@ public class LoginActivity extends Activity implements TextWatcher {
 
     password.setHint(R.string.login_enter_password);
     password.requestFocus();
+
+    if (null != unlockTask)
+      showUnlockProgress(unlockTask.getStage());
+
+    isPrefetchStarted = false;
     Log.d(LOG_TAG, "LoginActivity.onResume done");
   }
 
+  @Override
+  public Object onRetainNonConfigurationInstance() {
+    Log.d(LOG_TAG, "LoginActivity.onRetainNonConfigurationInstance");
+    if (null != unlockTask)
+      unlockTask.detach();
+
+    return unlockTask;
+  }
+
+  @Override
+  protected void onDestroy() {
+    Log.d(LOG_TAG, "LoginActivity.onDestroy");
+    if (null != unlockTask && isFinishing()) {
+      unlockTask.detach();
+      unlockTask.cancel(false);
+      unlockTask = null;
+    }
+
+    super.onDestroy();
+  }
+
+  @Override
+  public void onBackPressed() {
+    // Pressing back while the secrets are being unlocked cancels the unlock
+    // and returns to the password prompt, rather than leaving the app.
+    // The task is detached, since it may still be running when a newer one
+    // is started, and its callbacks would then clear the newer one.
+    if (null != unlockTask) {
+      if (unlockTask.cancelUnlock())
+        onUnlockCancelled();
+      return;
+    }
+
+    super.onBackPressed();
+  }
+
   @Override
   public boolean onCreateOptionsMenu(Menu menu) {
     MenuInflater inflater = getMenuInflater();
@@ -245,6 +461,20 @@ public class LoginActivity extends Activity implements TextWatcher {
 
     // A key was pressed, so update the UI.
     updatePasswordStrengthView(s.toString());
+
+    // The user has started typing his password, so read the secrets file
+    // into memory while he finishes.  This takes the disk access off the
+    // critical path once he presses Enter.
+    if (!isFirstRun && !isPrefetchStarted && null == secrets) {
+      isPrefetchStarted = true;
+      final Context context = getApplicationContext();
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          FileUtils.prefetchSecrets(context);
+        }
+      }, "prefetchSecrets").start();
+    }
   }
 
   /**
@@ -272,7 +502,7 @@ public class LoginActivity extends Activity implements TextWatcher {
     // This means that on exit, the secrets will be encrypted with an incorrect
     // "password", making it impossible for the user to login again, since this
     // "password" will be unknown to the user.
-    if (null != secrets) {
+    if (null != secrets || null != unlockTask) {
       Log.d(LOG_TAG, "LoginActivity.handlePasswordClick ignoring");
       return;
     }
@@ -326,66 +556,45 @@ public class LoginActivity extends Activity implements TextWatcher {
 
     passwordView.setText("");
 
-    // Lets not save the password in memory anywhere.  Create all the ciphers
-    // we will need based on the password and save those.  First get the salt
-    // that is unique for this device.  If we can't find one, null is returned.
-    FileUtils.SaltAndRounds pair = FileUtils.getSaltAndRounds(this,
-        FileUtils.SECRETS_FILE_NAME);
-    SecurityUtils.saveCiphers(SecurityUtils.createCiphers(passwordString,
-                                                          pair.salt,
-                                                          pair.rounds));
-
-    ArrayList<Secret> loadedSecrets = null;
-
-    if (isFirstRun) {
-      loadedSecrets = new ArrayList<Secret>();
-
-      // Immediately save an empty file to hold the secrets.
-      Cipher cipher = SecurityUtils.getEncryptionCipher();
-      File file = getFileStreamPath(FileUtils.SECRETS_FILE_NAME);
-      byte[] salt = SecurityUtils.getSalt();
-      int rounds = SecurityUtils.getRounds();
-      int err = FileUtils.saveSecrets(this, file, cipher, salt, rounds,
-                                      loadedSecrets);
-      if (0 != err) {
-        showToast(err, Toast.LENGTH_LONG);
-        return;
-      }
-    } else {
-      loadedSecrets = FileUtils.loadSecrets(this);
-      if (null == loadedSecrets) {
-        // Loading failed. Try the old object format using same cipher
-        loadedSecrets = FileUtils.loadSecretsV3(this);
-        if (null == loadedSecrets) {
-          // Loading the secrets failed again. Try loading with the old
-          // encryption algorithm in case were are reading an older file.
-          Cipher cipher2 = SecurityUtils.createDecryptionCipherV2(
-              passwordString, pair.salt, pair.rounds);
-          if (null != cipher2) {
-            loadedSecrets = FileUtils.loadSecretsV2(this, cipher2, pair.salt,
-                                                 pair.rounds);
-          }
-        }
-        if (null == loadedSecrets) {
-          // Loading the secrets failed again. Try an even older encryption
-          // algorithm.
-          Cipher cipher1 =
-              SecurityUtils.createDecryptionCipherV1(passwordString);
-          if (null != cipher1)
-            loadedSecrets = FileUtils.loadSecretsV1(this, cipher1);
-        }
-        if (null == loadedSecrets) {
-          // TODO(rogerta): need better error message here. There are probably
-          // many reasons that we might not be able to open the file.
-          showToast(R.string.invalid_password, Toast.LENGTH_LONG);
-          return;
-        }
+    // Creating the ciphers and decrypting the secrets are slow, so do them in
+    // the background.  The result is handled in onUnlockFinished().
+    unlockTask = new UnlockTask(this, passwordString, isFirstRun);
+    passwordString = null;
+    this.passwordString = null;
+    showUnlockProgress(unlockTask.getStage());
+    unlockTask.execute();
+    Log.d(LOG_TAG, "LoginActivity.handlePasswordClick done");
+  }
 
-        // previous versions were case-sensitive and may need to be sorted
-        Collections.sort(loadedSecrets);
-      }
+  /**
+   * Called when the unlock task completes.
+   *
+   * @param loadedSecrets The secrets loaded, or null if they could not be
+   *     loaded.
+   * @param info The ciphers created from the user's password.
+   * @param error Resource id of an error message, or zero if there is no
+   *     specific error to report.
+   * @param isUpgradeNeeded True if the file is in an older format and should
+   *     be saved again even if nothing changes.
+   */
+  private void onUnlockFinished(ArrayList<Secret> loadedSecrets,
+                                SecurityUtils.CipherInfo info,
+                                int error,
+                                boolean isUpgradeNeeded) {
+    Log.d(LOG_TAG, "LoginActivity.onUnlockFinished");
+    unlockTask = null;
+    hideUnlockProgress();
+
+    if (null == loadedSecrets) {
+      // TODO(rogerta): need better error message here. There are probably
+      // many reasons that we might not be able to open the file.
+      showToast(0 != error ? error : R.string.invalid_password,
+                Toast.LENGTH_LONG);
+      return;
     }
 
+    SecurityUtils.saveCiphers(info);
+
     // Ensure the globals array are allocated.
     if (secrets == null)
       secrets = new ArrayList<Secret>();
@@ -396,10 +605,55 @@ public class LoginActivity extends Activity implements TextWatcher {
     // extract the deleted secrets from the global secrets list
     replaceSecrets(loadedSecrets);
 
-    passwordString = null;
+    // The secrets in memory match the file, so they don't need to be saved
+    // until they change.
+    SaveService.markSaved();
+    if (isUpgradeNeeded)
+      SaveService.markUnsaved();
+
+    // The secrets are now in memory, there is no need to keep another copy.
+    FileUtils.discardPrefetchedSecrets();
+
     Intent intent = new Intent(LoginActivity.this, SecretsListActivity.class);
     startActivity(intent);
-    Log.d(LOG_TAG, "LoginActivity.handlePasswordClick done");
+  }
+
+  /** Called when the unlock task is cancelled. */
+  private void onUnlockCancelled() {
+    Log.d(LOG_TAG, "LoginActivity.onUnlockCancelled");
+    unlockTask = null;
+    hideUnlockProgress();
+  }
+
+  /**
+   * Show that the secrets are being unlocked, and prevent the user from
+   * entering another password in the meantime.
+   *
+   * @param stage Resource id of the text describing the current step.
+   */
+  private void showUnlockProgress(int stage) {
+    TextView instructions = (TextView)findViewById(R.id.login_instructions);
+    ProgressBar progress = (ProgressBar)findViewById(R.id.login_progress);
+    TextView password = (TextView) findViewById(R.id.login_password);
+    instructions.setText(stage);
+    progress.setVisibility(View.VISIBLE);
+    password.setEnabled(false);
+  }
+
+  /** Restore the password prompt after the unlock task ends. */
+  private void hideUnlockProgress() {
+    TextView instructions = (TextView)findViewById(R.id.login_instructions);
+    ProgressBar progress = (ProgressBar)findViewById(R.id.login_progress);
+    TextView password = (TextView) findViewById(R.id.login_password);
+    progress.setVisibility(View.GONE);
+    password.setEnabled(true);
+    password.requestFocus();
+    if (isFirstRun && isValidatingPassword)
+      instructions.setText(R.string.login_instruction_2);
+    else if (isFirstRun)
+      instructions.setText(R.string.login_instruction_1);
+    else
+      instructions.setText("");
   }
 
   /**
@@ -474,6 +728,7 @@ public class LoginActivity extends Activity implements TextWatcher {
 
     LoginActivity.secrets.clear();
     LoginActivity.deletedSecrets.clear();
+    Secret.markListChanged();
     for (Secret secret : newSecrets) {
       if (secret.isDeleted()) {
         deletedSecrets.add(secret);
@@ -491,6 +746,7 @@ public class LoginActivity extends Activity implements TextWatcher {
   public static void clearSecrets() {
     secrets = null;
     deletedSecrets = null;
+    FileUtils.discardJournal();
     SecurityUtils.clearCiphers();
   }
 }
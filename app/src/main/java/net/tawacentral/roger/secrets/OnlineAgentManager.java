@@ -19,6 +19,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import net.tawacentral.roger.secrets.Secret.LogEntry;
@@ -222,7 +223,7 @@ public class OnlineAgentManager extends BroadcastReceiver {
    * @return true if secrets were sent
    */
   public static boolean sendSecrets(OnlineSyncAgent agent,
-                                    ArrayList<Secret> secrets,
+                                    List<Secret> secrets,
                                     SecretsListActivity activity) {
     requestAgent = agent;
     responseActivity = activity;
@@ -297,7 +298,10 @@ public class OnlineAgentManager extends BroadcastReceiver {
             Log.d(LOG_TAG, "syncSecrets: removed '" +
                 changedSecret.getDescription() + "'");
           } else {
-            existingSecret.update(changedSecret, LogEntry.SYNCED);
+            // The secret may be being saved, so a copy is changed instead.
+            Secret updated = existingSecret.copy();
+            updated.update(changedSecret, LogEntry.SYNCED);
+            secrets.set(i, updated);
             Log.d(LOG_TAG, "syncSecrets: updated '" +
                 changedSecret.getDescription() + "'");
           }
@@ -0,0 +1,291 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import android.util.Log;
+
+import net.tawacentral.roger.secrets.FileUtils.RestorePoint;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The list of the secrets file and the restore points of a directory, with
+ * metadata that can be shown without decrypting them.  Listing and cleaning
+ * up the restore points then only needs one scan of the directory, rather
+ * than asking the file system for the time of every file.
+ *
+ * The manifest is immutable: changing it returns a new one, so that it can
+ * be read while a save is changing it.  Points are kept from oldest to most
+ * recent.
+ *
+ * It is stored in MANIFEST_FILE_NAME, starting with MANIFEST_MAGIC followed
+ * by one TAG_POINT field per point, each a record in the format of
+ * BinaryCodec.  The file is written to a temporary file which is then
+ * renamed, so it is always complete.  The manifest only caches what the
+ * files say: if it is missing or cannot be read, it is rebuilt from the
+ * directory by FileUtils.cleanupDataFiles(), with the metadata that cannot
+ * be known without decrypting the files left unknown.
+ *
+ * @author rogerta
+ */
+final class RestorePointManifest {
+  /** Name of the manifest file, next to the secrets file. */
+  static final String MANIFEST_FILE_NAME = "manifest";
+
+  /**
+   * Name of the manifest file being written.  It starts with "new" so that
+   * FileUtils.cleanupDataFiles() deletes it if a write is interrupted.
+   */
+  private static final String NEW_MANIFEST_FILE_NAME = "newmanifest";
+
+  private static final byte[] MANIFEST_MAGIC = {0x00, 0x53, 0x4D, 0x01};
+
+  /** Tags of the fields of the manifest, and of each point. */
+  private static final int TAG_POINT = 1;
+  private static final int TAG_NAME = 1;
+  private static final int TAG_TIME = 2;
+  private static final int TAG_SIZE = 3;
+  private static final int TAG_COUNT = 4;
+  private static final int TAG_FORMAT = 5;
+  private static final int TAG_HASH = 6;
+
+  private static final String LOG_TAG = "RestorePointManifest";
+
+  /** Orders points from oldest to most recent. */
+  private static final Comparator<RestorePoint> BY_TIME =
+      new Comparator<RestorePoint>() {
+    @Override
+    public int compare(RestorePoint a, RestorePoint b) {
+      return a.time < b.time ? -1 : (a.time == b.time ? 0 : 1);
+    }
+  };
+
+  private final File dir;
+  private final List<RestorePoint> points;
+
+  private RestorePointManifest(File dir, List<RestorePoint> points) {
+    this.dir = dir;
+    this.points = Collections.unmodifiableList(points);
+  }
+
+  /** Returns an empty manifest for the given directory. */
+  static RestorePointManifest empty(File dir) {
+    return new RestorePointManifest(dir, new ArrayList<RestorePoint>());
+  }
+
+  /**
+   * Returns a manifest for the given directory holding the given points,
+   * which must all have different names.
+   */
+  static RestorePointManifest of(File dir, List<RestorePoint> points) {
+    ArrayList<RestorePoint> list = new ArrayList<RestorePoint>(points);
+    Collections.sort(list, BY_TIME);
+    return new RestorePointManifest(dir, list);
+  }
+
+  /**
+   * Reads the manifest of the given directory.
+   *
+   * @param dir The directory holding the secrets file.
+   * @return The manifest, or null if it does not exist or cannot be read.
+   */
+  static RestorePointManifest read(File dir) {
+    File file = new File(dir, MANIFEST_FILE_NAME);
+    DataInputStream input = null;
+    try {
+      byte[] data = new byte[(int) file.length()];
+      input = new DataInputStream(new FileInputStream(file));
+      input.readFully(data);
+      if (data.length < MANIFEST_MAGIC.length)
+        throw new IOException("Manifest too short");
+      for (int i = 0; i < MANIFEST_MAGIC.length; ++i) {
+        if (data[i] != MANIFEST_MAGIC[i])
+          throw new IOException("Not a manifest");
+      }
+
+      ArrayList<RestorePoint> points = new ArrayList<RestorePoint>();
+      BinaryCodec.Input record = new BinaryCodec.Input(data,
+          MANIFEST_MAGIC.length, data.length);
+      while (record.hasRemaining()) {
+        int field = record.readKey();
+        if (TAG_POINT == BinaryCodec.getTag(field))
+          points.add(readPoint(record.readRecord()));
+        else
+          record.skipField(field);
+      }
+      return of(dir, points);
+    } catch (FileNotFoundException ex) {
+      return null;
+    } catch (IOException ex) {
+      Log.e(LOG_TAG, "read", ex);
+      return null;
+    } finally {
+      try {if (null != input) input.close();} catch (IOException ex) {}
+    }
+  }
+
+  private static RestorePoint readPoint(BinaryCodec.Input record)
+      throws IOException {
+    String name = null;
+    long time = 0;
+    long size = 0;
+    int count = RestorePoint.UNKNOWN;
+    int format = RestorePoint.UNKNOWN;
+    String hash = null;
+    while (record.hasRemaining()) {
+      int field = record.readKey();
+      switch (BinaryCodec.getTag(field)) {
+        case TAG_NAME:
+          name = record.readString();
+          break;
+        case TAG_TIME:
+          time = record.readVarint();
+          break;
+        case TAG_SIZE:
+          size = record.readVarint();
+          break;
+        case TAG_COUNT:
+          count = record.readInt();
+          break;
+        case TAG_FORMAT:
+          format = record.readInt();
+          break;
+        case TAG_HASH:
+          hash = record.readString();
+          break;
+        default:
+          record.skipField(field);
+          break;
+      }
+    }
+    if (null == name)
+      throw new IOException("Restore point without a name");
+
+    return new RestorePoint(name, time, size, count, format, hash);
+  }
+
+  /**
+   * Writes the manifest to its directory, replacing the previous one
+   * atomically.
+   *
+   * @throws IOException
+   */
+  void write() throws IOException {
+    BinaryCodec.Output output = new BinaryCodec.Output();
+    output.write(MANIFEST_MAGIC, 0, MANIFEST_MAGIC.length);
+    for (RestorePoint point : points) {
+      BinaryCodec.Output record = new BinaryCodec.Output();
+      record.writeField(TAG_NAME, point.name);
+      record.writeField(TAG_TIME, point.time);
+      record.writeField(TAG_SIZE, point.size);
+      if (RestorePoint.UNKNOWN != point.count)
+        record.writeField(TAG_COUNT, point.count);
+      if (RestorePoint.UNKNOWN != point.format)
+        record.writeField(TAG_FORMAT, point.format);
+      record.writeField(TAG_HASH, point.hash);
+      output.writeField(TAG_POINT, record);
+    }
+
+    File file = new File(dir, NEW_MANIFEST_FILE_NAME);
+    FileOutputStream fos = new FileOutputStream(file);
+    try {
+      output.writeTo(fos);
+    } finally {
+      try {fos.close();} catch (IOException ex) {}
+    }
+
+    if (!file.renameTo(new File(dir, MANIFEST_FILE_NAME))) {
+      file.delete();
+      throw new IOException("Cannot rename manifest");
+    }
+  }
+
+  /** The directory the manifest describes. */
+  File getDir() {
+    return dir;
+  }
+
+  /** The points, from oldest to most recent. */
+  List<RestorePoint> getPoints() {
+    return points;
+  }
+
+  /** Returns the point with the given name, or null if there is none. */
+  RestorePoint get(String name) {
+    for (RestorePoint point : points) {
+      if (point.name.equals(name))
+        return point;
+    }
+    return null;
+  }
+
+  /**
+   * Returns a manifest with the given point added, replacing any point with
+   * the same name.
+   */
+  RestorePointManifest with(RestorePoint point) {
+    ArrayList<RestorePoint> list = new ArrayList<RestorePoint>(
+        points.size() + 1);
+    boolean isAdded = false;
+    for (RestorePoint p : points) {
+      if (p.name.equals(point.name))
+        continue;
+      if (!isAdded && point.time < p.time) {
+        list.add(point);
+        isAdded = true;
+      }
+      list.add(p);
+    }
+    if (!isAdded)
+      list.add(point);
+    return new RestorePointManifest(dir, list);
+  }
+
+  /** Returns a manifest without the point with the given name. */
+  RestorePointManifest without(String name) {
+    return without(Collections.singleton(name));
+  }
+
+  /** Returns a manifest without the points with the given names. */
+  RestorePointManifest without(Set<String> names) {
+    ArrayList<RestorePoint> list = new ArrayList<RestorePoint>(points.size());
+    for (RestorePoint p : points) {
+      if (!names.contains(p.name))
+        list.add(p);
+    }
+    return new RestorePointManifest(dir, list);
+  }
+
+  /**
+   * Returns a manifest where the point with the given name is renamed, for
+   * a file that was renamed.  Any point that had the new name is replaced.
+   * If no point has the old name, the manifest only loses the new name.
+   */
+  RestorePointManifest renamed(String from, String to) {
+    RestorePoint point = get(from);
+    RestorePointManifest manifest = without(from).without(to);
+    return null == point ? manifest : manifest.with(point.withName(to));
+  }
+}
@@ -0,0 +1,175 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import net.tawacentral.roger.secrets.FileUtils.RestorePoint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Decides which restore points to keep.  The most recent points are always
+ * kept, and older ones are thinned out in generations: one per hour for a
+ * number of hours, one per day for a number of days, and one per week for a
+ * number of weeks.  In each hour, day or week, the most recent point is the
+ * one kept.  A burst of saves therefore only replaces the most recent
+ * points, and does not push older history out.
+ *
+ * The policy is stored in the preferences as four numbers separated by
+ * commas, see toString().  Days and weeks start at midnight local time.
+ *
+ * @author rogerta
+ */
+public final class RetentionPolicy {
+  private static final long HOUR = 60 * 60 * 1000;
+  private static final long DAY = 24 * HOUR;
+  private static final long WEEK = 7 * DAY;
+
+  /**
+   * The default policy: the last 10 points, then hourly for a day, daily for
+   * a week, and weekly for a quarter.
+   */
+  public static final RetentionPolicy DEFAULT =
+      new RetentionPolicy(10, 24, 7, 13);
+
+  /** A policy that keeps fewer points, for devices short of storage. */
+  public static final RetentionPolicy FEWER =
+      new RetentionPolicy(5, 0, 7, 4);
+
+  /** A policy that keeps a year of history. */
+  public static final RetentionPolicy MORE =
+      new RetentionPolicy(20, 48, 31, 52);
+
+  private final int last;
+  private final int hours;
+  private final int days;
+  private final int weeks;
+
+  /**
+   * @param last Number of most recent points always kept.
+   * @param hours Number of hours for which one point per hour is kept.
+   * @param days Number of days for which one point per day is kept.
+   * @param weeks Number of weeks for which one point per week is kept.
+   */
+  public RetentionPolicy(int last, int hours, int days, int weeks) {
+    if (last < 0 || hours < 0 || days < 0 || weeks < 0)
+      throw new IllegalArgumentException("Negative retention");
+
+    this.last = last;
+    this.hours = hours;
+    this.days = days;
+    this.weeks = weeks;
+  }
+
+  /**
+   * Parses a policy written by toString().
+   *
+   * @param value The policy, or null.
+   * @return The policy, or DEFAULT if the value is null or malformed.
+   */
+  public static RetentionPolicy parse(String value) {
+    if (null == value)
+      return DEFAULT;
+
+    String[] parts = value.split(",");
+    if (4 != parts.length)
+      return DEFAULT;
+
+    try {
+      return new RetentionPolicy(Integer.parseInt(parts[0].trim()),
+                                 Integer.parseInt(parts[1].trim()),
+                                 Integer.parseInt(parts[2].trim()),
+                                 Integer.parseInt(parts[3].trim()));
+    } catch (IllegalArgumentException ex) {
+      return DEFAULT;
+    }
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof RetentionPolicy))
+      return false;
+
+    RetentionPolicy other = (RetentionPolicy) o;
+    return last == other.last && hours == other.hours && days == other.days &&
+        weeks == other.weeks;
+  }
+
+  @Override
+  public int hashCode() {
+    return ((last * 31 + hours) * 31 + days) * 31 + weeks;
+  }
+
+  @Override
+  public String toString() {
+    return last + "," + hours + "," + days + "," + weeks;
+  }
+
+  /**
+   * Returns the restore points that this policy does not keep.  This takes
+   * O(n).
+   *
+   * @param points The restore points, from oldest to most recent.
+   * @param now The current time, in millis since the epoch.
+   * @return The points to delete.
+   */
+  public List<RestorePoint> getExpired(List<RestorePoint> points, long now) {
+    TimeZone zone = TimeZone.getDefault();
+    ArrayList<RestorePoint> expired = new ArrayList<RestorePoint>();
+    long lastHour = Long.MIN_VALUE;
+    long lastDay = Long.MIN_VALUE;
+    long lastWeek = Long.MIN_VALUE;
+
+    // Going from the most recent point, the first point seen in each hour,
+    // day or week is the most recent one in it.
+    for (int i = points.size() - 1, seen = 0; i >= 0; --i, ++seen) {
+      RestorePoint point = points.get(i);
+      long age = now - point.time;
+      long local = point.time + zone.getOffset(point.time);
+      boolean keep = seen < last;
+
+      long hour = floorDiv(local, HOUR);
+      if (age < hours * HOUR && hour != lastHour) {
+        lastHour = hour;
+        keep = true;
+      }
+
+      long day = floorDiv(local, DAY);
+      if (age < days * DAY && day != lastDay) {
+        lastDay = day;
+        keep = true;
+      }
+
+      // The epoch was a Thursday; weeks start on the following Monday.
+      long week = floorDiv(local - 4 * DAY, WEEK);
+      if (age < weeks * WEEK && week != lastWeek) {
+        lastWeek = week;
+        keep = true;
+      }
+
+      if (!keep)
+        expired.add(point);
+    }
+
+    return expired;
+  }
+
+  /** Divides, rounding down, for times before the epoch. */
+  private static long floorDiv(long value, long divisor) {
+    long quotient = value / divisor;
+    return value % divisor < 0 ? quotient - 1 : quotient;
+  }
+}
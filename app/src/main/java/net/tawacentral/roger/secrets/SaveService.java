@@ -15,15 +15,20 @@
 package net.tawacentral.roger.secrets;
 
 import java.io.File;
-import java.util.ArrayList;
-
-import javax.crypto.Cipher;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.app.Service;
 import android.app.backup.BackupManager;
 import android.content.Context;
 import android.content.Intent;
 import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.tawacentral.roger.secrets.SecurityUtils.CipherInfo;
 
 /**
  * A background service to save the secrets to a file.  This is done as a
@@ -33,34 +38,148 @@ import android.os.IBinder;
  * UI activities, so any lengthy task still needs to be performed in a
  * separate thread.
  *
+ * All saves are done by a single background thread.  Only the most recent
+ * secrets passed to execute() are waiting to be saved at any time, so if
+ * several saves are requested while one is being written, only the last of
+ * them is written next.
+ *
  * @author rogerta
  */
 public class SaveService extends Service {
-  private static ArrayList<Secret> secrets;
-  private static Cipher cipher;
-  private static byte[] salt;
-  private static int rounds;
+  /** Tag for logging purposes. */
+  public static final String LOG_TAG = "SaveService";
+
+  /**
+   * The secrets waiting to be saved, their ciphers, and the modification
+   * and view counts of the secrets when they were taken.
+   */
+  private static List<Secret> secrets;
+  private static CipherInfo info;
+  private static int modificationCount;
+  private static int viewCount;
+
+  /** Thread that writes the secrets, one save at a time. */
+  private static final ExecutorService writer =
+      Executors.newSingleThreadExecutor();
+
+  /** Has a call to writeSecrets() been queued that has not returned yet? */
+  private static boolean isWriterScheduled;
+
+  /** Most recent start id of the service, used to stop it when done. */
+  private static int lastStartId;
+
+  /**
+   * Number of calls to execute() whose secrets have not been picked up by
+   * the writer yet.  All of them are written by a single save.
+   */
+  private static int queueDepth;
+
+  /** Time of the oldest call to execute() not yet picked up, or zero. */
+  private static long queuedTime;
+
+  /** Number of saves written, and of requests merged into later saves. */
+  private static int saveCount;
+  private static int coalescedCount;
+
+  /**
+   * Views of a password only add a VIEWED entry to its access log, so they
+   * are not saved when the list is only paused for a configuration change,
+   * such as rotating the screen.  They are saved on the next other pause,
+   * along with the next change, or once the oldest unsaved view is this old.
+   */
+  private static final long VIEW_FLUSH_INTERVAL_MS = 15 * 60 * 1000;
+
+  /**
+   * Modification and view counts of the secrets as of the last save that
+   * was written successfully.
+   */
+  private static int savedModificationCount;
+  private static int savedViewCount;
+
+  /** Time the first view not yet saved was noticed, or zero. */
+  private static long unsavedViewTime;
+
+  /** Set when the secrets must be saved even if they have not changed. */
+  private static boolean forceSave;
 
   private BackupManager backupManager;
 
+  /**
+   * Records that the secrets in memory are the same as those in the file,
+   * for example just after they are loaded.
+   */
+  public static synchronized void markSaved() {
+    markSaved(Secret.getModificationCount(), Secret.getViewCount());
+    forceSave = false;
+  }
+
+  /**
+   * Records that the secrets as of the given counts are in the file.  Must
+   * be called with the class locked.
+   */
+  private static void markSaved(int modificationCount, int viewCount) {
+    savedModificationCount = modificationCount;
+    if (savedViewCount != viewCount) {
+      savedViewCount = viewCount;
+      unsavedViewTime = 0;
+    }
+  }
+
+  /**
+   * Records that the secrets must be saved on the next call to execute(),
+   * for example because the file is in an older format, or the last save
+   * failed.
+   */
+  public static synchronized void markUnsaved() {
+    forceSave = true;
+  }
+
+  /**
+   * Do the secrets need to be saved?  They need to be if anything changed
+   * since the last save written.  If the only changes are views, they need
+   * to be saved only if flushViews is true or the views are getting old.
+   * While a save is waiting or being written, its changes still need to be
+   * saved; asking again only replaces the waiting secrets, and saving
+   * secrets that did not change does not write anything.
+   *
+   * @param flushViews True to save views right away, for example because
+   *     the list of secrets is paused for something other than a
+   *     configuration change.
+   * @return True if execute() should be called.
+   */
+  public static synchronized boolean isSaveNeeded(boolean flushViews) {
+    if (forceSave || Secret.getModificationCount() != savedModificationCount)
+      return true;
+
+    if (Secret.getViewCount() == savedViewCount)
+      return false;
+
+    long now = System.currentTimeMillis();
+    if (0 == unsavedViewTime)
+      unsavedViewTime = now;
+
+    return flushViews || now - unsavedViewTime >= VIEW_FLUSH_INTERVAL_MS;
+  }
+
   /**
    * Queue a background save of the secrets.
    *
    * @param context The activity requesting the save.
    * @param secrets The collection of secrets to save.
-   * @param cipher The encryption cipher.
-   * @param salt The salt used to create the cipher.
-   * @param rounds The number of rounds for bcrypt.
+   * @param info The ciphers to encrypt the secrets with.
    */
   public static synchronized void execute(Context context,
-                                          ArrayList<Secret> secrets,
-                                          Cipher cipher,
-                                          byte[] salt,
-                                          int rounds) {
+                                          List<Secret> secrets,
+                                          CipherInfo info) {
+    // The counts are taken now, along with the secrets, so that changes
+    // made while they are being written are not marked as saved.
     SaveService.secrets = secrets;
-    SaveService.cipher = cipher;
-    SaveService.salt = salt;
-    SaveService.rounds = rounds;
+    SaveService.info = info;
+    SaveService.modificationCount = Secret.getModificationCount();
+    SaveService.viewCount = Secret.getViewCount();
+    forceSave = false;
+    if (0 == queueDepth++)
+      queuedTime = SystemClock.elapsedRealtime();
 
     Intent intent = new Intent(context, SaveService.class);
     context.startService(intent);
@@ -88,36 +207,79 @@ public class SaveService extends Service {
   }
 
   @Override
-  public int onStartCommand(Intent intent, int flags, final int startId) {
+  public int onStartCommand(Intent intent, int flags, int startId) {
     synchronized (SaveService.class) {
-      final ArrayList<Secret> secrets = SaveService.secrets;
-      final Cipher cipher = SaveService.cipher;
-      final File file = getFileStreamPath(FileUtils.SECRETS_FILE_NAME);
-      final byte[] salt = SaveService.salt;
-      final int rounds = SaveService.rounds;
-
-      SaveService.secrets = null;
-      SaveService.cipher = null;
-      SaveService.salt = null;
-      SaveService.rounds = 0;
-
-      if (null != secrets && null != cipher) {
-        new Thread(new Runnable() {
+      lastStartId = startId;
+
+      // If the writer is already scheduled, it will pick up the secrets
+      // when it is done with the current save.
+      if (!isWriterScheduled) {
+        isWriterScheduled = true;
+        writer.execute(new Runnable() {
           @Override
           public void run() {
-            int r = FileUtils.saveSecrets(SaveService.this, file, cipher,
-                                          salt, rounds, secrets);
+            writeSecrets();
+          }});
+      }
+    }
+    return START_STICKY;
+  }
+
+  /**
+   * Writes the waiting secrets until there are none left, then stops the
+   * service.  Runs on the writer thread.
+   */
+  private void writeSecrets() {
+    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+    File file = getFileStreamPath(FileUtils.SECRETS_FILE_NAME);
 
-            // If the save was successful, schedule a backup.
-            if (0 == r)
-              backupManager.dataChanged();
+    while (true) {
+      List<Secret> secrets;
+      CipherInfo info;
+      int modificationCount;
+      int viewCount;
+      long queuedTime;
 
-            stopSelf(startId);
-          }}, "saveSecrets").start();
-      } else {
-        stopSelf(startId);
+      synchronized (SaveService.class) {
+        secrets = SaveService.secrets;
+        info = SaveService.info;
+        modificationCount = SaveService.modificationCount;
+        viewCount = SaveService.viewCount;
+        queuedTime = SaveService.queuedTime;
+
+        if (queueDepth > 1)
+          coalescedCount += queueDepth - 1;
+        SaveService.secrets = null;
+        SaveService.info = null;
+        queueDepth = 0;
+
+        if (null == secrets || null == info) {
+          isWriterScheduled = false;
+          stopSelf(lastStartId);
+          return;
+        }
+      }
+
+      long start = SystemClock.elapsedRealtime();
+      int r = FileUtils.saveSecrets(this, file, info, secrets);
+      long end = SystemClock.elapsedRealtime();
+
+      // If the save was successful, schedule a backup.  Otherwise make sure
+      // the next pause tries again.
+      if (0 == r)
+        backupManager.dataChanged();
+
+      synchronized (SaveService.class) {
+        if (0 == r)
+          markSaved(modificationCount, viewCount);
+        else
+          markUnsaved();
+        // The latency is measured from the oldest request the save covers.
+        ++saveCount;
+        Log.d(LOG_TAG, "save " + saveCount + ": " + (end - start) +
+              "ms writing, " + (end - queuedTime) + "ms latency, " +
+              coalescedCount + " coalesced, " + queueDepth + " queued");
       }
     }
-    return START_STICKY;
   }
 }
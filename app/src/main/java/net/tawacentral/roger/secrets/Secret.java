@@ -17,14 +17,21 @@ package net.tawacentral.roger.secrets;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.util.JsonReader;
 import android.util.Log;
 
 /**
@@ -54,17 +61,63 @@ public class Secret implements Comparable<Secret>, Serializable {
   private static final String SECRET_TIMESTAMP = "timestamp";
   private static final String SECRET_DELETED = "deleted";
 
-  // Secret fields
+  // Secret field tags, for the binary format
+  private static final int TAG_DESCRIPTION = 1;
+  private static final int TAG_USERNAME = 2;
+  private static final int TAG_PASSWORD = 3;
+  private static final int TAG_EMAIL = 4;
+  private static final int TAG_NOTE = 5;
+  private static final int TAG_DELETED = 6;
+  private static final int TAG_ACCESS_LOG = 7;
+  private static final int TAG_SEALED_PASSWORD = 8;
+  private static final int TAG_SEALED_NOTE = 9;
+
+  // Sealed fields are sealed with their name, so that a password and a note
+  // with the same value do not seal the same way.
+  private static final byte[] PASSWORD_LABEL =
+      SECRET_PASSWORD.getBytes(StandardCharsets.UTF_8);
+  private static final byte[] NOTE_LABEL =
+      SECRET_NOTE.getBytes(StandardCharsets.UTF_8);
+
+  // What is sealed is one of these bytes followed by the field in UTF-8,
+  // compressed or not.  Shorter fields are not worth compressing.
+  private static final byte[] SEALED_PLAIN = {0};
+  private static final byte[] SEALED_DEFLATE = {1};
+  private static final int MIN_DEFLATE_LENGTH = 64;
+
+  // Secret fields.  Only set before the secret is put in the list: a secret
+  // in the list may be being saved from another thread, so edits change a
+  // copy instead, see copy().
   private String description;
   private String username;
   private String password;
   private String email;
   private String note;
-  private ArrayList<LogEntry> access_log;
+  // The exception: views are logged in place.  The log is never modified
+  // once assigned; changes assign a modified copy instead.
+  private volatile ArrayList<LogEntry> access_log;
 
   /* soft deletion indicator */
   private boolean deleted;
 
+  /*
+   * The password and note as loaded from a binary file, still sealed, or
+   * null.  A sealed field is only unsealed when first needed, after which
+   * the sealed copy is kept to be saved again as is, until the field
+   * changes.  Only accessed with the secret locked, since the password and
+   * note are unsealed from whichever thread needs them first.
+   */
+  private transient Sealed sealedPassword;
+  private transient Sealed sealedNote;
+
+  /* modified since it was last saved; see FileUtils.saveSecrets() */
+  private transient volatile boolean changed;
+
+  /* number of changes to any secret or to the list; see SaveService */
+  private static final AtomicInteger modificationCount = new AtomicInteger();
+  /* number of VIEWED entries added to the access log of any secret */
+  private static final AtomicInteger viewCount = new AtomicInteger();
+
   /**
    * An immutable class that represents one entry in the access log.  Each
    * time the password is viewed or modified, the access log is updated with
@@ -132,6 +185,16 @@ public class Secret implements Comparable<Secret>, Serializable {
       return jsonValues;
     }
 
+    /** Streaming equivalent of toJSON().toString(). */
+    private void writeJSON(Writer writer) throws IOException {
+      writer.write('{');
+      writeJSONName(writer, LOG_TYPE, true);
+      writer.write(Integer.toString(getType()));
+      writeJSONName(writer, LOG_TIME, false);
+      writer.write(Long.toString(getTime()));
+      writer.write('}');
+    }
+
     /**
      * Generate LogEntry from json object
      * @param jsonValues
@@ -143,6 +206,110 @@ public class Secret implements Comparable<Secret>, Serializable {
       return new LogEntry(jsonValues.getInt(LOG_TYPE),
                            jsonValues.getLong(LOG_TIME));
     }
+
+    /**
+     * Generate LogEntry from the next json object of the reader
+     * @param reader
+     * @return LogEntry
+     * @throws IOException
+     */
+    public static LogEntry fromJSON(JsonReader reader) throws IOException {
+      boolean hasType = false;
+      boolean hasTime = false;
+      int type = 0;
+      long time = 0;
+
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if (LOG_TYPE.equals(name)) {
+          type = reader.nextInt();
+          hasType = true;
+        } else if (LOG_TIME.equals(name)) {
+          time = reader.nextLong();
+          hasTime = true;
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+
+      if (!hasType || !hasTime)
+        throw new IOException("Incomplete log entry");
+
+      return new LogEntry(type, time);
+    }
+  }
+
+  /**
+   * A field encrypted on its own with SecurityUtils.sealField(), and the key
+   * it was encrypted with.
+   */
+  private static final class Sealed {
+    final byte[] data;
+    final SecretKey key;
+
+    Sealed(byte[] data, SecretKey key) {
+      this.data = data;
+      this.key = key;
+    }
+
+    /** Seals the given field. */
+    static Sealed seal(String value, byte[] label, SecretKey key)
+        throws IOException {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      byte[] plaintext = null;
+      if (bytes.length >= MIN_DEFLATE_LENGTH)
+        plaintext = BinaryCodec.deflate(SEALED_DEFLATE, bytes);
+      if (null == plaintext) {
+        plaintext = new byte[SEALED_PLAIN.length + bytes.length];
+        System.arraycopy(SEALED_PLAIN, 0, plaintext, 0, SEALED_PLAIN.length);
+        System.arraycopy(bytes, 0, plaintext, SEALED_PLAIN.length,
+                         bytes.length);
+      }
+
+      byte[] data = SecurityUtils.sealField(key, label, plaintext);
+      if (null == data) {
+        throw new IOException("Cannot seal " + new String(label,
+            StandardCharsets.UTF_8));
+      }
+      return new Sealed(data, key);
+    }
+
+    /**
+     * Returns the unsealed field.
+     *
+     * @throws IOException if the field cannot be unsealed.
+     */
+    String unseal() throws IOException {
+      try {
+        byte[] plaintext = SecurityUtils.unsealField(key, data);
+        if (SEALED_DEFLATE[0] == plaintext[0]) {
+          return new String(BinaryCodec.inflate(plaintext, 1),
+                            StandardCharsets.UTF_8);
+        }
+        return new String(plaintext, 1, plaintext.length - 1,
+                          StandardCharsets.UTF_8);
+      } catch (GeneralSecurityException ex) {
+        throw new IOException("Cannot unseal: " + ex.getMessage());
+      }
+    }
+
+    /**
+     * Returns the unsealed field, for callers that cannot report an error.
+     * An empty string would be saved over the real field, so failing to
+     * unseal is fatal.
+     *
+     * @throws IllegalStateException if the field cannot be unsealed.
+     */
+    String unsealOrThrow() {
+      try {
+        return unseal();
+      } catch (IOException ex) {
+        Log.e(LOG_TAG, "unseal", ex);
+        throw new IllegalStateException(ex.getMessage(), ex);
+      }
+    }
   }
 
   /**
@@ -154,6 +321,28 @@ public class Secret implements Comparable<Secret>, Serializable {
     access_log.add(new LogEntry());
   }
 
+  /**
+   * Returns a copy of this secret, to be changed and put in the list in its
+   * place.  The copy shares the access log and the sealed fields, which are
+   * never modified, and needs to be saved.
+   */
+  Secret copy() {
+    Secret copy = new Secret();
+    copy.description = description;
+    copy.username = username;
+    copy.email = email;
+    copy.access_log = access_log;
+    copy.deleted = deleted;
+    synchronized (this) {
+      copy.password = password;
+      copy.sealedPassword = sealedPassword;
+      copy.note = note;
+      copy.sealedNote = sealedNote;
+    }
+    copy.changed = true;
+    return copy;
+  }
+
   /**
    * This method exists only to recover from a corrupted save file.  As each
    * secret is successfully read, it is added to a global array.  If the save
@@ -175,6 +364,7 @@ public class Secret implements Comparable<Secret>, Serializable {
 
   public void setDescription(String description) {
     this.description = description;
+    markChanged();
   }
   public String getDescription() {
     return description;
@@ -182,6 +372,7 @@ public class Secret implements Comparable<Secret>, Serializable {
 
   public void setUsername(String username) {
     this.username = username;
+    markChanged();
   }
 
   public String getUsername() {
@@ -201,7 +392,11 @@ public class Secret implements Comparable<Secret>, Serializable {
       createLogEntry(LogEntry.CHANGED);
     }
 
-    this.password = password;
+    synchronized (this) {
+      this.password = password;
+      sealedPassword = null;
+    }
+    markChanged();
   }
 
   /**
@@ -231,18 +426,27 @@ public class Secret implements Comparable<Secret>, Serializable {
     }
 
     long now = System.currentTimeMillis();
+    ArrayList<LogEntry> log = new ArrayList<LogEntry>(access_log);
     if (type == LogEntry.VIEWED || type == LogEntry.CHANGED) {
-      LogEntry lastEntry = access_log.get(0);
+      LogEntry lastEntry = log.get(0);
       if (now - lastEntry.getTime() < THRESHOLD_MS) {
         if (type == LogEntry.VIEWED) return;
         if (lastEntry.getType() == LogEntry.VIEWED) {
-          access_log.remove(0);
+          log.remove(0);
         }
       }
     }
 
-    access_log.add(0, new LogEntry(type, now));
-    pruneAccessLog();
+    log.add(0, new LogEntry(type, now));
+    pruneAccessLog(log);
+    access_log = log;
+
+    // Views are counted apart, since they are saved less eagerly.
+    changed = true;
+    if (type == LogEntry.VIEWED)
+      viewCount.incrementAndGet();
+    else
+      modificationCount.incrementAndGet();
   }
 
   /**
@@ -254,11 +458,24 @@ public class Secret implements Comparable<Secret>, Serializable {
   public String getPassword(boolean forExport) {
      createLogEntry(forExport ? LogEntry.EXPORTED : LogEntry.VIEWED);
 
+    return getPasswordValue();
+  }
+
+  /**
+   * Gets the password without updating the access log, unsealing it if this
+   * is the first time it is needed.
+   *
+   * @throws IllegalStateException if the password cannot be unsealed.
+   */
+  private synchronized String getPasswordValue() {
+    if (null == password && null != sealedPassword)
+      password = sealedPassword.unsealOrThrow();
     return password;
   }
 
   public void setEmail(String email) {
     this.email = email;
+    markChanged();
   }
 
   public String getEmail() {
@@ -266,10 +483,21 @@ public class Secret implements Comparable<Secret>, Serializable {
   }
 
   public void setNote(String note) {
-    this.note = note;
+    synchronized (this) {
+      this.note = note;
+      sealedNote = null;
+    }
+    markChanged();
   }
 
-  public String getNote() {
+  /**
+   * Gets the note, unsealing it if this is the first time it is needed.
+   *
+   * @throws IllegalStateException if the note cannot be unsealed.
+   */
+  public synchronized String getNote() {
+    if (null == note && null != sealedNote)
+      note = sealedNote.unsealOrThrow();
     return note;
   }
 
@@ -281,13 +509,25 @@ public class Secret implements Comparable<Secret>, Serializable {
   }
 
   /**
-   * Set the secret as deleted
+   * Set the secret as deleted.  Does nothing if it already is, so that its
+   * access log only gets one DELETED entry.
    */
   public void setDeleted() {
+    if (deleted)
+      return;
     deleted = true;
     createLogEntry(LogEntry.DELETED);
   }
 
+  /**
+   * Set the secret as not deleted, when a deleted secret is put back in the
+   * list.
+   */
+  public void setUndeleted() {
+    deleted = false;
+    markChanged();
+  }
+
   /**
 	 * Update this secret from another
 	 * @param from source secret
@@ -297,13 +537,57 @@ public class Secret implements Comparable<Secret>, Serializable {
 	  if (!(reason == LogEntry.CHANGED || reason == LogEntry.SYNCED || equals(from)))
 	    return;
 
-		setPassword(from.password, false);
+		setPassword(from.getPasswordValue(), false);
 		username = from.getUsername();
 		email = from.getEmail();
-		note = from.getNote();
+		setNote(from.getNote());
+		markChanged();
 		createLogEntry(reason);
 	}
 
+  /**
+   * Has the secret been modified since it was last saved?  This includes
+   * entries added to the access log.
+   */
+  boolean isChanged() {
+    return changed;
+  }
+
+  /** Sets whether the secret needs to be saved. */
+  void setChanged(boolean changed) {
+    this.changed = changed;
+  }
+
+  /** Marks the secret as modified since it was last saved. */
+  private void markChanged() {
+    changed = true;
+    modificationCount.incrementAndGet();
+  }
+
+  /**
+   * Records a change to the list of secrets, such as a secret being added or
+   * removed, which needs to be saved just like a change to a secret.
+   */
+  static void markListChanged() {
+    modificationCount.incrementAndGet();
+  }
+
+  /**
+   * Gets the number of changes made to any secret or to the list of secrets,
+   * not counting views.  Only meant to be compared with an earlier value.
+   */
+  static int getModificationCount() {
+    return modificationCount.get();
+  }
+
+  /**
+   * Gets the number of VIEWED entries added to the access log of any
+   * secret.  Only meant to be compared with an earlier value.
+   */
+  static int getViewCount() {
+    return viewCount.get();
+  }
+
   /**
    * Convert secret to a JSON OBJECT
    * @return JSON representation of a secret
@@ -313,9 +597,9 @@ public class Secret implements Comparable<Secret>, Serializable {
     JSONObject jsonSecret = new JSONObject();
     jsonSecret.put(SECRET_DESCRIPTION, description);
     jsonSecret.put(SECRET_USERNAME, username);
-    jsonSecret.put(SECRET_PASSWORD, password);
+    jsonSecret.put(SECRET_PASSWORD, getPasswordValue());
     jsonSecret.put(SECRET_EMAIL, email);
-    jsonSecret.put(SECRET_NOTE, note);
+    jsonSecret.put(SECRET_NOTE, getNote());
     jsonSecret.put(SECRET_TIMESTAMP, getLastChangedTime());
     jsonSecret.put(SECRET_DELETED, deleted);
 
@@ -328,6 +612,237 @@ public class Secret implements Comparable<Secret>, Serializable {
     return jsonSecret;
   }
 
+  /**
+   * Write the secret to the given writer as JSON.  The text written is
+   * identical to toJSON().toString(), including the omission of null fields,
+   * but no intermediate JSON objects are created.
+   * @param writer destination of the JSON text
+   * @throws IOException
+   */
+  public void writeJSON(Writer writer) throws IOException {
+    writer.write('{');
+    boolean first = writeJSONString(writer, SECRET_DESCRIPTION, description,
+                                    true);
+    first = writeJSONString(writer, SECRET_USERNAME, username, first);
+    first = writeJSONString(writer, SECRET_PASSWORD, getPasswordValue(),
+                            first);
+    first = writeJSONString(writer, SECRET_EMAIL, email, first);
+    first = writeJSONString(writer, SECRET_NOTE, getNote(), first);
+    writeJSONName(writer, SECRET_TIMESTAMP, first);
+    writer.write(Long.toString(getLastChangedTime()));
+    writeJSONName(writer, SECRET_DELETED, false);
+    writer.write(deleted ? "true" : "false");
+    writeJSONName(writer, SECRET_ACCESS_LOG, false);
+    writer.write('[');
+    List<LogEntry> log = access_log;
+    for (int i = 0; i < log.size(); ++i) {
+      if (i > 0)
+        writer.write(',');
+      log.get(i).writeJSON(writer);
+    }
+    writer.write("]}");
+  }
+
+  /**
+   * Write the secret to the given output in the binary format.  Like
+   * writeJSON(), null fields are left out, and the timestamp is not written
+   * since it is derived from the access log.  The log is written as one
+   * nested record: for each entry its type, and the difference between its
+   * time and the time of the entry before it, which for a log in reverse
+   * chronological order is small and positive.
+   *
+   * The password and note are sealed with the given key unless empty, so
+   * that they can stay sealed in memory when read back.  Fields still sealed
+   * with that key are written as they are.
+   * @param output destination of the record
+   * @param key the field key of the file being written
+   * @throws IOException
+   */
+  void writeBinary(BinaryCodec.Output output, SecretKey key)
+      throws IOException {
+    String password;
+    Sealed sealedPassword;
+    String note;
+    Sealed sealedNote;
+    synchronized (this) {
+      password = this.password;
+      sealedPassword = this.sealedPassword;
+      note = this.note;
+      sealedNote = this.sealedNote;
+    }
+
+    output.writeField(TAG_DESCRIPTION, description);
+    output.writeField(TAG_USERNAME, username);
+    sealedPassword = writeSealedField(output, TAG_PASSWORD,
+        TAG_SEALED_PASSWORD, PASSWORD_LABEL, password, sealedPassword, key);
+    output.writeField(TAG_EMAIL, email);
+    sealedNote = writeSealedField(output, TAG_NOTE, TAG_SEALED_NOTE,
+        NOTE_LABEL, note, sealedNote, key);
+
+    // Keep what was sealed for the next save, unless the fields changed
+    // meanwhile.
+    synchronized (this) {
+      if (null != sealedPassword && null == this.sealedPassword &&
+          password == this.password) {
+        this.sealedPassword = sealedPassword;
+      }
+      if (null != sealedNote && null == this.sealedNote &&
+          note == this.note) {
+        this.sealedNote = sealedNote;
+      }
+    }
+    if (deleted)
+      output.writeField(TAG_DELETED, 1);
+
+    List<LogEntry> log = access_log;
+    BinaryCodec.Output binaryLog = new BinaryCodec.Output(log.size() * 4);
+    long previous = 0;
+    for (int i = 0; i < log.size(); ++i) {
+      LogEntry entry = log.get(i);
+      binaryLog.writeVarint(entry.getType());
+      binaryLog.writeSignedVarint(previous - entry.getTime());
+      previous = entry.getTime();
+    }
+    output.writeField(TAG_ACCESS_LOG, binaryLog);
+  }
+
+  /**
+   * Write a password or note in the binary format, sealed unless empty.
+   *
+   * @return the sealed field written, or null if it was written unsealed
+   */
+  private static Sealed writeSealedField(BinaryCodec.Output output,
+                                         int tag,
+                                         int sealedTag,
+                                         byte[] label,
+                                         String value,
+                                         Sealed sealed,
+                                         SecretKey key) throws IOException {
+    if (null != sealed && !sealed.key.equals(key)) {
+      // Sealed with the key of another file, such as a restore point.  If it
+      // cannot be unsealed, the save fails rather than drop the field.
+      if (null == value)
+        value = sealed.unseal();
+      sealed = null;
+    }
+
+    if (null == sealed) {
+      if (null == value || value.isEmpty()) {
+        output.writeField(tag, value);
+        return null;
+      }
+      sealed = Sealed.seal(value, label, key);
+    }
+
+    output.writeField(sealedTag, sealed.data, 0, sealed.data.length);
+    return sealed;
+  }
+
+  /**
+   * Read a secret written by writeBinary().  Sealed fields are kept sealed
+   * until first needed.
+   * @param input the record of the secret
+   * @param key the field key of the file being read
+   * @return instance of a Secret
+   * @throws IOException
+   */
+  static Secret fromBinary(BinaryCodec.Input input, SecretKey key)
+      throws IOException {
+    Secret secret = new Secret();
+    ArrayList<LogEntry> log = null;
+
+    while (input.hasRemaining()) {
+      int field = input.readKey();
+      switch (BinaryCodec.getTag(field)) {
+        case TAG_DESCRIPTION:
+          secret.description = input.readString();
+          break;
+        case TAG_USERNAME:
+          secret.username = input.readString();
+          break;
+        case TAG_PASSWORD:
+          secret.password = input.readString();
+          break;
+        case TAG_SEALED_PASSWORD:
+          secret.sealedPassword = new Sealed(input.readBytes(), key);
+          break;
+        case TAG_EMAIL:
+          secret.email = input.readString();
+          break;
+        case TAG_NOTE:
+          secret.note = input.readString();
+          break;
+        case TAG_SEALED_NOTE:
+          secret.sealedNote = new Sealed(input.readBytes(), key);
+          break;
+        case TAG_DELETED:
+          secret.deleted = 0 != input.readVarint();
+          break;
+        case TAG_ACCESS_LOG: {
+          BinaryCodec.Input binaryLog = input.readRecord();
+          log = new ArrayList<LogEntry>();
+          long time = 0;
+          while (binaryLog.hasRemaining()) {
+            int type = binaryLog.readInt();
+            time -= binaryLog.readSignedVarint();
+            log.add(new LogEntry(type, time));
+          }
+          break;
+        }
+        default:
+          input.skipField(field);
+          break;
+      }
+    }
+
+    if (null == secret.description || null == secret.username ||
+        (null == secret.password && null == secret.sealedPassword) ||
+        null == secret.email ||
+        (null == secret.note && null == secret.sealedNote)) {
+      throw new IOException("Incomplete secret '" + secret.description + "'");
+    }
+
+    if (null != log) {
+      if (log.size() > 0) {
+        secret.access_log = log;
+      } else {
+        Log.w(LOG_TAG, "Empty access log for secret '" + secret.description
+                    + "'");
+      }
+    }
+
+    return secret;
+  }
+
+  /**
+   * Write the name part of a JSON name/value pair, preceded by a comma unless
+   * this is the first pair of the object.
+   */
+  private static void writeJSONName(Writer writer, String name, boolean first)
+      throws IOException {
+    if (!first)
+      writer.write(',');
+    writer.write(JSONObject.quote(name));
+    writer.write(':');
+  }
+
+  /**
+   * Write a JSON name/string pair.  Like JSONObject.put(), nothing is written
+   * if the value is null.
+   *
+   * @return true if nothing has been written to the object yet
+   */
+  private static boolean writeJSONString(Writer writer, String name,
+                                         String value, boolean first)
+      throws IOException {
+    if (null == value)
+      return first;
+
+    writeJSONName(writer, name, first);
+    writer.write(JSONObject.quote(value));
+    return false;
+  }
+
   /**
    * Convert JSON object to a Secret
    * @param jsonSecret JSON object
@@ -370,11 +885,72 @@ public class Secret implements Comparable<Secret>, Serializable {
     return secret;
   }
 
+  /**
+   * Read the next JSON object of the reader as a Secret.  This accepts the
+   * same input as fromJSON(JSONObject), but without needing the whole
+   * document to be parsed into memory first.
+   * @param reader JSON reader positioned before a secret object
+   * @return instance of a Secret
+   * @throws IOException
+   */
+  public static Secret fromJSON(JsonReader reader) throws IOException {
+    Secret secret = new Secret();
+    ArrayList<LogEntry> log = null;
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (SECRET_DESCRIPTION.equals(name)) {
+        secret.description = reader.nextString();
+      } else if (SECRET_USERNAME.equals(name)) {
+        secret.username = reader.nextString();
+      } else if (SECRET_PASSWORD.equals(name)) {
+        secret.password = reader.nextString();
+      } else if (SECRET_EMAIL.equals(name)) {
+        secret.email = reader.nextString();
+      } else if (SECRET_NOTE.equals(name)) {
+        secret.note = reader.nextString();
+      } else if (SECRET_DELETED.equals(name)) {
+        secret.deleted = reader.nextBoolean();
+      } else if (SECRET_ACCESS_LOG.equals(name)) {
+        log = new ArrayList<LogEntry>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+          log.add(LogEntry.fromJSON(reader));
+        }
+        reader.endArray();
+      } else {
+        // This includes the timestamp, which is derived from the log.
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    if (null == secret.description || null == secret.username ||
+        null == secret.password || null == secret.email ||
+        null == secret.note) {
+      throw new IOException("Incomplete secret '" + secret.description + "'");
+    }
+
+    if (null != log) {
+      if (log.size() > 0) {
+        secret.access_log = log;
+      } else {
+        Log.w(LOG_TAG, "Empty access log for secret '" + secret.description
+                    + "'");
+      }
+    }
+
+    // If there was no log, the constructor already created one with a
+    // CREATED entry.
+    return secret;
+  }
+
   public String toString() {
     StringBuilder sb = new StringBuilder();
     sb.append("d=").append(description);
     sb.append(",u=").append(username);
-    sb.append(",p=").append(password);
+    sb.append(",p=").append(getPasswordValue());
     sb.append(",e=").append(email);
     return sb.toString();
   }
@@ -418,8 +994,9 @@ public class Secret implements Comparable<Secret>, Serializable {
    * @return long time
    */
   public long getLastChangedTime() {
-    for (int i = 0; i < access_log.size(); i++) {
-      LogEntry entry = access_log.get(i);
+    List<LogEntry> log = access_log;
+    for (int i = 0; i < log.size(); i++) {
+      LogEntry entry = log.get(i);
       if (entry.getType() == LogEntry.CHANGED ||
           entry.getType() == LogEntry.SYNCED ||
           entry.getType() == LogEntry.CREATED ||
@@ -431,10 +1008,10 @@ public class Secret implements Comparable<Secret>, Serializable {
   }
 
   /**
-   * Prune the size of the access log to the maximum size by getting rid of
-   * the oldest entries.  The "created" log entry is never pruned away.
+   * Prune the size of the given access log to the maximum size by getting rid
+   * of the oldest entries.  The "created" log entry is never pruned away.
    */
-  private void pruneAccessLog() {
+  private static void pruneAccessLog(ArrayList<LogEntry> log) {
     // TODO(rogerta): may want to give lower priority to VIEWED entries.  Could
     // maybe implement this by doing a first pass that removes VIEWED entries
     // first to see if we can reach the limit.  If not, then do a paas to delete
@@ -444,11 +1021,11 @@ public class Secret implements Comparable<Secret>, Serializable {
     // a naive implementation of the above could end up never storing any and
     // VIEWED entries.
 
-    while(access_log.size() > MAX_LOG_SIZE) {
+    while(log.size() > MAX_LOG_SIZE) {
       // The "created" entry is always the last one in the list, and there
       // is only ever one.  So try to delete the second last item.
-      int index = access_log.size() - 2;
-      access_log.remove(index);
+      int index = log.size() - 2;
+      log.remove(index);
     }
   }
 }
@@ -0,0 +1,355 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A query of the secrets with predicates on their fields, typed after a
+ * question mark, for example "?user:alice email:@corp.com changed<30d".
+ * Full text searches, typed after a dot, are never parsed as queries, so
+ * their meaning does not change.  The predicates are:
+ *
+ *   user:VALUE     The username starts with VALUE.
+ *   email:VALUE    The email starts with VALUE.
+ *   email:@DOMAIN  The domain of the email is DOMAIN.
+ *   changed<AGE    The secret was changed less than AGE ago, for example
+ *                  12h, 30d, 2w or 1y.  A number alone is in days.
+ *   changed>AGE    The secret was changed more than AGE ago.
+ *   note:TEXT      The note contains TEXT.
+ *   deleted:true   Look in the deleted secrets instead of the list.
+ *
+ * The other words of the query are text that the secret must contain, as
+ * in a full text search, which does not look in notes.  A secret matches if everything holds, ignoring
+ * case.  A query without predicates is a plain full text search, and
+ * parse() returns null for it.
+ *
+ * The query runs as a plan: each predicate is answered by a range of an
+ * index of FieldIndex, counted in O(log n).  Only the secrets of the
+ * smallest range are looked at, and checked against the other predicates,
+ * and against the text with the text kept by TrigramIndex.  Notes are kept
+ * sealed until needed, so they are not indexed: note: predicates are
+ * checked last, and only unseal the notes of secrets that match the rest.  The deleted
+ * secrets are not indexed, and are all looked at.  explain() describes the
+ * plan of the last run, with the number of secrets of each step and the
+ * time it took.  It leaves out the values of the query, so that it can be
+ * logged.
+ *
+ * @author rogerta
+ */
+final class SecretQuery {
+  private static final long HOUR = 60 * 60 * 1000;
+  private static final long DAY = 24 * HOUR;
+
+  /** Cost of checking a predicate, in comparisons of sorting. */
+  private static final int SCAN_COST = 4;
+
+  /** How many secrets run() checks between looks at its signal. */
+  private static final int CHECK_STEP = 1024;
+
+  /** The field of note: predicates, which has no index. */
+  private static final int NOTE = -1;
+
+  /**
+   * A predicate on one field, answered by a range of one index, except for
+   * the note.
+   */
+  private static final class Predicate {
+    final String name;
+    final int field;
+    final String value;
+    final boolean isPrefix;
+    final long from;
+    final long to;
+
+    /** A predicate on the text field USERNAME, EMAIL, DOMAIN or NOTE. */
+    Predicate(String name, int field, String value, boolean isPrefix) {
+      this.name = name;
+      this.field = field;
+      this.value = SecretsListAdapter.getSortKey(value);
+      this.isPrefix = isPrefix;
+      from = 0;
+      to = 0;
+    }
+
+    /** A predicate on the time of last change, from included to excluded. */
+    Predicate(String name, long from, long to) {
+      this.name = name;
+      field = FieldIndex.CHANGED;
+      value = null;
+      isPrefix = false;
+      this.from = from;
+      this.to = to;
+    }
+
+    /** Can the secrets that match be found with an index? */
+    boolean isIndexed() {
+      return NOTE != field;
+    }
+
+    /**
+     * Returns the secrets that match, in the order of the index.  Must only
+     * be called if isIndexed().
+     */
+    List<Secret> find(FieldIndex index) {
+      return FieldIndex.CHANGED == field ? index.findChanged(from, to)
+                                         : index.find(field, value, isPrefix);
+    }
+
+    boolean matches(Secret secret) {
+      if (NOTE == field)
+        return SecretsListAdapter.getSortKey(secret.getNote()).contains(value);
+      if (FieldIndex.CHANGED == field) {
+        long time = secret.getLastChangedTime();
+        return from <= time && time < to;
+      }
+
+      String key = FieldIndex.getKey(field, secret);
+      return isPrefix ? key.startsWith(value) : key.equals(value);
+    }
+  }
+
+  private final ArrayList<Predicate> predicates;
+  private final String text;
+  private final boolean isDeleted;
+  private final StringBuilder plan = new StringBuilder();
+
+  private SecretQuery(ArrayList<Predicate> predicates, String text,
+                      boolean isDeleted) {
+    this.predicates = predicates;
+    this.text = text;
+    this.isDeleted = isDeleted;
+  }
+
+  /**
+   * Parses a query.  Words that look like predicates but are not valid,
+   * like "changed<soon", are text.
+   *
+   * @param query The query, without the leading question mark.
+   * @param now The current time, in millis since the epoch.
+   * @return The query, or null if it has no predicates.
+   */
+  static SecretQuery parse(String query, long now) {
+    ArrayList<Predicate> predicates = new ArrayList<Predicate>();
+    ArrayList<Predicate> notePredicates = new ArrayList<Predicate>();
+    StringBuilder text = new StringBuilder();
+    boolean isDeleted = false;
+    boolean hasPredicates = false;
+    for (String word : query.trim().split("\\s+")) {
+      String lower = word.toLowerCase();
+      Predicate predicate = null;
+      if (lower.startsWith("user:")) {
+        predicate = new Predicate("user:", FieldIndex.USERNAME,
+                                  word.substring(5), true);
+      } else if (lower.startsWith("email:@")) {
+        predicate = new Predicate("email:@", FieldIndex.DOMAIN,
+                                  word.substring(7), false);
+      } else if (lower.startsWith("email:")) {
+        predicate = new Predicate("email:", FieldIndex.EMAIL,
+                                  word.substring(6), true);
+      } else if (lower.startsWith("changed<") ||
+                 lower.startsWith("changed>")) {
+        long age = parseAge(lower.substring(8));
+        if (age >= 0) {
+          predicate = '<' == lower.charAt(7)
+              ? new Predicate("changed<", now - age, Long.MAX_VALUE)
+              : new Predicate("changed>", Long.MIN_VALUE, now - age);
+        }
+      } else if (lower.startsWith("note:") && lower.length() > 5) {
+        // Checked after the others, since it unseals the note.
+        notePredicates.add(new Predicate("note:", NOTE, word.substring(5),
+                                         false));
+        hasPredicates = true;
+        continue;
+      } else if (lower.equals("deleted:true") ||
+                 lower.equals("deleted:false")) {
+        isDeleted = lower.equals("deleted:true");
+        hasPredicates = true;
+        continue;
+      }
+
+      if (null != predicate) {
+        predicates.add(predicate);
+        hasPredicates = true;
+      } else if (word.length() > 0) {
+        if (text.length() > 0)
+          text.append(' ');
+        text.append(word);
+      }
+    }
+
+    if (!hasPredicates)
+      return null;
+
+    predicates.addAll(notePredicates);
+    return new SecretQuery(predicates, 0 == text.length() ? null
+        : SecretsListAdapter.getSortKey(text.toString()), isDeleted);
+  }
+
+  /**
+   * Parses an age such as 12h, 30d, 2w or 1y.
+   *
+   * @return The age in millis, or -1 if it is not valid.
+   */
+  private static long parseAge(String age) {
+    long unit = DAY;
+    if (age.length() > 0) {
+      switch (age.charAt(age.length() - 1)) {
+        case 'h': unit = HOUR; break;
+        case 'd': unit = DAY; break;
+        case 'w': unit = 7 * DAY; break;
+        case 'y': unit = 365 * DAY; break;
+        default: unit = 0; break;
+      }
+      if (0 != unit)
+        age = age.substring(0, age.length() - 1);
+      else
+        unit = DAY;
+    }
+
+    try {
+      long count = Long.parseLong(age);
+      return count < 0 || count > 1000 * 365 ? -1 : count * unit;
+    } catch (NumberFormatException ex) {
+      return -1;
+    }
+  }
+
+  /** Whether running the query needs the text index of the secrets. */
+  boolean needsTextIndex() {
+    return null != text && !isDeleted;
+  }
+
+  /**
+   * Runs the query.
+   *
+   * @param secrets The secrets of the list.
+   * @param index The indexes of the secrets of the list.
+   * @param textIndex The text index of the secrets of the list, or null if
+   *     needsTextIndex() is false.
+   * @param deletedSecrets The deleted secrets, sorted.
+   * @param signal Signal checked while running.
+   * @return The secrets found, sorted like the list.
+   * @throws OperationCanceledException If the signal is cancelled.
+   */
+  ArrayList<Secret> run(List<Secret> secrets, FieldIndex index,
+                        TrigramIndex textIndex, List<Secret> deletedSecrets,
+                        CancellationSignal signal) {
+    long start = System.nanoTime();
+    plan.setLength(0);
+
+    // Pick the secrets to look at.
+    ArrayList<Predicate> checks = new ArrayList<Predicate>(predicates);
+    List<Secret> candidates;
+    boolean isSorted = true;
+    if (isDeleted) {
+      candidates = deletedSecrets;
+      plan.append("scan deleted");
+    } else {
+      Predicate best = null;
+      candidates = secrets;
+      for (Predicate predicate : predicates) {
+        if (!predicate.isIndexed())
+          continue;
+
+        List<Secret> found = predicate.find(index);
+        plan.append("index ").append(predicate.name).append(' ')
+            .append(found.size()).append(", ");
+        if (null == best || found.size() < candidates.size()) {
+          best = predicate;
+          candidates = found;
+        }
+      }
+
+      // The secrets of a range are in the order of its index, so the
+      // matches have to be sorted.  When the range is large, checking the
+      // whole list, which is already sorted, costs less.
+      if (null != best && isCheaperToScan(candidates.size(), secrets.size(),
+                                          predicates.size())) {
+        plan.append("too many for ").append(best.name).append(", ");
+        best = null;
+        candidates = secrets;
+      }
+
+      if (null == best) {
+        plan.append("scan list");
+      } else {
+        plan.append("use ").append(best.name);
+        checks.remove(best);
+        isSorted = false;
+      }
+    }
+    plan.append(' ').append(candidates.size()).append(" -> check ")
+        .append(checks.size()).append(" predicates");
+    if (null != text)
+      plan.append(" and text");
+
+    ArrayList<Secret> matches = new ArrayList<Secret>();
+    for (int i = 0; i < candidates.size(); ++i) {
+      if (0 == i % CHECK_STEP)
+        signal.throwIfCanceled();
+
+      Secret secret = candidates.get(i);
+      if (matches(secret, checks, textIndex))
+        matches.add(secret);
+    }
+
+    if (!isSorted)
+      Collections.sort(matches);
+
+    plan.append(" -> ").append(matches.size()).append(" found, ")
+        .append((System.nanoTime() - start) / 1000).append(" us");
+    return matches;
+  }
+
+  /**
+   * Returns whether checking all the secrets against the predicates costs
+   * less than sorting the matches of a range.  Sorting takes about
+   * count log count comparisons, and a check about as much as a few.
+   */
+  private static boolean isCheaperToScan(int count, int total,
+                                         int predicates) {
+    int log = 32 - Integer.numberOfLeadingZeros(count);
+    return (long) count * log > (long) total * predicates * SCAN_COST;
+  }
+
+  private boolean matches(Secret secret, List<Predicate> checks,
+                          TrigramIndex textIndex) {
+    for (Predicate predicate : checks) {
+      if (!predicate.matches(secret))
+        return false;
+    }
+
+    if (null == text)
+      return true;
+    // The deleted secrets are not in the text index.
+    return isDeleted ? TrigramIndex.getText(secret).contains(text)
+                     : textIndex.contains(secret, text);
+  }
+
+  /**
+   * Describes the plan of the last run, for example
+   * "index user: 12, index changed< 3400, use user: 12 -> check 1
+   * predicates and text -> 3 found, 85 us".
+   */
+  String explain() {
+    return plan.toString();
+  }
+}
@@ -26,6 +26,7 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.text.ClipboardManager;
 import android.text.Html;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
@@ -57,12 +58,11 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
-import javax.crypto.Cipher;
-
 import static net.tawacentral.roger.secrets.FileUtils.DISABLE_DEPRECATION_WARNING;
 
 /**
@@ -87,6 +87,12 @@ public class SecretsListActivity extends ListActivity {
   private static final int DIALOG_CHANGE_PASSWORD = 4;
   private static final int DIALOG_ENTER_RESTORE_PASSWORD = 5;
   private static final int DIALOG_SYNC = 6;
+  private static final int DIALOG_RETENTION = 7;
+
+  /** The retention policies offered, in the order of the retention dialog. */
+  private static final RetentionPolicy[] RETENTION_POLICIES = {
+    RetentionPolicy.FEWER, RetentionPolicy.DEFAULT, RetentionPolicy.MORE
+  };
 
   // All RC_xxx constants should be different.
   private static final int RC_ACCESS_LOG = 1;
@@ -447,6 +453,7 @@ public class SecretsListActivity extends ListActivity {
     menu.findItem(R.id.list_import).setVisible(!isEditing);
     menu.findItem(R.id.list_export).setVisible(!isEditing && !secretsListEmpty);
     menu.findItem(R.id.list_menu_change_password).setVisible(!isEditing);
+    menu.findItem(R.id.list_restore_points).setVisible(!isEditing);
 
     menu.findItem(R.id.list_save).setVisible(isEditing);
     menu.findItem(R.id.list_generate_password).setVisible(isEditing);
@@ -504,6 +511,9 @@ public class SecretsListActivity extends ListActivity {
     case R.id.list_menu_change_password:
       showDialog(DIALOG_CHANGE_PASSWORD);
       break;
+    case R.id.list_restore_points:
+      showDialog(DIALOG_RETENTION);
+      break;
     default:
       break;
     }
@@ -703,6 +713,7 @@ public class SecretsListActivity extends ListActivity {
     }
 
     LoginActivity.replaceSecrets(secrets);
+    secretsList.resetSnapshot();
     secretsList.notifyDataSetChanged();
     setTitle();
     return true;
@@ -715,11 +726,8 @@ public class SecretsListActivity extends ListActivity {
     }
 
     // Backup everything to the SD card.
-    Cipher cipher = SecurityUtils.getEncryptionCipher();
-    byte[] salt = SecurityUtils.getSalt();
-    int rounds = SecurityUtils.getRounds();
-    if (FileUtils.backupSecrets(this, cipher, salt, rounds,
-        secretsList.getAllAndDeletedSecrets())) {
+    if (FileUtils.backupSecrets(this, SecurityUtils.getCipherInfo(),
+        secretsList.getSnapshot())) {
       showToast(R.string.backup_succeeded);
     } else {
       showToast(R.string.error_save_secrets);
@@ -730,16 +738,33 @@ public class SecretsListActivity extends ListActivity {
   private class RestoreDialogState {
     public int selected = 0;
 
-    private List<String> restorePoints;
+    private List<FileUtils.RestorePoint> restorePoints;
 
-    /** Get an array of choices for the restore dialog. */
+    /**
+     * Get an array of choices for the restore dialog.  Each choice shows
+     * when the restore point was written, how many secrets it holds and its
+     * size, from the manifest of restore points, so nothing is decrypted.
+     */
     public CharSequence[] getRestoreChoices() {
       restorePoints = FileUtils.getRestorePoints(SecretsListActivity.this);
-      return restorePoints.toArray(new CharSequence[restorePoints.size()]);
+      String template = getText(R.string.restore_point_details).toString();
+      String templateNoCount = getText(
+          R.string.restore_point_details_no_count).toString();
+      CharSequence[] choices = new CharSequence[restorePoints.size()];
+      for (int i = 0; i < choices.length; ++i) {
+        FileUtils.RestorePoint point = restorePoints.get(i);
+        String size = Formatter.formatShortFileSize(SecretsListActivity.this,
+                                                    point.size);
+        choices[i] = MessageFormat.format(
+            FileUtils.RestorePoint.UNKNOWN == point.count
+                ? templateNoCount : template,
+            point.name, new Date(point.time), point.count, size);
+      }
+      return choices;
     }
 
     public String getSelectedRestorePoint() {
-      return restorePoints.get(selected);
+      return restorePoints.get(selected).name;
     }
   }
 
@@ -800,7 +825,7 @@ public class SecretsListActivity extends ListActivity {
       } else if (agents.size() == 1) {
         // send secrets to the one available OSA
         if (!OnlineAgentManager.sendSecrets(agents.iterator().next(),
-            secretsList.getAllAndDeletedSecrets(), SecretsListActivity.this)) {
+            secretsList.getSnapshot(), SecretsListActivity.this)) {
           showToast(R.string.error_osa_secrets);
         }
       } else {
@@ -830,7 +855,8 @@ public class SecretsListActivity extends ListActivity {
     int incr = 1;
     boolean changed = false;
 
-    for (Secret secret : secrets) {
+    for (int i = 0; i < secrets.size(); ++i) {
+      Secret secret = secrets.get(i);
       String descr = secret.getDescription().trim();
       if (descr.equals(lastDescr)) {
         descr = descr + " ##" + incr++;
@@ -838,7 +864,10 @@ public class SecretsListActivity extends ListActivity {
       // if description changed, update it
       if (!secret.getDescription().equals(descr)) {
         if (action) {
+          // The secret may be being saved, so a copy is changed instead.
+          secret = secret.copy();
           secret.setDescription(descr);
+          secrets.set(i, secret);
         }
         changed = true;
         newDescrs.add(descr); // remember the new name for possible deletion
@@ -863,6 +892,7 @@ public class SecretsListActivity extends ListActivity {
           }
         }
       }
+      secretsList.resetSnapshot();
       secretsList.notifyDataSetChanged();
       String template = getText(R.string.num_normalized).toString();
       showToast(MessageFormat.format(template, newDescrs.size()));
@@ -990,10 +1020,20 @@ public class SecretsListActivity extends ListActivity {
           byte[] salt = SecurityUtils.getSalt();
           int rounds = bar.getProgress() + PROGRESS_ROUNDS_OFFSET;
 
+          // The secrets are encrypted again with a new data key, so that
+          // someone who knew the old password and kept the old key cannot
+          // read them.  The save is queued like any other, after any save
+          // still being written with the old key, and a save with a new key
+          // always writes the whole file.  Restore points keep the old key
+          // and password.
           SecurityUtils.CipherInfo info = SecurityUtils.createCiphers(password,
               salt, rounds);
+          if (null != info)
+            info = SecurityUtils.createWrappedCiphers(info);
           if (null != info) {
             SecurityUtils.saveCiphers(info);
+            SaveService.execute(SecretsListActivity.this,
+                                secretsList.getSnapshot(), info);
             showToast(R.string.password_changed);
           } else {
             showToast(R.string.error_reset_password);
@@ -1041,49 +1081,35 @@ public class SecretsListActivity extends ListActivity {
 
           String password = password1.getText().toString();
           FileUtils.SaltAndRounds saltAndRounds = FileUtils.getSaltAndRounds(
-              null, restorePoint);
+              SecretsListActivity.this, restorePoint);
 
           String message = null;
 
+          // The restore point may have been created by an older version of
+          // Secrets.  The format is detected from the file itself, so only
+          // the matching decoder is run.  See FileUtils load methods for
+          // details.
           SecurityUtils.CipherInfo info = SecurityUtils.createCiphers(password,
               saltAndRounds.salt, saltAndRounds.rounds);
-          if (restoreSecrets(restorePoint, info, false)) {
-            SecurityUtils.clearCiphers();
-            SecurityUtils.saveCiphers(info);
-            message = getText(R.string.password_changed).toString();
-            message += '\n';
-            message += getText(R.string.restore_succeeded).toString();
-          } else {
-            // Try old encryption mechanisms - this may be a restore point
-            // created by an older version of Secrets. See FileUtils load
-            // methods for details.
-
-            // Try V3.
-            ArrayList<Secret> secrets =
-                FileUtils.loadSecretsV3(SecretsListActivity.this, info,
-                                        restorePoint);
-
-            if (secrets == null) {
-              // Try V2.
-              Cipher cipher2 = SecurityUtils.createDecryptionCipherV2(password,
-                  saltAndRounds.salt, saltAndRounds.rounds);
-              secrets = FileUtils.loadSecretsV2(
-                  SecretsListActivity.this, restorePoint, cipher2,
-                  saltAndRounds.salt, saltAndRounds.rounds);
-            }
-
-            if (secrets == null) {
-              // Try V1.
-              Cipher cipher1 = SecurityUtils.createDecryptionCipherV1(password);
-              secrets = FileUtils.loadSecretsV1(SecretsListActivity.this,
-                  cipher1, restorePoint);
-            }
-
-            if (secrets != null) {
-              LoginActivity.replaceSecrets(secrets);
-              secretsList.notifyDataSetChanged();
-              setTitle();
-              message = getText(R.string.restore_succeeded).toString();
+          FileUtils.LoadedSecrets loaded = FileUtils.loadSecretsAnyVersion(
+              SecretsListActivity.this, restorePoint, info, password);
+          if (null != loaded) {
+            LoginActivity.replaceSecrets(loaded.secrets);
+            secretsList.resetSnapshot();
+            secretsList.notifyDataSetChanged();
+            setTitle();
+            message = getText(R.string.restore_succeeded).toString();
+
+            if (FileUtils.FORMAT_V4 <= loaded.format) {
+              info = SecurityUtils.getSaveCiphers(loaded.info);
+
+              if (null != info) {
+                SecurityUtils.clearCiphers();
+                SecurityUtils.saveCiphers(info);
+                message = getText(R.string.password_changed).toString();
+                message += '\n';
+                message += getText(R.string.restore_succeeded).toString();
+              }
             }
           }
 
@@ -1126,7 +1152,7 @@ public class SecretsListActivity extends ListActivity {
 
           // send secrets to the OSA
           if (!OnlineAgentManager.sendSecrets(selectedOSA,
-              secretsList.getAllAndDeletedSecrets(), SecretsListActivity.this)) {
+              secretsList.getSnapshot(), SecretsListActivity.this)) {
             showToast(R.string.error_osa_secrets);
           }
         }
@@ -1141,6 +1167,29 @@ public class SecretsListActivity extends ListActivity {
           .setSingleChoiceItems(adapter, 0, itemListener).create();
       break;
     }
+    case DIALOG_RETENTION: {
+      // A policy that is not one of those offered, for example from a
+      // newer version, is only replaced if the user picks another.
+      RetentionPolicy current = FileUtils.getRetentionPolicy(this);
+      int checked = Arrays.asList(RETENTION_POLICIES).indexOf(current);
+      CharSequence[] items = {
+        getText(R.string.retention_fewer),
+        getText(R.string.retention_default),
+        getText(R.string.retention_more)
+      };
+      dialog = new AlertDialog.Builder(this)
+          .setTitle(R.string.dialog_retention_title)
+          .setSingleChoiceItems(items, checked,
+              new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                  FileUtils.setRetentionPolicy(SecretsListActivity.this,
+                                               RETENTION_POLICIES[which]);
+                  removeDialog(DIALOG_RETENTION);
+                }
+              }).create();
+      break;
+    }
     default:
       break;
     }
@@ -1265,12 +1314,18 @@ public class SecretsListActivity extends ListActivity {
     // unless I use a notification (need to look into that). Also, because
     // the process hangs around, this thread should continue running until
     // completion even if the user switches to another task/application.
-    ArrayList<Secret> secrets = secretsList.getAllAndDeletedSecrets();
-
-    Cipher cipher = SecurityUtils.getEncryptionCipher();
-    byte[] salt = SecurityUtils.getSalt();
-    int rounds = SecurityUtils.getRounds();
-    SaveService.execute(this, secrets, cipher, salt, rounds);
+    //
+    // Nothing is saved if the secrets did not change, which is the case for
+    // most pauses, such as rotating the screen or switching to another
+    // application.  Changes that only add VIEWED entries to access logs are
+    // not saved when the screen rotates, but are on any other pause, since
+    // the process may be killed in the background and the access log is an
+    // audit trail; see SaveService.isSaveNeeded().
+    boolean flushViews = !isChangingConfigurations();
+    if (SaveService.isSaveNeeded(flushViews)) {
+      SaveService.execute(this, secretsList.getSnapshot(),
+                          SecurityUtils.getCipherInfo());
+    }
     super.onPause();
   }
 
@@ -1391,7 +1446,8 @@ public class SecretsListActivity extends ListActivity {
         return;
       }
 
-      secretsList.remove(editingPosition);
+      // The secret may be being saved, so a copy is changed instead.
+      secret = secretsList.remove(editingPosition).copy();
     }
 
     secret.setDescription(description.getText().toString());
@@ -15,8 +15,12 @@
 package net.tawacentral.roger.secrets;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.TreeSet;
 
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -36,6 +40,13 @@ import android.widget.TextView;
 @SuppressWarnings("javadoc")
 public class SecretsListAdapter extends BaseAdapter implements Filterable {
   public static final char DOT = '.';
+  public static final char TILDE = '~';
+  public static final char QUESTION = '?';
+
+  private static final String LOG_TAG = "SecretsListAdapter";
+
+  /** Queries that take longer than this, in millis, are logged. */
+  private static final long SLOW_QUERY_MILLIS = 100;
 
   // There are two secrets arrays.  secrets represents the array
   // use to implement the Adapter interface of this class (inherited from
@@ -52,6 +63,32 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
   private final ArrayList<Secret> allSecrets;
   private final ArrayList<Secret> deletedSecrets;
 
+  // The sort key of each secret in allSecrets, at the same position.  Since
+  // the keys are sorted, finding where a secret goes, or which secrets start
+  // with a prefix, is a binary search.  See getSortKey().  Guarded by the
+  // allSecrets lock, and updated along with allSecrets.
+  private final ArrayList<String> sortKeys;
+
+  // Index of the text of the secrets in allSecrets for full text search, or
+  // null until the first one.  Guarded by the allSecrets lock, and updated
+  // along with allSecrets once created.
+  private TrigramIndex textIndex;
+
+  // Indexes of the fields of the secrets in allSecrets for queries, or null
+  // until the first one.  Guarded by the allSecrets lock, and updated along
+  // with allSecrets once created.
+  private FieldIndex fieldIndex;
+
+  // Incremented whenever allSecrets changes, so that the filter knows when
+  // the results of earlier searches it keeps are out of date.  Guarded by
+  // the allSecrets lock.
+  private int version;
+
+  // All the secrets including the deleted ones, kept up to date along with
+  // the two arrays above.  Since a snapshot is immutable, it can be handed
+  // to a background thread while the arrays keep changing.
+  private volatile VaultSnapshot snapshot;
+
   // These members are used to maintain the auto complete lists for the
   // username and email fields.  I need to use the tree set because I don't
   // want to search the ArrayAdapters for existing names before inserting into
@@ -80,6 +117,7 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
     allSecrets = secrets;
     this.secrets = allSecrets;
     this.deletedSecrets = deletedSecrets;
+    sortKeys = new ArrayList<String>(allSecrets.size());
 
     // Fill in the auto complete adapters with the initial data from the
     // secrets.
@@ -111,6 +149,8 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
 
     usernameAdapter.setNotifyOnChange(true);
     emailAdapter.setNotifyOnChange(true);
+
+    resetSnapshot();
   }
 
   @Override
@@ -191,12 +231,29 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
 
   @Override
   public Filter getFilter() {
+    // The list view gets the filter each time its filter text changes, just
+    // before passing it the new text.  Filter drops the requests still
+    // waiting for the filter thread, but not one already running, so this
+    // is where a search for an older text is stopped.
     if (null == filter)
       filter  = new SecretsFilter();
+    else
+      filter.cancel();
 
     return filter;
   }
 
+  /** The matches of a full text search, kept by the filter. */
+  private static final class FullTextSearch {
+    final String query;
+    final TrigramIndex.Matches matches;
+
+    FullTextSearch(String query, TrigramIndex.Matches matches) {
+      this.query = query;
+      this.matches = matches;
+    }
+  }
+
   /**
    * Concrete subclass of Filter to allow filtering the list of secrets by
    * typing the first letters of the secret's description.
@@ -205,13 +262,36 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
    *
    */
   private class SecretsFilter extends Filter {
+    // The most full text searches kept in searches.
+    private static final int MAX_SEARCHES = 16;
+
+    // Recent full text searches, each for a query that extends the query of
+    // the one before.  Typing one more character only checks the matches of
+    // the last one, and deleting one finds the matches here.  Only used in
+    // performFiltering(), with the allSecrets lock held.
+    private final ArrayList<FullTextSearch> searches =
+        new ArrayList<FullTextSearch>();
+    private int searchesVersion;
+
+    // Signal of the most recent request, cancelled when a newer one arrives.
+    private volatile CancellationSignal signal = new CancellationSignal();
+
+    /** Stops the search of the request running, if any. */
+    void cancel() {
+      signal.cancel();
+      signal = new CancellationSignal();
+    }
+
     @Override
     // TODO(rogerta): the clone() method does not support generics.
     protected FilterResults performFiltering(CharSequence prefix) {
       // NOTE: this function is *always* called from a background thread, and
       // not the UI thread.
+      CancellationSignal signal = this.signal;
 
       boolean isFullTextSearch = false;
+      boolean isFuzzySearch = false;
+      boolean isQuery = false;
       FilterResults results = new FilterResults();
       String prefixString = null == prefix ? null
                                            : prefix.toString().toLowerCase();
@@ -229,39 +309,68 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
       //  prefix="abc"   -> prefix search with "abc"
       //  prefix=".abc"  -> full text search with "abc"
       //  prefix="..abc" -> prefix search with ".abc"
+      //
+      // A tilde works the same way for a fuzzy search, see FuzzySearch.
+      //
+      //  prefix="~goog mail" -> fuzzy search with "goog mail"
+      //  prefix="~~abc"      -> prefix search with "~abc"
+      //
+      // And a question mark for a query with predicates on fields, see
+      // SecretQuery.  A query without predicates is a full text search.
+      //
+      //  prefix="?user:bob bank" -> secrets of bob containing "bank"
+      //  prefix="??abc"          -> prefix search with "?abc"
       if (null != prefixString) {
         if (prefixString.length() > 0 && prefixString.charAt(0) == DOT) {
           isFullTextSearch = prefixString.length() > 1 &&
               prefixString.charAt(1) != DOT;
           prefixString = prefixString.substring(1);
+        } else if (prefixString.length() > 0 &&
+                   prefixString.charAt(0) == TILDE) {
+          isFuzzySearch = prefixString.length() > 1 &&
+              prefixString.charAt(1) != TILDE;
+          prefixString = prefixString.substring(1);
+        } else if (prefixString.length() > 0 &&
+                   prefixString.charAt(0) == QUESTION) {
+          isQuery = prefixString.length() > 1 &&
+              prefixString.charAt(1) != QUESTION;
+          prefixString = prefixString.substring(1);
         }
       }
 
-      if (null != prefixString && prefixString.length() > 0) {
-        // Do a shallow copy of the secrets list.  This works because all the
-        // members that we will access here are immutable.  If this ever changes
-        // then the locking strategy will need to get smarter.
+      if (null != prefixString && prefixString.length() > 0 &&
+          !isFullTextSearch && !isFuzzySearch && !isQuery) {
+        // The secrets whose description starts with the prefix are next to
+        // each other in the sorted list, so they are found with two binary
+        // searches and copied in one go.
+        String key = getSortKey(prefixString);
         synchronized (allSecrets) {
-          secrets = new ArrayList<Secret>(allSecrets);
+          int start = findSortKey(sortKeys, key, false);
+          int end = findPrefixEnd(sortKeys, key, start);
+          secrets = new ArrayList<Secret>(allSecrets.subList(start, end));
         }
 
-        // We loop backwards because we may be removing elements from the array
-        // in the loop, and we don't want to disturb the index when this
-        // happens.
-        for (int i = secrets.size() - 1; i >= 0; --i) {
-          Secret secret = secrets.get(i);
-          if (isFullTextSearch) {
-            if (!secret.getDescription().toLowerCase().contains(prefixString) &&
-                !secret.getEmail().toLowerCase().contains(prefixString) &&
-                !secret.getUsername().toLowerCase().contains(prefixString) &&
-                !secret.getNote().toLowerCase().contains(prefixString))
-              secrets.remove(i);
-          } else {
-            String description = secret.getDescription().toLowerCase();
-            if (!description.startsWith(prefixString)) {
-              secrets.remove(i);
+        results.values = secrets;
+        results.count = secrets.size();
+      } else if (null != prefixString && prefixString.length() > 0) {
+        try {
+          if (isFuzzySearch) {
+            // The secrets are in order of how well they match.
+            FuzzySearch search = new FuzzySearch(prefixString);
+            synchronized (allSecrets) {
+              secrets = search.search(allSecrets, signal);
             }
+          } else if (isQuery) {
+            SecretQuery query = SecretQuery.parse(prefixString,
+                                                  System.currentTimeMillis());
+            secrets = null == query ? searchFullText(prefixString, signal)
+                                    : runQuery(query, signal);
+          } else {
+            secrets = searchFullText(prefixString, signal);
           }
+        } catch (OperationCanceledException ex) {
+          // A newer request is waiting, and publishResults() ignores this one.
+          return results;
         }
 
         results.values = secrets;
@@ -277,17 +386,157 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
       return results;
     }
 
+    /**
+     * Returns the secrets that contain the given string in their text,
+     * starting from the results of an earlier query that it extends, if
+     * any.  Must be called from the filter thread.
+     *
+     * @param query The string to look for, in lower case.
+     * @param signal Signal of the request.
+     * @return A new list of the secrets found.
+     * @throws OperationCanceledException If the signal is cancelled.
+     */
+    private ArrayList<Secret> searchFullText(String query,
+                                             CancellationSignal signal) {
+      synchronized (allSecrets) {
+        // The index is only built for the first full text search, since it
+        // reads the text of all the secrets.
+        if (null == textIndex)
+          textIndex = new TrigramIndex(allSecrets);
+
+        if (searchesVersion != version) {
+          searches.clear();
+          searchesVersion = version;
+        }
+
+        // Drop the searches whose query this one does not extend, for
+        // example after deleting characters or pasting another query.
+        while (!searches.isEmpty() &&
+            !query.startsWith(searches.get(searches.size() - 1).query)) {
+          searches.remove(searches.size() - 1);
+        }
+
+        FullTextSearch last = searches.isEmpty() ? null
+            : searches.get(searches.size() - 1);
+        if (null == last || !last.query.equals(query)) {
+          TrigramIndex.Matches matches = textIndex.search(query,
+              null == last ? null : last.matches, signal);
+          last = new FullTextSearch(query, matches);
+          searches.add(last);
+          if (searches.size() > MAX_SEARCHES)
+            searches.remove(0);
+        }
+
+        return textIndex.getSecrets(last.matches);
+      }
+    }
+
+    /**
+     * Runs a query, and logs its plan if it is slow.  Must be called from
+     * the filter thread.
+     *
+     * @param query The query to run.
+     * @param signal Signal of the request.
+     * @return A new list of the secrets found.
+     * @throws OperationCanceledException If the signal is cancelled.
+     */
+    private ArrayList<Secret> runQuery(SecretQuery query,
+                                       CancellationSignal signal) {
+      long start = System.nanoTime();
+      ArrayList<Secret> secrets;
+      synchronized (allSecrets) {
+        // Like the text index, the indexes are only built when needed.
+        if (null == fieldIndex)
+          fieldIndex = new FieldIndex(allSecrets);
+        if (query.needsTextIndex() && null == textIndex)
+          textIndex = new TrigramIndex(allSecrets);
+        secrets = query.run(allSecrets, fieldIndex, textIndex,
+                            deletedSecrets, signal);
+      }
+
+      long millis = (System.nanoTime() - start) / 1000000;
+      if (millis >= SLOW_QUERY_MILLIS)
+        Log.d(LOG_TAG, "Slow query, " + millis + " ms: " + query.explain());
+      return secrets;
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     protected void publishResults(CharSequence prefix,
                                   FilterResults results) {
       // NOTE: this function is *always* called from the UI thread.
+      if (null == results.values)
+        return;
+
       secrets = (ArrayList<Secret>) results.values;
       notifyDataSetChanged();
       activity.setTitle();
     }
   }
 
+  /**
+   * Returns the key a description sorts by.  Each character is folded the
+   * way String.compareToIgnoreCase() compares characters, so the keys sort
+   * with String.compareTo() in the same order as the secrets, and a
+   * description starts with a prefix, ignoring case, exactly when its key
+   * starts with the key of the prefix.
+   */
+  static String getSortKey(String description) {
+    char[] chars = description.toCharArray();
+    for (int i = 0; i < chars.length; ++i)
+      chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+    return new String(chars);
+  }
+
+  /**
+   * Finds a key in sorted keys with a binary search.  Also used by the
+   * indexes of FieldIndex.
+   *
+   * @param keys The sorted keys.
+   * @param key The key to look for.
+   * @param isAfter Whether to find the first key that sorts after the
+   *     given key, rather than the first that does not sort before it.
+   * @return The position found, or the number of keys if there is none.
+   */
+  static <K extends Comparable<? super K>> int findSortKey(
+      List<? extends K> keys, K key, boolean isAfter) {
+    int low = 0;
+    int high = keys.size();
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      int compare = keys.get(middle).compareTo(key);
+      if (compare < 0 || (isAfter && 0 == compare))
+        low = middle + 1;
+      else
+        high = middle;
+    }
+    return low;
+  }
+
+  /**
+   * Finds the end of the sorted keys that start with a prefix, with a
+   * binary search.
+   *
+   * @param keys The sorted keys.
+   * @param prefix The key of the prefix.
+   * @param start The position of the first key that does not sort before
+   *     the prefix, as returned by findSortKey().
+   * @return The position of the first key from start that does not start
+   *     with the prefix, or the number of keys if there is none.
+   */
+  static int findPrefixEnd(List<String> keys, String prefix, int start) {
+    int low = start;
+    int high = keys.size();
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (keys.get(middle).startsWith(prefix))
+        low = middle + 1;
+      else
+        high = middle;
+    }
+    return low;
+  }
+
   /**
    * Totally for debugging.  Should be taken out before releasing.
    *
@@ -327,40 +576,50 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
   }
   
   /**
-   * Return a collection of all secrets including deleted ones.
-   * This is a merge of the two collections (all secrets and deleted secrets)
-   * unless either is empty, then just the non-empty collection is returned.
-   * The caller should not modify the returned collection.
-   * @return secrets collection
+   * Get a snapshot of all secrets including deleted ones, sorted.  This
+   * takes O(1), and the snapshot does not change when the adapter does, so
+   * it can be saved or sent in the background without holding any lock.
+   * @return secrets snapshot
    */
-   public ArrayList<Secret> getAllAndDeletedSecrets() {
-      if (deletedSecrets.size() == 0) {
-         return allSecrets;
-      }
-      if (allSecrets.size() == 0) {
-         return deletedSecrets;
-      }
-      ArrayList<Secret> allAndDeletedSecrets = new ArrayList<Secret>();
-      synchronized (allSecrets) {
-         // merge the two collections. Both collections are assumed sorted and
-         // secrets exist uniquely in only one collection.
-         int aIndex = 0, dIndex = 0;
-         while (aIndex < allSecrets.size() || dIndex < deletedSecrets.size()) {
-            if (aIndex == allSecrets.size()) {
-               allAndDeletedSecrets.add(deletedSecrets.get(dIndex++));
-            } else if (dIndex == deletedSecrets.size()) {
-               allAndDeletedSecrets.add(allSecrets.get(aIndex++));
-            } else {
-               if (allSecrets.get(aIndex).compareTo(deletedSecrets.get(dIndex)) < 0) {
-                  allAndDeletedSecrets.add(allSecrets.get(aIndex++));
-               } else {
-                  allAndDeletedSecrets.add(deletedSecrets.get(dIndex++));
-               }
-            }
-         }
+  public VaultSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Rebuild the snapshot from the secrets arrays.  Must be called when the
+   * arrays were changed without going through the adapter, for example
+   * when restoring a backup.
+   */
+  public void resetSnapshot() {
+    // merge the two collections. Both collections are assumed sorted and
+    // secrets exist uniquely in only one collection.
+    synchronized (allSecrets) {
+      ArrayList<Secret> allAndDeletedSecrets = new ArrayList<Secret>(
+          allSecrets.size() + deletedSecrets.size());
+      int aIndex = 0, dIndex = 0;
+      while (aIndex < allSecrets.size() || dIndex < deletedSecrets.size()) {
+        if (aIndex == allSecrets.size()) {
+          allAndDeletedSecrets.add(deletedSecrets.get(dIndex++));
+        } else if (dIndex == deletedSecrets.size()) {
+          allAndDeletedSecrets.add(allSecrets.get(aIndex++));
+        } else if (allSecrets.get(aIndex).compareTo(
+                       deletedSecrets.get(dIndex)) < 0) {
+          allAndDeletedSecrets.add(allSecrets.get(aIndex++));
+        } else {
+          allAndDeletedSecrets.add(deletedSecrets.get(dIndex++));
+        }
       }
-      return allAndDeletedSecrets;
-   }
+      snapshot = VaultSnapshot.of(allAndDeletedSecrets);
+
+      sortKeys.clear();
+      sortKeys.ensureCapacity(allSecrets.size());
+      for (Secret secret : allSecrets)
+        sortKeys.add(getSortKey(secret.getDescription()));
+      textIndex = null;
+      fieldIndex = null;
+      ++version;
+    }
+  }
 
   /** Remove the secret at the given position. It is not deleted. */
   public Secret remove(int position) {
@@ -377,22 +636,44 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
     Secret secret;
     synchronized (allSecrets) {
       secret = secrets.remove(position);
+      if (secret.isDeleted()) {
+        // Queries can list the deleted secrets.
+        deletedSecrets.remove(secret);
+        snapshot = snapshot.remove(secret);
+        Secret.markListChanged();
+        return secret;
+      }
+
       if (secrets != allSecrets) {
         position = allSecrets.indexOf(secret);
         allSecrets.remove(position);
       }
+      sortKeys.remove(position);
+      if (null != textIndex)
+        textIndex.remove(secret);
+      if (null != fieldIndex)
+        fieldIndex.remove(secret);
+      ++version;
+      snapshot = snapshot.remove(secret);
     }
 
+    Secret.markListChanged();
     return secret;
   }
   
   /** Remove the secret at the given position and then delete the secret
-   *  from the secrets collection */
+   *  from the secrets collection.  A secret that is already deleted, listed
+   *  by a query, is left as it is. */
   public Secret delete(int position) {
     int i;
     Secret secret;
     synchronized (allSecrets) {
-      secret = remove(position);
+      secret = secrets.get(position);
+      if (secret.isDeleted())
+        return secret;
+
+      // The secret may be being saved, so a copy is deleted instead.
+      secret = remove(position).copy();
       // add the deleted secret to the deleted secrets list, removing it
       // first if it has been deleted previously.
       for (i = 0; i < deletedSecrets.size(); ++i) {
@@ -400,12 +681,13 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
         int compare = secret.compareTo(s);
         if (compare < 0) break;
         else if (compare == 0) {
-           deletedSecrets.remove(i);
+           snapshot = snapshot.remove(deletedSecrets.remove(i));
            break;
         }
       }
       deletedSecrets.add(i, secret);
       secret.setDeleted();
+      snapshot = snapshot.insert(secret);
     }
 
     return secret;
@@ -426,12 +708,20 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
     // the sense that access to the array elements is not synch'ed.  That's
     // OK for this purpose though.
     synchronized (allSecrets) {
-      for (i = 0; i < allSecrets.size(); ++i) {
-        Secret s = allSecrets.get(i);
-        if (secret.compareTo(s) < 0)
-          break;
-      }
+      // A deleted secret listed by a query is restored when edited.
+      if (secret.isDeleted())
+        secret.setUndeleted();
+
+      // The secret goes after any secret that sorts the same.
+      String key = getSortKey(secret.getDescription());
+      i = findSortKey(sortKeys, key, true);
       allSecrets.add(i, secret);
+      sortKeys.add(i, key);
+      if (null != textIndex)
+        textIndex.add(secret);
+      if (null != fieldIndex)
+        fieldIndex.add(secret);
+      ++version;
 
       if (secrets != allSecrets) {
         for (i = 0; i < secrets.size(); ++i) {
@@ -443,9 +733,14 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
       }
       
       // in case a secret of the same name has been previously removed
-      deletedSecrets.remove(secret);
+      int deletedIndex = deletedSecrets.indexOf(secret);
+      if (deletedIndex >= 0)
+        snapshot = snapshot.remove(deletedSecrets.remove(deletedIndex));
+      snapshot = snapshot.insert(secret);
     }
 
+    Secret.markListChanged();
+
     // Add the username and email to the auto complete adapters.
     if (!usernames.contains(secret.getUsername())) {
       usernames.add(secret.getUsername());
@@ -472,7 +767,9 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
       synchronized (allSecrets) {
         OnlineAgentManager.syncSecrets(allSecrets, changedSecrets);
         deletedSecrets.clear();
+        resetSnapshot();
       }
+      Secret.markListChanged();
       notifyDataSetChanged();
     }
   }
@@ -15,12 +15,17 @@
 package net.tawacentral.roger.secrets;
 
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
 
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.PBEParameterSpec;
@@ -39,10 +44,48 @@ public class SecurityUtils {
   /** Tag for logging purposes. */
   public static final String LOG_TAG = "Secrets";
 
-  /** Return value of createCiphers call. */
+  /**
+   * Return value of createCiphers call.
+   *
+   * The secrets are encrypted with a random data key.  The key derived from
+   * the password, together with the salt and rounds, is only used to wrap
+   * the data key, and the wrapped key is stored in the file header.  A new
+   * data key is created when the password changes.  Files written before
+   * this scheme have no wrapped key, and the secrets are encrypted with the
+   * password key directly.
+   *
+   * The data key itself is never used to encrypt anything: a separate key
+   * is derived from it for each cipher mode, see hasDerivedKeys.
+   */
   public static class CipherInfo {
+    /**
+     * Ciphers for the payload of the file, with the initial vector of the
+     * file read, if any, or else a zero initial vector.  Files are written
+     * with a random initial vector, see createPayloadCipher().
+     */
     public Cipher encryptCipher;
     public Cipher decryptCipher;
+    /** The data key. */
+    public SecretKey key;
+    /**
+     * Keys for the CBC payload of the file, for the GCM chunks and journal
+     * records, and for the CTR sealed fields.
+     */
+    public SecretKey payloadKey;
+    public SecretKey chunkKey;
+    public SecretKey fieldKey;
+    /**
+     * Whether the keys above are derived from the data key, and payloads
+     * have a random initial vector.  Files written before keys were
+     * derived use the data key for all three, with a zero initial vector.
+     */
+    public boolean hasDerivedKeys;
+    /** The initial vector of the payload of the file read, or null. */
+    public byte[] payloadIv;
+    /** Key derived from the password, salt and rounds. */
+    public SecretKey passwordKey;
+    /** The data key wrapped with the password key, or null if none. */
+    public byte[] wrappedKey;
     public byte[] salt;
     public int rounds;
   }
@@ -84,6 +127,44 @@ public class SecurityUtils {
   private static final String KEY_FACTORY = "AES";
   private static final String CIPHER_FACTORY = "AES/CBC/PKCS5Padding";
 
+  // Used to encrypt and authenticate the chunks of a chunked secrets file.
+  private static final String CIPHER_FACTORY_CHUNK = "AES/GCM/NoPadding";
+  private static final int CHUNK_IV_LENGTH = 12;
+  private static final int CHUNK_TAG_BITS = 128;
+
+  // Used to name the chunks of a chunked secrets file.
+  private static final String MAC_FACTORY = "HmacSHA256";
+  private static final byte[] CHUNK_ID_LABEL =
+      "secrets chunk id".getBytes(StandardCharsets.UTF_8);
+  private static final int CHUNK_ID_LENGTH = 16;
+  private static final byte[] CHUNK_BOUNDARY_LABEL =
+      "secrets chunk boundary".getBytes(StandardCharsets.UTF_8);
+
+  // Used to encrypt the passwords and notes of secrets on their own.
+  private static final String CIPHER_FACTORY_FIELD = "AES/CTR/NoPadding";
+  private static final int FIELD_IV_LENGTH = 8;
+  private static final int CIPHER_BLOCK_LENGTH = 16;
+  private static final byte[] FIELD_IV_LABEL =
+      "secrets field iv".getBytes(StandardCharsets.UTF_8);
+
+  // Length in bytes of the random key used to encrypt the secrets.
+  private static final int DATA_KEY_LENGTH = 32;
+
+  // Used to derive the key of each cipher mode from the data key.
+  private static final byte[] PAYLOAD_KEY_LABEL =
+      "secrets payload key".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] CHUNK_KEY_LABEL =
+      "secrets chunk key".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] FIELD_KEY_LABEL =
+      "secrets field key".getBytes(StandardCharsets.UTF_8);
+
+  // Encrypted to create the key check value stored in the file header.
+  private static final byte[] KEY_CHECK_PLAINTEXT =
+      "secrets key check".getBytes(StandardCharsets.UTF_8);
+
+  // Used to decrypt single blocks of data when detecting the file format.
+  private static final String CIPHER_FACTORY_BLOCK = "AES/CBC/NoPadding";
+
   /** Class used to time the execution of functions */
   static public class ExecutionTimer {
     private long start = System.currentTimeMillis();
@@ -101,9 +182,23 @@ public class SecurityUtils {
 
   private static Cipher encryptCipher;
   private static Cipher decryptCipher;
+  private static SecretKey key;
+  private static SecretKey payloadKey;
+  private static SecretKey chunkKey;
+  private static SecretKey fieldKey;
+  private static boolean hasDerivedKeys;
+  private static SecretKey passwordKey;
+  private static byte[] wrappedKey;
   private static byte[] salt;
   private static int rounds;
 
+  // The MAC that derives the initial vectors of sealed fields, the cipher
+  // that seals them, and the field key they are for.  Kept since a save may
+  // seal thousands of fields.  Only used with the class locked.
+  private static Mac fieldIvMac;
+  private static Cipher fieldCipher;
+  private static SecretKey fieldCipherKey;
+
   /**
    * Get the cipher used to encrypt data using the password given to the
    * createCiphers() function.
@@ -136,11 +231,24 @@ public class SecurityUtils {
     return rounds;
   }
   
-  /** Gets information about current ciphers. */
+  /**
+   * Gets information about current ciphers, or null if they have been
+   * cleared.
+   */
   public static CipherInfo getCipherInfo() {
+    if (null == encryptCipher)
+      return null;
+
     CipherInfo info = new CipherInfo();
     info.encryptCipher = encryptCipher;
     info.decryptCipher = decryptCipher;
+    info.key = key;
+    info.payloadKey = payloadKey;
+    info.chunkKey = chunkKey;
+    info.fieldKey = fieldKey;
+    info.hasDerivedKeys = hasDerivedKeys;
+    info.passwordKey = passwordKey;
+    info.wrappedKey = wrappedKey;
     info.salt = salt.clone();
     info.rounds = rounds;
     return info;
@@ -205,11 +313,41 @@ public class SecurityUtils {
   public static Cipher createDecryptionCipherV2(String password,
                                                 byte[] salt,
                                                 int rounds) {
-    if (salt == null || rounds == 0)
+    SecretKey key = createKeyV2(password, salt, rounds);
+    if (null == key)
       return null;
 
     Cipher cipher = null;
 
+    try {
+      // For backwards compatibility with secrets create on Android M and
+      // earlier, create an initial vector of all zeros.
+      IvParameterSpec params = new IvParameterSpec(new byte[16]);
+
+      cipher = Cipher.getInstance(CIPHER_FACTORY_V2);
+      cipher.init(Cipher.DECRYPT_MODE, key, params);
+    } catch (Exception ex) {
+      Log.d(LOG_TAG, "createCiphersV2", ex);
+    }
+
+    return cipher;
+  }
+
+  /**
+   * Create the key used by the V2 decryption cipher.  See
+   * createDecryptionCipherV2() for details.
+   *
+   * @param password String to use for creating the key.
+   * @param salt The salt to use when creating the encryption key.
+   * @param rounds The number of rounds for bcrypt.
+   * @return The key, or null if it could not be created.
+   */
+  public static SecretKey createKeyV2(String password,
+                                      byte[] salt,
+                                      int rounds) {
+    if (salt == null || rounds == 0)
+      return null;
+
     try {
       int plaintext[] = {0x155cbf8e, 0x57f57513, 0x3da787b9, 0x71679d82,
                          0x7cf72e93, 0x1ae25274, 0x64b54adc, 0x335cbd0b};
@@ -217,18 +355,323 @@ public class SecurityUtils {
       byte[] rawBytes = bcrypt.crypt_raw(password.getBytes(
           StandardCharsets.UTF_8), salt,
                                          rounds, plaintext);
-      SecretKeySpec spec = new SecretKeySpec(rawBytes, KEY_FACTORY_V2);
+      return new SecretKeySpec(rawBytes, KEY_FACTORY_V2);
+    } catch (Exception ex) {
+      Log.d(LOG_TAG, "createKeyV2", ex);
+    }
 
-      // For backwards compatibility with secrets create on Android M and
-      // earlier, create an initial vector of all zeros.
-      IvParameterSpec params = new IvParameterSpec(new byte[16]);
+    return null;
+  }
 
-      cipher = Cipher.getInstance(CIPHER_FACTORY_V2);
-      cipher.init(Cipher.DECRYPT_MODE, spec, params);
+  /**
+   * Decrypt the first cipher block of data encrypted with the given key by
+   * the V2 or current ciphers.  This allows checking what kind of data was
+   * encrypted without decrypting all of it.
+   *
+   * @param key The key the data was encrypted with.
+   * @param iv The initial vector of the data, or null for a zero one.
+   * @param block The first block of encrypted data.
+   * @return The decrypted block, or null if it could not be decrypted.
+   */
+  public static byte[] decryptFirstBlock(SecretKey key, byte[] iv,
+                                         byte[] block) {
+    if (null == key || null == block)
+      return null;
+
+    try {
+      Cipher cipher = Cipher.getInstance(CIPHER_FACTORY_BLOCK);
+      cipher.init(Cipher.DECRYPT_MODE, key,
+                  new IvParameterSpec(null == iv ? new byte[16] : iv));
+      return cipher.doFinal(block, 0, cipher.getBlockSize());
     } catch (Exception ex) {
-      Log.d(LOG_TAG, "createCiphersV2", ex);
+      Log.d(LOG_TAG, "decryptFirstBlock", ex);
+    }
+
+    return null;
+  }
+
+  /**
+   * Create the id of a chunk of secrets.  The id depends only on the key and
+   * the contents of the chunk, so a chunk that has not changed since the
+   * last save keeps the same id and does not need to be written again.  The
+   * id reveals nothing about the contents without the key.
+   *
+   * @param key The chunk key of the secrets.
+   * @param plaintext The unencrypted contents of the chunk.
+   * @return The id, or null if it could not be created.
+   */
+  public static byte[] createChunkId(SecretKey key, byte[] plaintext) {
+    try {
+      Mac mac = createChunkMac(key);
+      return Arrays.copyOf(mac.doFinal(plaintext), CHUNK_ID_LENGTH);
+    } catch (GeneralSecurityException ex) {
+      Log.d(LOG_TAG, "createChunkId", ex);
+    }
+
+    return null;
+  }
+
+  /**
+   * Create the MAC that decides where chunks of secrets end.  A chunk ends
+   * after a secret whose description has a MAC with enough leading zero
+   * bits, see getChunkBoundaryHash().  Since the MAC is keyed, the sizes of
+   * the chunks, which are visible in the file, reveal nothing about the
+   * descriptions without the key.
+   *
+   * @param key The chunk key of the secrets.
+   * @return The MAC, or null if it could not be created.
+   */
+  public static Mac createChunkBoundaryMac(SecretKey key) {
+    try {
+      return createChunkMac(key);
+    } catch (GeneralSecurityException ex) {
+      Log.d(LOG_TAG, "createChunkBoundaryMac", ex);
+    }
+
+    return null;
+  }
+
+  /**
+   * Returns the first 32 bits of the MAC of a description, used to decide
+   * whether a chunk ends after the secret.
+   *
+   * @param mac The MAC returned by createChunkBoundaryMac().
+   * @param description The description of the secret.
+   */
+  public static int getChunkBoundaryHash(Mac mac, String description) {
+    mac.update(CHUNK_BOUNDARY_LABEL);
+    byte[] hash = mac.doFinal(description.getBytes(StandardCharsets.UTF_8));
+    return ((hash[0] & 0xFF) << 24) | ((hash[1] & 0xFF) << 16) |
+        ((hash[2] & 0xFF) << 8) | (hash[3] & 0xFF);
+  }
+
+  /**
+   * Derives the key of one cipher mode from the data key, as the MAC of a
+   * label that names the mode.
+   */
+  private static SecretKey deriveKey(SecretKey dataKey, byte[] label)
+      throws GeneralSecurityException {
+    Mac mac = Mac.getInstance(MAC_FACTORY);
+    mac.init(new SecretKeySpec(dataKey.getEncoded(), MAC_FACTORY));
+    return new SecretKeySpec(mac.doFinal(label), KEY_FACTORY);
+  }
+
+  /**
+   * Creates the MAC that names chunks, with a key derived from the chunk
+   * key.
+   */
+  private static Mac createChunkMac(SecretKey key)
+      throws GeneralSecurityException {
+    // Don't use the data key directly for two different algorithms, derive
+    // a separate key for the MAC.
+    Mac mac = Mac.getInstance(MAC_FACTORY);
+    mac.init(new SecretKeySpec(key.getEncoded(), MAC_FACTORY));
+    byte[] idKey = mac.doFinal(CHUNK_ID_LABEL);
+
+    mac.init(new SecretKeySpec(idKey, MAC_FACTORY));
+    return mac;
+  }
+
+  /**
+   * Encrypt and authenticate a chunk of secrets.  Unlike the main ciphers,
+   * each chunk uses a random initial vector, and tampering with the chunk or
+   * renaming it is detected on decryption.
+   *
+   * @param key The chunk key of the secrets.
+   * @param id The id of the chunk, as returned by createChunkId().
+   * @param plaintext The unencrypted contents of the chunk.
+   * @return The initial vector followed by the encrypted chunk, or null if
+   *     it could not be encrypted.
+   */
+  public static byte[] encryptChunk(SecretKey key, byte[] id,
+                                    byte[] plaintext) {
+    try {
+      byte[] iv = new byte[CHUNK_IV_LENGTH];
+      new SecureRandom().nextBytes(iv);
+
+      Cipher cipher = Cipher.getInstance(CIPHER_FACTORY_CHUNK);
+      cipher.init(Cipher.ENCRYPT_MODE, key,
+                  new GCMParameterSpec(CHUNK_TAG_BITS, iv));
+      cipher.updateAAD(id);
+
+      byte[] data = new byte[CHUNK_IV_LENGTH +
+                             cipher.getOutputSize(plaintext.length)];
+      System.arraycopy(iv, 0, data, 0, CHUNK_IV_LENGTH);
+      cipher.doFinal(plaintext, 0, plaintext.length, data, CHUNK_IV_LENGTH);
+      return data;
+    } catch (GeneralSecurityException ex) {
+      Log.d(LOG_TAG, "encryptChunk", ex);
     }
 
+    return null;
+  }
+
+  /**
+   * Encrypt one field of a secret on its own, so that it can stay encrypted
+   * in memory until it is needed.  Sealed fields are only ever stored inside
+   * chunks, which authenticate them, so they are not authenticated again.
+   * The initial vector is a MAC of the field rather than random: the same
+   * value always seals the same way, so the chunk holding it keeps the same
+   * id.  This only reveals which sealed values are equal.
+   *
+   * @param key The field key of the secrets.
+   * @param label Identifies the field, so that a password and a note with
+   *     the same value do not seal the same way.
+   * @param plaintext The unencrypted field.
+   * @return The initial vector followed by the encrypted field, or null if
+   *     it could not be encrypted.
+   */
+  public static byte[] sealField(SecretKey key, byte[] label,
+                                 byte[] plaintext) {
+    try {
+      synchronized (SecurityUtils.class) {
+        initFieldCiphers(key);
+        fieldIvMac.update(label);
+        byte[] data = new byte[FIELD_IV_LENGTH + plaintext.length];
+        System.arraycopy(fieldIvMac.doFinal(plaintext), 0, data, 0,
+                         FIELD_IV_LENGTH);
+        fieldCipher.init(Cipher.ENCRYPT_MODE, key, getFieldIv(data));
+        fieldCipher.doFinal(plaintext, 0, plaintext.length, data,
+                            FIELD_IV_LENGTH);
+        return data;
+      }
+    } catch (GeneralSecurityException ex) {
+      Log.d(LOG_TAG, "sealField", ex);
+    }
+
+    return null;
+  }
+
+  /**
+   * Decrypt a field sealed with sealField().
+   *
+   * @param key The field key of the secrets.
+   * @param data The sealed field.
+   * @return The unencrypted field.
+   * @throws GeneralSecurityException if the field cannot be decrypted.
+   */
+  public static byte[] unsealField(SecretKey key, byte[] data)
+      throws GeneralSecurityException {
+    if (data.length < FIELD_IV_LENGTH)
+      throw new GeneralSecurityException("Field too short");
+
+    synchronized (SecurityUtils.class) {
+      initFieldCiphers(key);
+      fieldCipher.init(Cipher.DECRYPT_MODE, key, getFieldIv(data));
+      return fieldCipher.doFinal(data, FIELD_IV_LENGTH,
+                                 data.length - FIELD_IV_LENGTH);
+    }
+  }
+
+  /**
+   * Creates the MAC and cipher used to seal fields with the given key,
+   * unless they already exist.  Must be called with the class locked.
+   */
+  private static void initFieldCiphers(SecretKey key)
+      throws GeneralSecurityException {
+    if (key.equals(fieldCipherKey))
+      return;
+
+    Mac mac = Mac.getInstance(MAC_FACTORY);
+    mac.init(new SecretKeySpec(key.getEncoded(), MAC_FACTORY));
+    byte[] ivKey = mac.doFinal(FIELD_IV_LABEL);
+    mac.init(new SecretKeySpec(ivKey, MAC_FACTORY));
+    fieldIvMac = mac;
+    fieldCipher = Cipher.getInstance(CIPHER_FACTORY_FIELD);
+    fieldCipherKey = key;
+  }
+
+  /** Returns the counter block of a sealed field, with a zero counter. */
+  private static IvParameterSpec getFieldIv(byte[] data) {
+    byte[] iv = new byte[CIPHER_BLOCK_LENGTH];
+    System.arraycopy(data, 0, iv, 0, FIELD_IV_LENGTH);
+    return new IvParameterSpec(iv);
+  }
+
+  /**
+   * Decrypt a chunk of secrets encrypted with encryptChunk().
+   *
+   * @param key The chunk key of the secrets.
+   * @param id The id of the chunk.
+   * @param data The initial vector followed by the encrypted chunk.
+   * @return The unencrypted contents of the chunk.
+   * @throws GeneralSecurityException if the chunk cannot be decrypted, or it
+   *     has been modified.
+   */
+  public static byte[] decryptChunk(SecretKey key, byte[] id, byte[] data)
+      throws GeneralSecurityException {
+    if (data.length < CHUNK_IV_LENGTH)
+      throw new GeneralSecurityException("Chunk too short");
+
+    Cipher cipher = Cipher.getInstance(CIPHER_FACTORY_CHUNK);
+    cipher.init(Cipher.DECRYPT_MODE, key,
+                new GCMParameterSpec(CHUNK_TAG_BITS, data, 0, CHUNK_IV_LENGTH));
+    cipher.updateAAD(id);
+    return cipher.doFinal(data, CHUNK_IV_LENGTH,
+                          data.length - CHUNK_IV_LENGTH);
+  }
+
+  /**
+   * Create a value that can later be used to check that ciphers use the
+   * same payload key as the given ones, without having to decrypt any
+   * secrets.  The value is a fixed block of data encrypted with the payload
+   * key and a zero initial vector.
+   *
+   * @param info The ciphers.
+   * @return The key check value, or null if it could not be created.
+   */
+  public static byte[] createKeyCheck(CipherInfo info) {
+    try {
+      return createPayloadCipher(info, Cipher.ENCRYPT_MODE, null)
+          .doFinal(KEY_CHECK_PLAINTEXT);
+    } catch (GeneralSecurityException ex) {
+      Log.d(LOG_TAG, "createKeyCheck", ex);
+    }
+
+    return null;
+  }
+
+  /**
+   * Check that the ciphers use the payload key that created the given key
+   * check value.
+   *
+   * @param info The ciphers.
+   * @param keyCheck Value returned by createKeyCheck().
+   * @return True if the ciphers can decrypt data encrypted with that key.
+   */
+  public static boolean checkKey(CipherInfo info, byte[] keyCheck) {
+    try {
+      return MessageDigest.isEqual(KEY_CHECK_PLAINTEXT,
+          createPayloadCipher(info, Cipher.DECRYPT_MODE, null)
+              .doFinal(keyCheck));
+    } catch (GeneralSecurityException ex) {
+      // With the wrong key, the padding is almost always invalid.
+      return false;
+    }
+  }
+
+  /** Create a new random initial vector for the payload of a file. */
+  public static byte[] createPayloadIv() {
+    byte[] iv = new byte[CIPHER_BLOCK_LENGTH];
+    new SecureRandom().nextBytes(iv);
+    return iv;
+  }
+
+  /**
+   * Create a cipher for the payload of a file.
+   *
+   * @param info The ciphers of the file.
+   * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE.
+   * @param iv The initial vector of the payload, or null for a zero one.
+   * @return The cipher.
+   * @throws GeneralSecurityException if the cipher cannot be created.
+   */
+  public static Cipher createPayloadCipher(CipherInfo info, int mode,
+                                           byte[] iv)
+      throws GeneralSecurityException {
+    Cipher cipher = Cipher.getInstance(CIPHER_FACTORY);
+    cipher.init(mode, info.payloadKey, new IvParameterSpec(
+        null == iv ? new byte[CIPHER_BLOCK_LENGTH] : iv));
     return cipher;
   }
 
@@ -278,6 +721,11 @@ public class SecurityUtils {
       info.decryptCipher = Cipher.getInstance(CIPHER_FACTORY);
       info.decryptCipher.init(Cipher.DECRYPT_MODE, spec, params);
 
+      info.key = spec;
+      info.payloadKey = spec;
+      info.chunkKey = spec;
+      info.fieldKey = spec;
+      info.passwordKey = spec;
       info.salt = salt;
       info.rounds = rounds;
     } catch (Exception ex) {
@@ -289,6 +737,166 @@ public class SecurityUtils {
     return info;
   }
 
+  /**
+   * Create ciphers that encrypt the secrets with a new random data key,
+   * wrapped with the password key of the given ciphers.
+   *
+   * @param passwordInfo Ciphers returned by createCiphers().
+   * @return The new ciphers, or null if they could not be created.
+   */
+  public static CipherInfo createWrappedCiphers(CipherInfo passwordInfo) {
+    byte[] rawBytes = new byte[DATA_KEY_LENGTH];
+    new SecureRandom().nextBytes(rawBytes);
+    return wrapKey(passwordInfo, new SecretKeySpec(rawBytes, KEY_FACTORY));
+  }
+
+  /**
+   * Create ciphers that encrypt the secrets with the given data key, wrapped
+   * with the password key of the given ciphers.
+   *
+   * @param passwordInfo Ciphers holding the password key, salt and rounds.
+   * @param dataKey Key used to encrypt the secrets.
+   * @return The new ciphers, or null if they could not be created.
+   */
+  private static CipherInfo wrapKey(CipherInfo passwordInfo,
+                                    SecretKey dataKey) {
+    try {
+      Cipher cipher = Cipher.getInstance(CIPHER_FACTORY);
+      cipher.init(Cipher.ENCRYPT_MODE, passwordInfo.passwordKey,
+                  new IvParameterSpec(new byte[16]));
+      return createDataCiphers(passwordInfo, dataKey,
+                               cipher.doFinal(dataKey.getEncoded()), true,
+                               null);
+    } catch (Exception ex) {
+      Log.d(LOG_TAG, "wrapKey", ex);
+    }
+
+    return null;
+  }
+
+  /**
+   * Get the ciphers needed to decrypt a file, given the ciphers created from
+   * the user's password and the wrapped key and payload initial vector
+   * found in the file's header.
+   *
+   * @param info Ciphers created from the user's password, or the current
+   *     ciphers.
+   * @param wrappedKey The wrapped key from the file, or null if the file has
+   *     none.
+   * @param payloadIv The initial vector of the payload of the file, or null
+   *     if the file has none, in which case its keys are not derived.
+   * @return The ciphers for the file, or null if the key cannot be unwrapped
+   *     with the given password key.
+   */
+  public static CipherInfo getFileCiphers(CipherInfo info, byte[] wrappedKey,
+                                          byte[] payloadIv) {
+    if (null == info)
+      return null;
+
+    boolean hasDerivedKeys = null != payloadIv;
+
+    // A file without a wrapped key is encrypted with the password key.
+    if (null == wrappedKey) {
+      if (null == info.passwordKey)
+        return null;
+
+      return createDataCiphers(info, info.passwordKey, null, hasDerivedKeys,
+                               payloadIv);
+    }
+
+    if (Arrays.equals(wrappedKey, info.wrappedKey)) {
+      return createDataCiphers(info, info.key, wrappedKey, hasDerivedKeys,
+                               payloadIv);
+    }
+
+    if (null == info.passwordKey)
+      return null;
+
+    try {
+      Cipher cipher = Cipher.getInstance(CIPHER_FACTORY);
+      cipher.init(Cipher.DECRYPT_MODE, info.passwordKey,
+                  new IvParameterSpec(new byte[16]));
+      byte[] rawBytes = cipher.doFinal(wrappedKey);
+      if (DATA_KEY_LENGTH != rawBytes.length)
+        return null;
+
+      return createDataCiphers(info, new SecretKeySpec(rawBytes, KEY_FACTORY),
+                               wrappedKey, hasDerivedKeys, payloadIv);
+    } catch (GeneralSecurityException ex) {
+      // With the wrong password key, the padding is almost always invalid.
+      Log.d(LOG_TAG, "getFileCiphers: cannot unwrap key");
+    }
+
+    return null;
+  }
+
+  /**
+   * Get the ciphers to save secrets with, given the ciphers of the file they
+   * were loaded from.  Secrets from files encrypted with the password key
+   * directly get a new data key.  Files that use their data key directly
+   * keep it, but derive the keys of each cipher mode from it from now on.
+   *
+   * @param fileInfo The ciphers of the file.
+   * @return The new ciphers, or null if they could not be created.
+   */
+  public static CipherInfo getSaveCiphers(CipherInfo fileInfo) {
+    if (null == fileInfo.wrappedKey)
+      return createWrappedCiphers(fileInfo);
+
+    return createDataCiphers(fileInfo, fileInfo.key, fileInfo.wrappedKey,
+                             true, null);
+  }
+
+  /**
+   * Create the ciphers for the given data key.
+   *
+   * @param passwordInfo Ciphers holding the password key, salt and rounds.
+   * @param dataKey Key used to encrypt the secrets.
+   * @param wrappedKey The data key wrapped with the password key.
+   * @param hasDerivedKeys Whether to derive the key of each cipher mode from
+   *     the data key, rather than use the data key for all of them.
+   * @param payloadIv The initial vector of the payload of the file the
+   *     ciphers are for, or null.
+   * @return The new ciphers, or null if they could not be created.
+   */
+  private static CipherInfo createDataCiphers(CipherInfo passwordInfo,
+                                              SecretKey dataKey,
+                                              byte[] wrappedKey,
+                                              boolean hasDerivedKeys,
+                                              byte[] payloadIv) {
+    CipherInfo info = new CipherInfo();
+
+    try {
+      if (hasDerivedKeys) {
+        info.payloadKey = deriveKey(dataKey, PAYLOAD_KEY_LABEL);
+        info.chunkKey = deriveKey(dataKey, CHUNK_KEY_LABEL);
+        info.fieldKey = deriveKey(dataKey, FIELD_KEY_LABEL);
+      } else {
+        info.payloadKey = dataKey;
+        info.chunkKey = dataKey;
+        info.fieldKey = dataKey;
+      }
+      info.hasDerivedKeys = hasDerivedKeys;
+      info.payloadIv = payloadIv;
+
+      info.encryptCipher = createPayloadCipher(info, Cipher.ENCRYPT_MODE,
+                                               payloadIv);
+      info.decryptCipher = createPayloadCipher(info, Cipher.DECRYPT_MODE,
+                                               payloadIv);
+
+      info.key = dataKey;
+      info.passwordKey = passwordInfo.passwordKey;
+      info.wrappedKey = wrappedKey;
+      info.salt = passwordInfo.salt;
+      info.rounds = passwordInfo.rounds;
+    } catch (Exception ex) {
+      Log.d(LOG_TAG, "createDataCiphers", ex);
+      info = null;
+    }
+
+    return info;
+  }
+
   /**
    * Create a pair of encryption and decryption ciphers based on the given
    * password string.  The string is not stored internally.  This function
@@ -302,14 +910,33 @@ public class SecurityUtils {
   public static void saveCiphers(CipherInfo info) {
     encryptCipher = info.encryptCipher;
     decryptCipher = info.decryptCipher;
+    key = info.key;
+    payloadKey = info.payloadKey;
+    chunkKey = info.chunkKey;
+    fieldKey = info.fieldKey;
+    hasDerivedKeys = info.hasDerivedKeys;
+    passwordKey = info.passwordKey;
+    wrappedKey = info.wrappedKey;
     salt = info.salt.clone();
     rounds = info.rounds;
   }
 
   /** Clear the ciphers from memory. */
   public static void clearCiphers() {
+    synchronized (SecurityUtils.class) {
+      fieldIvMac = null;
+      fieldCipher = null;
+      fieldCipherKey = null;
+    }
     decryptCipher = null;
     encryptCipher = null;
+    key = null;
+    payloadKey = null;
+    chunkKey = null;
+    fieldKey = null;
+    hasDerivedKeys = false;
+    passwordKey = null;
+    wrappedKey = null;
     salt = null;
     rounds = 0;
   }
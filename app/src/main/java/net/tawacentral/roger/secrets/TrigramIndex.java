@@ -0,0 +1,329 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * An index of the text of the secrets for full text search: the
+ * description, username and email.  Notes are left out, since they are
+ * kept sealed until needed, and indexing them would unseal every note on
+ * the first search; SecretQuery can search them.  Each secret gets a
+ * document id, and each sequence of three characters found in its text, a
+ * trigram, has a posting list of the ids of the secrets it appears in.  A search for a
+ * string of at least three characters only looks at the secrets that have
+ * all of its trigrams, found by intersecting their posting lists, and then
+ * checks that the string really is in their text.
+ *
+ * Text is folded like the sort keys of SecretsListAdapter, so searches
+ * ignore case.  The folded text of each secret is kept, so that checking a
+ * match does not need to read the secret again, and matches cannot span
+ * two fields.
+ *
+ * Removing a secret only marks its id as free; its postings are dropped
+ * when the index is rebuilt, once there are more removed ids than secrets.
+ * The index is not thread safe: SecretsListAdapter only uses it with the
+ * lock of its secrets held.  A search can be cancelled with a signal, so
+ * that a newer query does not wait for the lock.
+ *
+ * @author rogerta
+ */
+final class TrigramIndex {
+  /** Separates the fields of a secret in its folded text. */
+  private static final char SEPARATOR = '\0';
+
+  /** How many secrets search() checks between looks at its signal. */
+  private static final int CHECK_STEP = 1024;
+
+  /** A growable list of ids, in increasing order. */
+  private static final class Postings {
+    int[] ids = new int[4];
+    int size;
+
+    void add(int id) {
+      if (size > 0 && ids[size - 1] == id)
+        return;
+      if (size == ids.length)
+        ids = Arrays.copyOf(ids, size * 2);
+      ids[size++] = id;
+    }
+  }
+
+  /**
+   * The secrets found by a search, by id.  A search for a longer query
+   * can start from them, and only check the secrets that matched before.
+   */
+  static final class Matches {
+    private final String folded;
+    private final int[] ids;
+    private final int generation;
+
+    private Matches(String folded, int[] ids, int generation) {
+      this.folded = folded;
+      this.ids = ids;
+      this.generation = generation;
+    }
+  }
+
+  private final HashMap<Integer, Postings> postings =
+      new HashMap<Integer, Postings>();
+  private final IdentityHashMap<Secret, Integer> ids =
+      new IdentityHashMap<Secret, Integer>();
+
+  // The secret and folded text of each id, or null if the id was removed.
+  private final ArrayList<Secret> secrets = new ArrayList<Secret>();
+  private final ArrayList<String> texts = new ArrayList<String>();
+
+  // Incremented when the ids change, which makes earlier matches unusable.
+  private int generation;
+
+  /**
+   * Creates an index of the given secrets.  It is only created for the
+   * first full text search.
+   */
+  TrigramIndex(List<Secret> secrets) {
+    for (Secret secret : secrets)
+      add(secret);
+  }
+
+  /** Returns the folded text of a secret that searches look in. */
+  static String getText(Secret secret) {
+    StringBuilder text = new StringBuilder();
+    text.append(secret.getDescription()).append(SEPARATOR)
+        .append(secret.getUsername()).append(SEPARATOR)
+        .append(secret.getEmail());
+    return SecretsListAdapter.getSortKey(text.toString());
+  }
+
+  /** Adds a secret to the index, or updates it if already there. */
+  void add(Secret secret) {
+    remove(secret);
+    add(secret, getText(secret));
+  }
+
+  private void add(Secret secret, String text) {
+    int id = secrets.size();
+    secrets.add(secret);
+    texts.add(text);
+    ids.put(secret, id);
+
+    for (int i = 0; i + 3 <= text.length(); ++i) {
+      int trigram = getTrigram(text, i);
+      if (-1 == trigram)
+        continue;
+
+      Postings list = postings.get(trigram);
+      if (null == list) {
+        list = new Postings();
+        postings.put(trigram, list);
+      }
+      list.add(id);
+    }
+  }
+
+  /** Removes a secret from the index, if it is there. */
+  void remove(Secret secret) {
+    Integer id = ids.remove(secret);
+    if (null == id)
+      return;
+
+    secrets.set(id, null);
+    texts.set(id, null);
+    if (secrets.size() - ids.size() > Math.max(ids.size(), 64))
+      rebuild();
+  }
+
+  /** Indexes the remaining secrets again, with new ids. */
+  private void rebuild() {
+    ArrayList<Secret> oldSecrets = new ArrayList<Secret>(secrets);
+    ArrayList<String> oldTexts = new ArrayList<String>(texts);
+    postings.clear();
+    ids.clear();
+    secrets.clear();
+    texts.clear();
+    ++generation;
+    for (int i = 0; i < oldSecrets.size(); ++i) {
+      if (null != oldSecrets.get(i))
+        add(oldSecrets.get(i), oldTexts.get(i));
+    }
+  }
+
+  /**
+   * Finds the secrets that contain the given string in their text, ignoring
+   * case.
+   *
+   * When the matches of a shorter query that the string extends are known,
+   * they can be given.  They already have the trigrams of that query, so
+   * only the posting lists of the trigrams with the new characters are
+   * intersected with them.  Typing one more character then only looks at
+   * the secrets that matched before.  Matches from before a secret was
+   * removed may no longer be usable, and are then ignored.
+   *
+   * @param query The string to look for, not empty.
+   * @param within The matches of a query that the string may extend, or
+   *     null to search all the secrets.
+   * @param signal Signal checked while searching.
+   * @return The matches, see getSecrets().
+   * @throws OperationCanceledException If the signal is cancelled.
+   */
+  Matches search(String query, Matches within, CancellationSignal signal) {
+    String folded = SecretsListAdapter.getSortKey(query);
+    int[] candidates;
+    int count;
+    if (null != within && generation == within.generation &&
+        folded.startsWith(within.folded)) {
+      candidates = within.ids.clone();
+      count = candidates.length;
+      for (int i = Math.max(0, within.folded.length() - 2);
+           i + 3 <= folded.length() && count > 0; ++i) {
+        Postings list = getPostings(folded, i);
+        count = null == list ? 0
+            : intersect(candidates, count, list.ids, list.size);
+      }
+    } else {
+      candidates = getCandidates(folded);
+      count = null == candidates ? secrets.size() : candidates.length;
+    }
+
+    int[] found = new int[count];
+    int size = 0;
+    for (int i = 0; i < count; ++i) {
+      if (0 == i % CHECK_STEP)
+        signal.throwIfCanceled();
+
+      int id = null == candidates ? i : candidates[i];
+      String text = texts.get(id);
+      if (null != text && text.contains(folded))
+        found[size++] = id;
+    }
+    return new Matches(folded, Arrays.copyOf(found, size), generation);
+  }
+
+  /**
+   * Returns the secrets of the given matches that are still in the index,
+   * sorted like the list of secrets.
+   */
+  ArrayList<Secret> getSecrets(Matches matches) {
+    ArrayList<Secret> list = new ArrayList<Secret>(matches.ids.length);
+    if (generation == matches.generation) {
+      for (int id : matches.ids) {
+        Secret secret = secrets.get(id);
+        if (null != secret)
+          list.add(secret);
+      }
+    }
+
+    // Ids follow the order the secrets were added in, which is mostly the
+    // order of the list, so this sort has little to do.
+    Collections.sort(list);
+    return list;
+  }
+
+  /**
+   * Returns the ids of the secrets that have all the trigrams of the given
+   * folded string, or null if it is too short to have any.
+   */
+  private int[] getCandidates(String folded) {
+    ArrayList<Postings> lists = new ArrayList<Postings>();
+    for (int i = 0; i + 3 <= folded.length(); ++i) {
+      Postings list = getPostings(folded, i);
+      if (null == list)
+        return new int[0];
+      lists.add(list);
+    }
+    if (lists.isEmpty())
+      return null;
+
+    // Start from the shortest list, so that the candidates only get fewer.
+    Postings shortest = lists.get(0);
+    for (Postings list : lists) {
+      if (list.size < shortest.size)
+        shortest = list;
+    }
+
+    int[] candidates = Arrays.copyOf(shortest.ids, shortest.size);
+    int count = candidates.length;
+    for (Postings list : lists) {
+      if (list != shortest)
+        count = intersect(candidates, count, list.ids, list.size);
+    }
+    return Arrays.copyOf(candidates, count);
+  }
+
+  /**
+   * Returns whether the text of the given secret contains the given folded
+   * string, or false if the secret is not in the index.  This only looks at
+   * the text kept in the index.
+   */
+  boolean contains(Secret secret, String folded) {
+    Integer id = ids.get(secret);
+    return null != id && texts.get(id).contains(folded);
+  }
+
+  /**
+   * Returns the posting list of the trigram starting at the given position
+   * of folded text, or null if no secret has it.
+   */
+  private Postings getPostings(String folded, int i) {
+    int trigram = getTrigram(folded, i);
+    return -1 == trigram ? null : postings.get(trigram);
+  }
+
+  /**
+   * Keeps the candidates that are also in the given ids.  Both are in
+   * increasing order, and each candidate is looked for with a binary search
+   * from where the last one was found, which is faster than a merge when
+   * there are few candidates left.
+   *
+   * @return The number of candidates kept, at the start of the array.
+   */
+  private static int intersect(int[] candidates, int count, int[] ids,
+                               int size) {
+    int kept = 0;
+    int from = 0;
+    for (int i = 0; i < count && from < size; ++i) {
+      int found = Arrays.binarySearch(ids, from, size, candidates[i]);
+      if (found >= 0) {
+        candidates[kept++] = candidates[i];
+        from = found + 1;
+      } else {
+        from = -found - 1;
+      }
+    }
+    return kept;
+  }
+
+  /**
+   * Returns the trigram starting at the given position of folded text, or
+   * -1 if it spans two fields.  Characters below 1024 are encoded exactly;
+   * others may share a trigram, which only adds candidates.
+   */
+  private static int getTrigram(String text, int i) {
+    char a = text.charAt(i);
+    char b = text.charAt(i + 1);
+    char c = text.charAt(i + 2);
+    if (SEPARATOR == a || SEPARATOR == b || SEPARATOR == c)
+      return -1;
+    return ((a & 0x3FF) << 20) | ((b & 0x3FF) << 10) | (c & 0x3FF);
+  }
+}
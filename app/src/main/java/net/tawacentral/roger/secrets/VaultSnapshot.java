@@ -0,0 +1,267 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable list of secrets, sorted by description, that includes the
+ * deleted secrets.  Adding or removing a secret returns a new snapshot that
+ * shares all but O(log n) of its structure with the old one, so the UI can
+ * keep changing the list while a snapshot taken earlier is being saved,
+ * backed up or synced on another thread, without copying or locking.
+ *
+ * The snapshot is a balanced binary tree where each node knows the size of
+ * its subtree, which makes finding a secret by position O(log n).
+ *
+ * The secrets are shared with the UI, but are not edited once in a
+ * snapshot: an edit changes a copy of the secret, which replaces it in the
+ * next snapshot, so a save never sees a half edited secret.  Only their
+ * access log still changes, when a password is viewed, and it is replaced
+ * as a whole.  See Secret.copy().
+ *
+ * @author rogerta
+ */
+public final class VaultSnapshot extends AbstractList<Secret> {
+  /** One node of the tree. */
+  private static final class Node {
+    final Secret secret;
+    final Node left;
+    final Node right;
+    final int size;
+    final int height;
+
+    Node(Node left, Secret secret, Node right) {
+      this.left = left;
+      this.secret = secret;
+      this.right = right;
+      size = size(left) + 1 + size(right);
+      height = Math.max(height(left), height(right)) + 1;
+    }
+  }
+
+  /** The snapshot with no secrets. */
+  public static final VaultSnapshot EMPTY = new VaultSnapshot(null);
+
+  private final Node root;
+
+  private VaultSnapshot(Node root) {
+    this.root = root;
+  }
+
+  /**
+   * Creates a snapshot of the given secrets, which must already be sorted.
+   * This takes O(n).
+   *
+   * @param secrets The sorted secrets.
+   */
+  public static VaultSnapshot of(List<Secret> secrets) {
+    return new VaultSnapshot(build(secrets, 0, secrets.size()));
+  }
+
+  /**
+   * Returns a snapshot with the given secret added after any secret that
+   * sorts the same.
+   *
+   * @param secret The secret to add.
+   */
+  public VaultSnapshot insert(Secret secret) {
+    int position = 0;
+    for (Node node = root; null != node; ) {
+      if (secret.compareTo(node.secret) < 0) {
+        node = node.left;
+      } else {
+        position += size(node.left) + 1;
+        node = node.right;
+      }
+    }
+
+    return new VaultSnapshot(insert(root, position, secret));
+  }
+
+  /**
+   * Returns a snapshot without the given secret.  The secret is found by
+   * identity, so other secrets with the same description are kept.
+   *
+   * @param secret The secret to remove.
+   * @return The new snapshot, or this one if it does not hold the secret.
+   */
+  public VaultSnapshot remove(Secret secret) {
+    // Find the first secret that sorts the same, then look for this one
+    // among those that follow.
+    int position = 0;
+    int first = size(root);
+    for (Node node = root; null != node; ) {
+      if (secret.compareTo(node.secret) <= 0) {
+        first = position + size(node.left);
+        node = node.left;
+      } else {
+        position += size(node.left) + 1;
+        node = node.right;
+      }
+    }
+
+    for (int i = first; i < size(root); ++i) {
+      Secret candidate = get(i);
+      if (candidate == secret)
+        return new VaultSnapshot(remove(root, i));
+      if (0 != secret.compareTo(candidate))
+        break;
+    }
+
+    return this;
+  }
+
+  @Override
+  public Secret get(int position) {
+    if (position < 0 || position >= size(root))
+      throw new IndexOutOfBoundsException("position=" + position);
+
+    Node node = root;
+    while (true) {
+      int leftSize = size(node.left);
+      if (position < leftSize) {
+        node = node.left;
+      } else if (position == leftSize) {
+        return node.secret;
+      } else {
+        position -= leftSize + 1;
+        node = node.right;
+      }
+    }
+  }
+
+  @Override
+  public int size() {
+    return size(root);
+  }
+
+  /** Iterates the secrets in order, in O(1) amortized per secret. */
+  @Override
+  public Iterator<Secret> iterator() {
+    return new Iterator<Secret>() {
+      private final ArrayList<Node> stack = new ArrayList<Node>();
+      {
+        pushLeft(root);
+      }
+
+      private void pushLeft(Node node) {
+        for (; null != node; node = node.left)
+          stack.add(node);
+      }
+
+      @Override
+      public boolean hasNext() {
+        return !stack.isEmpty();
+      }
+
+      @Override
+      public Secret next() {
+        if (stack.isEmpty())
+          throw new NoSuchElementException();
+
+        Node node = stack.remove(stack.size() - 1);
+        pushLeft(node.right);
+        return node.secret;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private static int size(Node node) {
+    return null == node ? 0 : node.size;
+  }
+
+  private static int height(Node node) {
+    return null == node ? 0 : node.height;
+  }
+
+  private static Node build(List<Secret> secrets, int start, int end) {
+    if (start >= end)
+      return null;
+
+    int middle = (start + end) >>> 1;
+    return new Node(build(secrets, start, middle), secrets.get(middle),
+                    build(secrets, middle + 1, end));
+  }
+
+  private static Node insert(Node node, int position, Secret secret) {
+    if (null == node)
+      return new Node(null, secret, null);
+
+    int leftSize = size(node.left);
+    if (position <= leftSize) {
+      return balance(insert(node.left, position, secret), node.secret,
+                     node.right);
+    }
+    return balance(node.left, node.secret,
+                   insert(node.right, position - leftSize - 1, secret));
+  }
+
+  private static Node remove(Node node, int position) {
+    int leftSize = size(node.left);
+    if (position < leftSize)
+      return balance(remove(node.left, position), node.secret, node.right);
+    if (position > leftSize) {
+      return balance(node.left, node.secret,
+                     remove(node.right, position - leftSize - 1));
+    }
+
+    // Replace the removed node by the first node of its right subtree.
+    if (null == node.right)
+      return node.left;
+
+    Node first = node.right;
+    while (null != first.left)
+      first = first.left;
+    return balance(node.left, first.secret, remove(node.right, 0));
+  }
+
+  /**
+   * Creates a node from the given parts, rotating them if the heights of
+   * the two subtrees differ by more than one.  Insertion and removal change
+   * a height by at most one, so one single or double rotation is enough.
+   */
+  private static Node balance(Node left, Secret secret, Node right) {
+    int difference = height(left) - height(right);
+    if (difference > 1) {
+      if (height(left.left) >= height(left.right)) {
+        return new Node(left.left, left.secret,
+                        new Node(left.right, secret, right));
+      }
+      return new Node(new Node(left.left, left.secret, left.right.left),
+                      left.right.secret,
+                      new Node(left.right.right, secret, right));
+    }
+    if (difference < -1) {
+      if (height(right.right) >= height(right.left)) {
+        return new Node(new Node(left, secret, right.left), right.secret,
+                        right.right);
+      }
+      return new Node(new Node(left, secret, right.left.left),
+                      right.left.secret,
+                      new Node(right.left.right, right.secret, right.right));
+    }
+    return new Node(left, secret, right);
+  }
+}
@@ -0,0 +1,173 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import net.tawacentral.roger.secrets.SecurityUtils.CipherInfo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Helpers shared by the benchmarks.  The benchmarks are JVM tests run with
+ * Robolectric, and print what they measure to the test output:
+ *
+ *   ./gradlew testDebugUnitTest --tests '*Benchmark'
+ *
+ * Each benchmark also checks that what it times gives the right secrets.
+ * Times on a desktop JVM compare the code paths with each other; they say
+ * little about how long the same work takes on a device.
+ *
+ * @author rogerta
+ */
+final class BenchmarkUtils {
+  /** The password of the vaults created by the benchmarks. */
+  static final String PASSWORD = "benchmark";
+
+  private static final String CHARACTERS =
+      "abcdefghijklmnopqrstuvwxyzABCDEFGH /\"\\\n\té中<>";
+
+  private BenchmarkUtils() {
+  }
+
+  /**
+   * Creates the given number of secrets, sorted.  The secrets are the same
+   * on every call.  One secret in ten has a long note, and one in fifty is
+   * deleted.
+   */
+  static ArrayList<Secret> createSecrets(int count) {
+    Random random = new Random(42);
+    ArrayList<Secret> secrets = new ArrayList<Secret>(count);
+    for (int i = 0; i < count; ++i) {
+      Secret secret = new Secret();
+      secret.setDescription(String.format("site %06d %s", i,
+                                          createText(random, 8)));
+      secret.setUsername("user" + (i % 37));
+      secret.setPassword(createText(random, 12), false);
+      secret.setEmail("me" + (i % 5) + "@example.com");
+      secret.setNote(createText(random, 0 == i % 10 ? 400 : 20));
+
+      // Add a few entries to the access log.
+      for (int j = 0; j < i % 7; ++j)
+        secret.getPassword(0 == j % 2);
+
+      if (0 == i % 50)
+        secret.setDeleted();
+      secrets.add(secret);
+    }
+    return secrets;
+  }
+
+  /** Returns random text of the given length. */
+  private static String createText(Random random, int length) {
+    StringBuilder text = new StringBuilder(length);
+    for (int i = 0; i < length; ++i)
+      text.append(CHARACTERS.charAt(random.nextInt(CHARACTERS.length())));
+    return text.toString();
+  }
+
+  /**
+   * Returns the ciphers of a new vault protected by PASSWORD, with a
+   * wrapped data key.
+   */
+  static CipherInfo createCiphers() {
+    return SecurityUtils.createWrappedCiphers(
+        SecurityUtils.createCiphers(PASSWORD, null, 0));
+  }
+
+  /**
+   * Loads a file the way LoginActivity does: reads its salt and rounds,
+   * creates the password ciphers from them, and then loads the secrets.
+   *
+   * @param context The context holding the file.
+   * @param fileName The name of the file.
+   * @return The loaded secrets, or null if the file cannot be loaded.
+   */
+  static FileUtils.LoadedSecrets load(Context context, String fileName) {
+    FileUtils.SaltAndRounds pair = FileUtils.getSaltAndRounds(context,
+                                                              fileName);
+    CipherInfo info = SecurityUtils.createCiphers(PASSWORD, pair.salt,
+                                                  pair.rounds);
+    return FileUtils.loadSecretsAnyVersion(context, fileName, info,
+                                           PASSWORD);
+  }
+
+  /** Returns the median of the given times, in milliseconds. */
+  static double median(long[] nanos) {
+    long[] sorted = nanos.clone();
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2] / 1e6;
+  }
+
+  /** Returns the total size of the files in the given directory. */
+  static long getSize(File dir) {
+    long size = 0;
+    for (File file : dir.listFiles())
+      size += file.length();
+    return size;
+  }
+
+  /**
+   * Creates a context whose files are in a new, empty directory.  FileUtils
+   * caches state per directory, such as the restore point manifest, so
+   * each measurement that starts from an empty vault needs its own.
+   *
+   * @param base The context of the application.
+   * @param name The name of the directory, under the cache directory.
+   * @return The context.
+   */
+  static Context createContext(Context base, String name) {
+    final File dir = new File(base.getCacheDir(), name);
+    if (dir.exists()) {
+      for (File file : dir.listFiles())
+        file.delete();
+    }
+    dir.mkdirs();
+
+    return new ContextWrapper(base) {
+      @Override
+      public File getFilesDir() {
+        return dir;
+      }
+
+      @Override
+      public File getFileStreamPath(String name) {
+        return new File(dir, name);
+      }
+
+      @Override
+      public FileInputStream openFileInput(String name)
+          throws FileNotFoundException {
+        return new FileInputStream(new File(dir, name));
+      }
+
+      @Override
+      public String[] fileList() {
+        return dir.list();
+      }
+
+      @Override
+      public boolean deleteFile(String name) {
+        return new File(dir, name).delete();
+      }
+    };
+  }
+}
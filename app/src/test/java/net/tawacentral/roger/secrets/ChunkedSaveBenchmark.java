@@ -0,0 +1,118 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Context;
+
+import net.tawacentral.roger.secrets.SecurityUtils.CipherInfo;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Measures saving a vault after editing one secret, by rewriting the whole
+ * file as a V4 JSON file did, and by saving it in chunks, which only writes
+ * the chunk holding the edited secret and the main file.  It prints the
+ * average time of a save and the bytes it wrote, after one save of each
+ * to warm up.
+ *
+ * Saving a single edit normally only appends it to the journal, so the
+ * journal is discarded before each chunked save to force a full one.
+ *
+ * See BenchmarkUtils for how to run it.
+ *
+ * @author rogerta
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ChunkedSaveBenchmark {
+  private static final int SIZE = 10000;
+  private static final int RUNS = 10;
+
+  @Test
+  public void compareSaves() throws Exception {
+    Context context = BenchmarkUtils.createContext(
+        RuntimeEnvironment.application, "chunked");
+    CipherInfo info = BenchmarkUtils.createCiphers();
+    File dir = context.getFilesDir();
+    File main = context.getFileStreamPath(FileUtils.SECRETS_FILE_NAME);
+    ArrayList<Secret> secrets = BenchmarkUtils.createSecrets(SIZE);
+    FileUtils.discardJournal();
+    assertEquals(0, FileUtils.saveSecrets(context, main, info, secrets));
+
+    // The V4 format encrypted the JSON of all the secrets on each save.
+    File v4 = new File(RuntimeEnvironment.application.getCacheDir(), "v4");
+    long v4Time = 0;
+    for (int run = -1; run < RUNS; ++run) {
+      secrets.get((run + 1) * SIZE / (RUNS + 1)).setNote("v4 edit " + run);
+      long start = System.nanoTime();
+      FileOutputStream output = new FileOutputStream(v4);
+      try {
+        FileUtils.writeEncryptedJSONSecrets(output, info.encryptCipher,
+                                            secrets);
+      } finally {
+        output.close();
+      }
+      if (run >= 0)
+        v4Time += System.nanoTime() - start;
+    }
+
+    long chunkedTime = 0;
+    long chunkedBytes = 0;
+    for (int run = -1; run < RUNS; ++run) {
+      secrets.get((run + 1) * SIZE / (RUNS + 1) + 1).setNote(
+          "chunked edit " + run);
+      HashSet<String> before = new HashSet<String>(
+          Arrays.asList(dir.list()));
+      FileUtils.discardJournal();
+      long start = System.nanoTime();
+      assertEquals(0, FileUtils.saveSecrets(context, main, info, secrets));
+      if (run < 0)
+        continue;
+
+      chunkedTime += System.nanoTime() - start;
+
+      // Restore points are renamed, not written.
+      chunkedBytes += main.length();
+      for (String name : dir.list()) {
+        if (!before.contains(name) && !name.startsWith("@"))
+          chunkedBytes += new File(dir, name).length();
+      }
+    }
+
+    System.out.printf("%d secrets, one edit per save:%n", SIZE);
+    System.out.printf("  V4 full rewrite: %6.1f ms, %,10d bytes written%n",
+                      v4Time / 1e6 / RUNS, v4.length());
+    System.out.printf("  chunked save:    %6.1f ms, %,10d bytes written%n",
+                      chunkedTime / 1e6 / RUNS, chunkedBytes / RUNS);
+
+    FileUtils.discardJournal();
+    List<Secret> loaded = BenchmarkUtils.load(context,
+        FileUtils.SECRETS_FILE_NAME).secrets;
+    assertEquals(FileUtils.toJSONSecrets(secrets).toString(),
+                 FileUtils.toJSONSecrets(loaded).toString());
+    v4.delete();
+  }
+}
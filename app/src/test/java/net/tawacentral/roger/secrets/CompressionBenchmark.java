@@ -0,0 +1,174 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import net.tawacentral.roger.secrets.SecurityUtils.CipherInfo;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures what compressing the secrets before encrypting them costs and
+ * saves.
+ *
+ * For V4 files, the SD card backups, it compares writing and loading the
+ * JSON as is with backupSecrets(), which compresses it when that pays off.
+ * For chunks, it compresses and uncompresses the binary secrets in groups
+ * of 32, about what the chunk boundaries give.  It prints the sizes and the
+ * median times.
+ *
+ * See BenchmarkUtils for how to run it.
+ *
+ * @author rogerta
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CompressionBenchmark {
+  private static final int[] SIZES = {1000, 10000};
+  private static final int CHUNK_SIZE = 32;
+  private static final int RUNS = 15;
+
+  @Test
+  public void compareV4Files() throws Exception {
+    Context context = RuntimeEnvironment.application;
+    CipherInfo password = SecurityUtils.createCiphers(
+        BenchmarkUtils.PASSWORD, null, 0);
+    CipherInfo info = SecurityUtils.createWrappedCiphers(password);
+    File plain = new File(context.getCacheDir(), "plain");
+    File compressed = new File(FileUtils.SECRETS_FILE_NAME_SDCARD);
+    compressed.getParentFile().mkdirs();
+
+    for (int size : SIZES) {
+      ArrayList<Secret> secrets = BenchmarkUtils.createSecrets(size);
+      String expected = FileUtils.toJSONSecrets(secrets).toString();
+      long[] plainWrite = new long[RUNS];
+      long[] plainLoad = new long[RUNS];
+      long[] compressedWrite = new long[RUNS];
+      long[] compressedLoad = new long[RUNS];
+      for (int run = -1; run < RUNS; ++run) {
+        long start = System.nanoTime();
+        FileOutputStream output = new FileOutputStream(plain);
+        try {
+          FileUtils.writeEncryptedJSONSecrets(output,
+                                              password.encryptCipher,
+                                              secrets);
+        } finally {
+          output.close();
+        }
+        long plainWritten = System.nanoTime();
+        List<Secret> loaded = FileUtils.readEncryptedJSONSecrets(
+            new BufferedInputStream(new FileInputStream(plain)),
+            password.decryptCipher);
+        long plainLoaded = System.nanoTime();
+        assertEquals(expected, FileUtils.toJSONSecrets(loaded).toString());
+
+        long compressedStart = System.nanoTime();
+        assertTrue(FileUtils.backupSecrets(context, info, secrets));
+        long compressedWritten = System.nanoTime();
+        loaded = FileUtils.loadSecrets(context,
+            FileUtils.SECRETS_FILE_NAME_SDCARD, password);
+        long compressedLoaded = System.nanoTime();
+        assertEquals(expected, FileUtils.toJSONSecrets(loaded).toString());
+
+        // The first run only warms up.
+        if (run >= 0) {
+          plainWrite[run] = plainWritten - start;
+          plainLoad[run] = plainLoaded - plainWritten;
+          compressedWrite[run] = compressedWritten - compressedStart;
+          compressedLoad[run] = compressedLoaded - compressedWritten;
+        }
+      }
+
+      System.out.printf("V4, %d secrets: %,d -> %,d bytes (%d%%)%n", size,
+                        plain.length(), compressed.length(),
+                        100 * compressed.length() / plain.length());
+      System.out.printf("  write %.1f -> %.1f ms, load %.1f -> %.1f ms%n",
+                        BenchmarkUtils.median(plainWrite),
+                        BenchmarkUtils.median(compressedWrite),
+                        BenchmarkUtils.median(plainLoad),
+                        BenchmarkUtils.median(compressedLoad));
+    }
+    plain.delete();
+    compressed.delete();
+  }
+
+  @Test
+  public void compareChunks() throws Exception {
+    CipherInfo info = BenchmarkUtils.createCiphers();
+    int size = SIZES[SIZES.length - 1];
+    ArrayList<Secret> secrets = BenchmarkUtils.createSecrets(size);
+    ArrayList<byte[]> chunks = new ArrayList<byte[]>();
+    for (int i = 0; i < size; i += CHUNK_SIZE) {
+      chunks.add(FileUtils.toBinarySecrets(
+          secrets.subList(i, Math.min(size, i + CHUNK_SIZE)), info.fieldKey));
+    }
+
+    byte[] prefix = new byte[0];
+    long plainSize = 0;
+    long compressedSize = 0;
+    long[] deflate = new long[RUNS];
+    long[] inflate = new long[RUNS];
+    for (int run = -1; run < RUNS; ++run) {
+      long deflateTime = 0;
+      long inflateTime = 0;
+      plainSize = 0;
+      compressedSize = 0;
+      for (byte[] chunk : chunks) {
+        long start = System.nanoTime();
+        byte[] compressed = BinaryCodec.deflate(prefix, chunk);
+        long deflated = System.nanoTime();
+        deflateTime += deflated - start;
+        plainSize += chunk.length;
+        if (null == compressed) {
+          compressedSize += chunk.length;
+          continue;
+        }
+
+        compressedSize += compressed.length;
+        byte[] uncompressed = BinaryCodec.inflate(compressed, 0);
+        inflateTime += System.nanoTime() - deflated;
+        assertArrayEquals(chunk, uncompressed);
+      }
+
+      // The first run only warms up.
+      if (run >= 0) {
+        deflate[run] = deflateTime / chunks.size();
+        inflate[run] = inflateTime / chunks.size();
+      }
+    }
+
+    System.out.printf("Chunks, %d secrets (%d chunks of %d secrets): " +
+                      "%,d -> %,d bytes (%d%%)%n", size, chunks.size(),
+                      CHUNK_SIZE, plainSize, compressedSize,
+                      100 * compressedSize / plainSize);
+    System.out.printf("  deflate %.2f ms/chunk, inflate %.2f ms/chunk%n",
+                      BenchmarkUtils.median(deflate),
+                      BenchmarkUtils.median(inflate));
+  }
+}
@@ -0,0 +1,120 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Context;
+
+import net.tawacentral.roger.secrets.SecurityUtils.CipherInfo;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the restore points kept by saves that each change one secret.
+ * Saves that are journaled keep delta restore points; forcing full saves,
+ * by discarding the journal first, keeps a full restore point each time.
+ * For each, it prints the disk space used per restore point, the average
+ * time of a save, and the average time of restoring the oldest and newest
+ * points, which includes creating the ciphers from the password.
+ *
+ * See BenchmarkUtils for how to run it.
+ *
+ * @author rogerta
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DeltaRestorePointBenchmark {
+  private static final int[] SIZES = {200, 2000, 10000};
+  private static final int SAVES = 50;
+  private static final int RESTORES = 10;
+
+  @Test
+  public void compareRestorePoints() throws Exception {
+    // Keep all the restore points.
+    FileUtils.setRetentionPolicy(RuntimeEnvironment.application,
+                                 new RetentionPolicy(SAVES * 2, 0, 0, 0));
+    CipherInfo info = BenchmarkUtils.createCiphers();
+    for (int size : SIZES) {
+      measure(size, true, info);
+      measure(size, false, info);
+    }
+  }
+
+  private static void measure(int size, boolean isFull, CipherInfo info)
+      throws Exception {
+    Context context = BenchmarkUtils.createContext(
+        RuntimeEnvironment.application, (isFull ? "full-" : "delta-") + size);
+    File main = context.getFileStreamPath(FileUtils.SECRETS_FILE_NAME);
+    ArrayList<Secret> secrets = BenchmarkUtils.createSecrets(size);
+    FileUtils.discardJournal();
+    assertEquals(0, FileUtils.saveSecrets(context, main, info, secrets));
+    FileUtils.cleanupDataFiles(context);
+    long before = BenchmarkUtils.getSize(context.getFilesDir());
+
+    String first = FileUtils.toJSONSecrets(secrets).toString();
+    String last = null;
+    long start = System.nanoTime();
+    for (int i = 0; i < SAVES; ++i) {
+      if (SAVES - 1 == i)
+        last = FileUtils.toJSONSecrets(secrets).toString();
+      secrets.get((i * 7919) % size).setPassword("edit " + i, true);
+      if (isFull)
+        FileUtils.discardJournal();
+      assertEquals(0, FileUtils.saveSecrets(context, main, info, secrets));
+    }
+    long saveTime = (System.nanoTime() - start) / SAVES;
+    FileUtils.cleanupDataFiles(context);
+    long growth = BenchmarkUtils.getSize(context.getFilesDir()) - before;
+
+    // Restore points are listed most recent first.
+    ArrayList<String> points = new ArrayList<String>();
+    for (FileUtils.RestorePoint point : FileUtils.getRestorePoints(context)) {
+      if (point.name.startsWith("@"))
+        points.add(point.name);
+    }
+    assertEquals(SAVES, points.size());
+    double oldest = restore(context, points.get(SAVES - 1), first);
+    double newest = restore(context, points.get(0), last);
+
+    System.out.printf("%5d secrets, %s saves: %,7d bytes/point, save " +
+                      "%5.1f ms, restore oldest %5.1f ms, newest %5.1f ms%n",
+                      size, isFull ? "full " : "delta", growth / SAVES,
+                      saveTime / 1e6, oldest, newest);
+    FileUtils.discardJournal();
+  }
+
+  /**
+   * Restores the given point a few times, and checks that it holds the
+   * given secrets.
+   *
+   * @return The average time of a restore, in milliseconds.
+   */
+  private static double restore(Context context, String name,
+                                String expected) throws Exception {
+    List<Secret> secrets = BenchmarkUtils.load(context, name).secrets;
+    assertEquals(expected, FileUtils.toJSONSecrets(secrets).toString());
+    long start = System.nanoTime();
+    for (int i = 0; i < RESTORES; ++i)
+      BenchmarkUtils.load(context, name);
+    return (System.nanoTime() - start) / 1e6 / RESTORES;
+  }
+}
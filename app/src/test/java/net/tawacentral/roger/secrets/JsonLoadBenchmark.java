@@ -0,0 +1,145 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import static org.junit.Assert.assertEquals;
+
+import net.tawacentral.roger.secrets.SecurityUtils.CipherInfo;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+
+/**
+ * Compares the two ways of loading a JSON secrets file: decrypting the
+ * whole file and parsing it into a JSONObject tree, as
+ * fromEncryptedJSONSecretsStream() does, and decrypting and parsing it as
+ * a stream, as readEncryptedJSONSecrets() does.  For each, it prints the
+ * best time of a few loads, and the peak heap used above what was used
+ * before the load, which includes the loaded secrets.
+ *
+ * See BenchmarkUtils for how to run it.
+ *
+ * @author rogerta
+ */
+@RunWith(RobolectricTestRunner.class)
+public class JsonLoadBenchmark {
+  private static final int[] SIZES = {1000, 10000};
+  private static final int RUNS = 5;
+
+  @Test
+  public void compareLoads() throws Exception {
+    CipherInfo info = SecurityUtils.createCiphers(BenchmarkUtils.PASSWORD,
+                                                  null, 0);
+    File dir = RuntimeEnvironment.application.getCacheDir();
+    for (int size : SIZES) {
+      ArrayList<Secret> secrets = BenchmarkUtils.createSecrets(size);
+      File file = new File(dir, "secrets-" + size + ".json");
+      FileOutputStream output = new FileOutputStream(file);
+      try {
+        FileUtils.writeEncryptedJSONSecrets(output, info.encryptCipher,
+                                            secrets);
+      } finally {
+        output.close();
+      }
+
+      String expected = FileUtils.toJSONSecrets(secrets).toString();
+      secrets = null;
+      assertEquals(expected, FileUtils.toJSONSecrets(
+          loadTree(file, info)).toString());
+      assertEquals(expected, FileUtils.toJSONSecrets(
+          loadStream(file, info)).toString());
+      expected = null;
+
+      for (int mode = 0; mode < 2; ++mode) {
+        long best = Long.MAX_VALUE;
+        long heap = 0;
+        for (int run = 0; run < RUNS; ++run) {
+          long used = getUsedHeap();
+          resetPeakHeap();
+          long start = System.nanoTime();
+          ArrayList<Secret> loaded = 0 == mode ? loadTree(file, info)
+                                               : loadStream(file, info);
+          best = Math.min(best, System.nanoTime() - start);
+          heap = Math.max(heap, getPeakHeap() - used);
+          assertEquals(size, loaded.size());
+        }
+        System.out.printf("%6d secrets, %5d KB file, %-9s %5d ms, " +
+                          "peak heap %7d KB%n", size, file.length() / 1024,
+                          0 == mode ? "tree:" : "streaming:", best / 1000000,
+                          heap / 1024);
+      }
+      file.delete();
+    }
+  }
+
+  /** Loads the file into memory and parses it into a JSONObject tree. */
+  private static ArrayList<Secret> loadTree(File file, CipherInfo info)
+      throws IOException {
+    InputStream input = new BufferedInputStream(new FileInputStream(file));
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    try {
+      byte[] buffer = new byte[4096];
+      for (int n = input.read(buffer); n >= 0; n = input.read(buffer))
+        data.write(buffer, 0, n);
+    } finally {
+      input.close();
+    }
+    return FileUtils.fromEncryptedJSONSecretsStream(info.decryptCipher,
+                                                    data.toByteArray());
+  }
+
+  /** Decrypts and parses the file as a stream. */
+  private static ArrayList<Secret> loadStream(File file, CipherInfo info)
+      throws IOException {
+    return FileUtils.readEncryptedJSONSecrets(
+        new BufferedInputStream(new FileInputStream(file)),
+        info.decryptCipher);
+  }
+
+  private static long getUsedHeap() {
+    System.gc();
+    System.gc();
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static void resetPeakHeap() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+      pool.resetPeakUsage();
+  }
+
+  private static long getPeakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (MemoryType.HEAP == pool.getType())
+        peak += pool.getPeakUsage().getUsed();
+    }
+    return peak;
+  }
+}
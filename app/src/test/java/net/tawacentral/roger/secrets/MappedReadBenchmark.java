@@ -0,0 +1,111 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import static org.junit.Assert.assertEquals;
+
+import net.tawacentral.roger.secrets.SecurityUtils.CipherInfo;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+
+/**
+ * Compares reading and decrypting a file through a buffered stream and a
+ * CipherInputStream with reading it through a memory mapping, as
+ * openInput() does for files of at least MAP_THRESHOLD bytes.  It prints
+ * the median time of each for files around that size and larger.
+ *
+ * The file is in the page cache for all but the first read, so this only
+ * measures warm reads.  Cold reads need to be timed on a device.
+ *
+ * See BenchmarkUtils for how to run it.
+ *
+ * @author rogerta
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MappedReadBenchmark {
+  private static final int[] SIZES = {128 << 10, 256 << 10, 1 << 20,
+                                      4 << 20, 16 << 20};
+  private static final int RUNS = 31;
+
+  private final byte[] sink = new byte[8192];
+
+  @Test
+  public void compareReads() throws Exception {
+    CipherInfo info = SecurityUtils.createCiphers(BenchmarkUtils.PASSWORD,
+                                                  null, 0);
+    File file = new File(RuntimeEnvironment.application.getCacheDir(),
+                         "mapped");
+    for (int size : SIZES) {
+      byte[] data = new byte[size];
+      new Random(size).nextBytes(data);
+      FileOutputStream output = new FileOutputStream(file);
+      try {
+        output.write(info.encryptCipher.doFinal(data));
+      } finally {
+        output.close();
+      }
+
+      long[] streamed = new long[RUNS];
+      long[] mapped = new long[RUNS];
+      for (int run = -5; run < RUNS; ++run) {
+        long start = System.nanoTime();
+        assertEquals(size, drain(new CipherInputStream(
+            new BufferedInputStream(new FileInputStream(file)),
+            info.decryptCipher)));
+        long middle = System.nanoTime();
+        assertEquals(size, drain(new ByteBufferInputStream(
+            ByteBufferInputStream.map(file)).decrypt(info.decryptCipher)));
+        long end = System.nanoTime();
+
+        // The first runs only warm up.
+        if (run >= 0) {
+          streamed[run] = middle - start;
+          mapped[run] = end - middle;
+        }
+      }
+
+      System.out.printf("%6d KB: stream %6.2f ms, mapped %6.2f ms%n",
+                        size >> 10, BenchmarkUtils.median(streamed),
+                        BenchmarkUtils.median(mapped));
+    }
+    file.delete();
+  }
+
+  /** Reads the stream to its end and closes it. */
+  private long drain(InputStream input) throws IOException {
+    long size = 0;
+    try {
+      for (int n = input.read(sink); n >= 0; n = input.read(sink))
+        size += n;
+    } finally {
+      input.close();
+    }
+    return size;
+  }
+}